@@ -0,0 +1,154 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client-side id allocator with the AUTO_RANDOM layout of a signed BIGINT:
+ *
+ *   | sign (1, always 0) | shard (shardBits) | increment (63 - shardBits) |
+ *
+ * Increments are reserved from a BlockSource in blocks of blockSize and handed out
+ * from a per-thread block, so the hot path touches no shared state; only a block
+ * refill does one atomic add (or one NEXTVAL round trip). The shard bits are derived
+ * from the increment with a multiplicative hash, so consecutive ids land on different
+ * shards just like server-assigned AUTO_RANDOM ids land on different regions.
+ *
+ * Inserting these ids into an AUTO_RANDOM column needs
+ * SET @@allow_auto_random_explicit_insert = true in the session.
+ */
+public class AutoRandomIdAllocator {
+
+    private static final Pattern INCREMENT_BY = Pattern.compile("increment by (-?\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /** Reserves count consecutive increments and returns the first one. */
+    public interface BlockSource {
+        long reserve(int count) throws SQLException;
+    }
+
+    private final int shardBits;
+    private final int blockSize;
+    private final BlockSource source;
+    private final long incrementMask;
+    private final ThreadLocal<long[]> currentBlock = ThreadLocal.withInitial(() -> new long[2]);
+
+    public AutoRandomIdAllocator(int shardBits, int blockSize, BlockSource source) {
+        if (shardBits < 1 || shardBits > 15) {
+            throw new IllegalArgumentException("AUTO_RANDOM shard bits must be between 1 and 15: " + shardBits);
+        }
+        checkBlockSize(blockSize);
+        this.shardBits = shardBits;
+        this.blockSize = blockSize;
+        this.source = source;
+        this.incrementMask = (1L << (63 - shardBits)) - 1;
+    }
+
+    private static void checkBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Allocator block size must be at least 1: " + blockSize);
+        }
+    }
+
+    /** Blocks handed out from an in-process counter, for a single writer process. */
+    public static BlockSource localBlocks(long firstIncrement) {
+        AtomicLong next = new AtomicLong(firstIncrement);
+        return count -> next.getAndAdd(count);
+    }
+
+    /**
+     * Blocks handed out by a TiDB sequence, so several processes can allocate without
+     * overlapping. The sequence must have INCREMENT BY blockSize, see prepareSequence().
+     * Each refill borrows a connection from pool, so it must not be a pool whose
+     * connections the allocating threads hold while they insert: once they hold them all,
+     * every refill would wait out the borrow timeout.
+     */
+    public static BlockSource sequenceBlocks(JdbcConnectionPool pool, String sequenceName) {
+        return count -> {
+            try (Connection connection = pool.getConnection();
+                 Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT NEXTVAL(" + sequenceName + ")")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        };
+    }
+
+    /**
+     * Creates the sequence for sequenceBlocks() starting at firstIncrement, or checks an
+     * existing one: its INCREMENT BY must be blockSize, otherwise consecutive blocks would
+     * overlap, and it is moved forward to firstIncrement if it is behind. SETVAL never
+     * moves a sequence back, and keeps it on its START + n * INCREMENT steps.
+     */
+    public static void prepareSequence(Connection connection, String sequenceName, int blockSize, long firstIncrement)
+            throws SQLException {
+        checkBlockSize(blockSize);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE SEQUENCE IF NOT EXISTS " + sequenceName + " START WITH " + firstIncrement
+                    + " INCREMENT BY " + blockSize);
+            long increment = 0;
+            try (ResultSet rs = stmt.executeQuery("SHOW CREATE SEQUENCE " + sequenceName)) {
+                Matcher m = INCREMENT_BY.matcher(rs.next() ? rs.getString(2) : "");
+                if (m.find()) {
+                    increment = Long.parseLong(m.group(1));
+                }
+            }
+            if (increment != blockSize) {
+                throw new SQLException("Sequence " + sequenceName + " has INCREMENT BY " + increment
+                        + ", but blocks of " + blockSize + " ids need INCREMENT BY " + blockSize);
+            }
+            if (firstIncrement > 1) {
+                try (ResultSet rs = stmt.executeQuery("SELECT SETVAL(" + sequenceName + ", " + (firstIncrement - 1) + ")")) {
+                    rs.next();
+                }
+            }
+        }
+    }
+
+    /**
+     * The first increment above everything already in the table, so client ids
+     * never collide with ids the server assigned before.
+     */
+    public static long firstFreeIncrement(Connection connection, String tableName, int shardBits) throws SQLException {
+        long mask = (1L << (63 - shardBits)) - 1;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(id & " + mask + ") FROM " + tableName)) {
+            return rs.next() ? rs.getLong(1) + 1 : 1;
+        }
+    }
+
+    public int getShardBits() {
+        return shardBits;
+    }
+
+    public long nextId() throws SQLException {
+        long[] block = currentBlock.get();
+        if (block[0] == block[1]) {
+            block[0] = source.reserve(blockSize);
+            block[1] = block[0] + blockSize;
+        }
+        return compose(block[0]++);
+    }
+
+    /** Fills ids[0..count) with fresh ids, e.g. for a parent batch whose children need the keys up front. */
+    public void nextIds(long[] ids, int count) throws SQLException {
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextId();
+        }
+    }
+
+    private long compose(long increment) {
+        long shard = (increment * 0x9E3779B97F4A7C15L) >>> (64 - shardBits);
+        return (shard << (63 - shardBits)) | (increment & incrementMask);
+    }
+
+    public static long shardOf(long id, int shardBits) {
+        return (id >>> (63 - shardBits)) & ((1L << shardBits) - 1);
+    }
+
+    public static long incrementOf(long id, int shardBits) {
+        return id & ((1L << (63 - shardBits)) - 1);
+    }
+}
@@ -0,0 +1,293 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the DDL jobs on one table by polling ADMIN SHOW DDL JOBS on a connection of
+ * its own, so it keeps reporting while the session that issued the DDL is blocked in it.
+ *
+ * Each poll reads the job's STATE (queueing, running, synced, ...), its SCHEMA_STATE
+ * (none, delete only, write only, write reorganization, public) and ROW_COUNT, the rows
+ * backfilled so far. A change of state or schema state is a transition: it is printed
+ * (or queued for pollTransition(), so a load timeline can show it on its own line) with
+ * the wall-clock time, since each schema state changes what foreground writes must
+ * maintain. While rows are being backfilled the reorg rate is smoothed over the polls and
+ * the ETA is estimated from the table's TABLE_ROWS statistics, which are cheap to read
+ * on tables far too large to count.
+ *
+ * Jobs on the table that are already finished when the monitor starts are ignored;
+ * running ones and any started later, from this session or another, are followed.
+ * start() takes that baseline before it returns, so a DDL issued right after it is
+ * followed even if it finishes before the monitor thread's first poll.
+ */
+public class DdlProgressMonitor implements Runnable {
+
+    private static final DateTimeFormatter CLOCK = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    // Weight of the newest poll in the smoothed reorg rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    /** What the monitor knows about one DDL job. */
+    private static final class Job {
+        final long id;
+        final String type;
+        String state;
+        String schemaState;
+        long rowCount;
+        long lastPollNanos;
+        double rowsPerSecond;
+        long firstReorgNanos;
+        long reorgRowsAtStart;
+        long tableRows = -1;
+        boolean finished;
+        final List<String> timeline = new ArrayList<>();
+        long lastChangeNanos;
+
+        Job(long id, String type) {
+            this.id = id;
+            this.type = type;
+        }
+
+        boolean reorganizing() {
+            return "write reorganization".equalsIgnoreCase(schemaState);
+        }
+
+        /** Seconds left at the current rate, or -1 if unknown. */
+        long etaSeconds() {
+            if (!reorganizing() || rowsPerSecond <= 0 || tableRows <= rowCount) {
+                return -1;
+            }
+            return (long) Math.ceil((tableRows - rowCount) / rowsPerSecond);
+        }
+    }
+
+    private final JdbcConnectionPool pool;
+    private final String table;
+    private final long pollMillis;
+    private final boolean print;
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+    private final ConcurrentLinkedQueue<String> transitions = new ConcurrentLinkedQueue<>();
+    private volatile String status = "";
+    private volatile boolean stopped;
+    private long baselineJobId = -1;
+    private Connection startedConnection;
+    private String schema;
+
+    /**
+     * @param print print transitions and once-a-second progress lines; otherwise they are only
+     *              available through pollTransition() and status()
+     */
+    public DdlProgressMonitor(JdbcConnectionPool pool, String table, long pollMillis, boolean print) {
+        this.pool = pool;
+        this.table = table;
+        this.pollMillis = pollMillis;
+        this.print = print;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /** Takes the baseline on the calling thread, then returns a thread running this monitor, already started. */
+    public Thread start() throws SQLException {
+        Connection connection = pool.getConnection();
+        try {
+            baseline(connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        startedConnection = connection;
+        Thread thread = new Thread(this, "ddl-monitor");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        try (Connection connection = startedConnection != null ? startedConnection : pool.getConnection()) {
+            if (startedConnection == null) {
+                baseline(connection);
+            }
+            long lastPrintNanos = 0;
+            // One last poll after stop(), so the final state of a job that just ended is seen
+            for (boolean last = false; !last; ) {
+                last = stopped;
+                poll(connection);
+                long now = System.nanoTime();
+                if (print && now - lastPrintNanos >= TimeUnit.SECONDS.toNanos(1)) {
+                    lastPrintNanos = now;
+                    printProgress();
+                }
+                if (!last) {
+                    TimeUnit.MILLISECONDS.sleep(pollMillis);
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The first poll: jobs already finished now are ignored from here on, running ones are followed. */
+    private void baseline(Connection connection) throws SQLException {
+        connection.setAutoCommit(true);
+        schema = connection.getCatalog();
+        baselineJobId = poll(connection);
+    }
+
+    /** Updates the jobs on the table; returns the highest job id seen. */
+    private long poll(Connection connection) throws SQLException {
+        long now = System.nanoTime();
+        long maxJobId = 0;
+        try (Statement stmt = connection.createStatement();
+                ResultSet rs = stmt.executeQuery("ADMIN SHOW DDL JOBS 32")) {
+            while (rs.next()) {
+                if (!table.equalsIgnoreCase(rs.getString("TABLE_NAME"))
+                        || (schema != null && !schema.equalsIgnoreCase(rs.getString("DB_NAME")))) {
+                    continue;
+                }
+                long id = rs.getLong("JOB_ID");
+                maxJobId = Math.max(maxJobId, id);
+                String state = rs.getString("STATE");
+                Job job = jobs.get(id);
+                if (job == null) {
+                    if (id <= baselineJobId || (baselineJobId < 0 && isFinished(state))) {
+                        continue;
+                    }
+                    job = new Job(id, rs.getString("JOB_TYPE"));
+                    jobs.put(id, job);
+                }
+                if (!job.finished) {
+                    update(connection, job, state, rs.getString("SCHEMA_STATE"), rs.getLong("ROW_COUNT"), now);
+                }
+            }
+        }
+        status = currentStatus();
+        return maxJobId;
+    }
+
+    private void update(Connection connection, Job job, String state, String schemaState,
+            long rowCount, long now) throws SQLException {
+        if (job.lastPollNanos != 0 && rowCount > job.rowCount) {
+            double rate = (rowCount - job.rowCount) / ((now - job.lastPollNanos) / 1e9);
+            job.rowsPerSecond = job.rowsPerSecond == 0 ? rate
+                    : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * job.rowsPerSecond;
+        }
+        if (!(state + "/" + schemaState).equalsIgnoreCase(job.state + "/" + job.schemaState)) {
+            String from = job.state == null ? "" : " after " + formatSeconds((now - job.lastChangeNanos) / 1e9)
+                    + " in " + job.state + "/" + job.schemaState;
+            job.state = state;
+            job.schemaState = schemaState;
+            job.lastChangeNanos = now;
+            if (job.reorganizing() && job.firstReorgNanos == 0) {
+                job.firstReorgNanos = now;
+                job.reorgRowsAtStart = rowCount;
+                job.tableRows = tableRows(connection);
+            }
+            String line = String.format(Locale.ROOT, "%s  ddl job %d (%s): %s/%s, %d rows%s", now(), job.id,
+                    job.type, state, schemaState, rowCount, from);
+            job.timeline.add(line);
+            transitions.add(line);
+            if (print) {
+                System.out.println(line);
+            }
+        }
+        job.rowCount = rowCount;
+        job.lastPollNanos = now;
+        job.finished = isFinished(state);
+    }
+
+    /** The optimizer's row estimate for the table, or -1 if there is none. */
+    private long tableRows(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?")) {
+            ps.setString(1, schema);
+            ps.setString(2, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+        }
+    }
+
+    private static boolean isFinished(String state) {
+        return state == null || state.equalsIgnoreCase("synced") || state.equalsIgnoreCase("done")
+                || state.equalsIgnoreCase("cancelled") || state.equalsIgnoreCase("rollback done");
+    }
+
+    private String currentStatus() {
+        StringBuilder sb = new StringBuilder();
+        for (Job job : jobs.values()) {
+            if (job.finished) {
+                continue;
+            }
+            sb.append(sb.length() == 0 ? "" : "; ").append(job.id).append(' ').append(job.schemaState);
+            if (job.reorganizing()) {
+                sb.append(String.format(Locale.ROOT, " %d rows %.0f rows/s", job.rowCount, job.rowsPerSecond));
+                long eta = job.etaSeconds();
+                if (eta >= 0) {
+                    sb.append(" ETA ").append(formatSeconds(eta));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Running jobs in one short line: schema state, and rows, rate and ETA while backfilling. */
+    public String status() {
+        return status;
+    }
+
+    /** The next state change not yet taken, or null. */
+    public String pollTransition() {
+        return transitions.poll();
+    }
+
+    private void printProgress() {
+        String s = status;
+        if (!s.isEmpty()) {
+            System.out.println(now() + "  ddl " + s);
+        }
+    }
+
+    /** Each job's transitions, with its backfill rows and average reorg rate. */
+    public void printSummary() {
+        for (Job job : jobs.values()) {
+            System.out.println("DDL job " + job.id + " (" + job.type + "):");
+            for (String line : job.timeline) {
+                System.out.println("  " + line);
+            }
+            if (job.firstReorgNanos != 0) {
+                double seconds = (job.lastPollNanos - job.firstReorgNanos) / 1e9;
+                long rows = job.rowCount - job.reorgRowsAtStart;
+                System.out.println(String.format(Locale.ROOT, "  backfilled %d rows in %s (%.0f rows/s)", rows,
+                        formatSeconds(seconds), seconds > 0 ? rows / seconds : 0));
+            }
+        }
+    }
+
+    private static String now() {
+        return LocalTime.now().format(CLOCK);
+    }
+
+    private static String formatSeconds(double seconds) {
+        if (seconds < 60) {
+            return String.format(Locale.ROOT, "%.1fs", seconds);
+        }
+        long s = Math.round(seconds);
+        return s < 3600 ? String.format(Locale.ROOT, "%dm%02ds", s / 60, s % 60)
+                : String.format(Locale.ROOT, "%dh%02dm", s / 3600, s % 3600 / 60);
+    }
+}
@@ -1,25 +1,59 @@
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
-// import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class DemoJdbcAutoRandom {
     
-    private static Connection getConnection() throws SQLException {
-        Connection connection = null;
-        
-        String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-        int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-        String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-        String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-        String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-        
-        String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
-        
-        connection = DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword);
-        
-        return connection;
+    // Shared by every ConcurrentInsertWorker; set up in main
+    private static JdbcConnectionPool workerPool;
+    // Connections for AutoRandomIdAllocator sequence refills, apart from the ones the workers hold
+    private static JdbcConnectionPool sequencePool;
+    private static boolean useVirtualThreads;
+    
+    /**
+     * Pool for the main connection and the insert workers. rewriteBatchedStatements=true lets
+     * the driver send a whole addBatch() batch as one multi-row INSERT instead of one round trip
+     * per row, and cachePrepStmts keeps the per-borrow prepareStatement cheap. Every session may
+     * insert explicit ids into AUTO_RANDOM columns, for the client-side allocator.
+     */
+    private static JdbcConnectionPool newWorkerPool(int maxSize) throws SQLException {
+        return JdbcConnectionPool.fromEnv("&rewriteBatchedStatements=true&cachePrepStmts=true"
+                + "&sessionVariables=allow_auto_random_explicit_insert=true", maxSize, maxSize);
+    }
+    
+    /**
+     * One virtual thread per task when the JVM has them (Java 21+), so thousands of logical
+     * writers do not need thousands of OS threads; otherwise one platform thread per writer,
+     * up to the number of pooled connections, as more threads would only wait for one.
+     */
+    private static ExecutorService newWorkerExecutor(int numWorkers) {
+        if (useVirtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21 or later, falling back to platform threads.");
+                useVirtualThreads = false;
+            }
+        }
+        int threads = workerPool == null ? numWorkers : inFlight(numWorkers);
+        return Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+    
+    /** Writers that can be inside a transaction at once: one per pooled connection, as main keeps one. */
+    private static int inFlight(int numWorkers) {
+        return Math.min(numWorkers, workerPool.getMaxSize() - 1);
+    }
+    
+    private static void runAll(ExecutorService executor, List<? extends Runnable> workers) throws InterruptedException {
+        for (Runnable worker : workers) {
+            executor.execute(worker);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
     }
     
     private static void setupTables(Connection connection) throws SQLException {
@@ -48,6 +82,20 @@ public class DemoJdbcAutoRandom {
         }
     }
     
+    /** Same shape as auto_random_demo, but filled with ids from AutoRandomIdAllocator. */
+    private static void setupClientIdTable(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS auto_random_client_demo");
+            stmt.execute("""
+                CREATE TABLE auto_random_client_demo (
+                    id BIGINT PRIMARY KEY AUTO_RANDOM,
+                    name VARCHAR(255)
+                )
+                """);
+            System.out.println("Table auto_random_client_demo created for client-side ids.");
+        }
+    }
+    
     private static void showTableDefinition(Connection connection, String tableName) throws SQLException {
         try (Statement stmt = connection.createStatement();
             ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE " + tableName)) {
@@ -59,30 +107,178 @@ public class DemoJdbcAutoRandom {
         }
     }
     
+    /**
+     * Hands out row numbers to benchmark workers until either the row budget
+     * or the deadline is exhausted, whichever comes first.
+     */
+    private static class InsertBudget {
+        private final AtomicLong claimed = new AtomicLong();
+        private final long maxRows;
+        private final long deadlineNanos;
+        
+        public InsertBudget(long maxRows, long durationNanos) {
+            this.maxRows = maxRows > 0 ? maxRows : Long.MAX_VALUE;
+            this.deadlineNanos = durationNanos > 0 ? System.nanoTime() + durationNanos : 0;
+        }
+        
+        /** Returns the next row number to insert, or -1 when the budget is spent. */
+        public long claim() {
+            if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0) {
+                return -1;
+            }
+            long row = claimed.getAndIncrement();
+            return row < maxRows ? row : -1;
+        }
+    }
+    
+    /** Growable primitive buffer for generated keys, so harvesting millions of ids does not box them. */
+    private static class IdBuffer {
+        private long[] ids = new long[256];
+        private int size;
+        
+        public void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        public long[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+    
+    /**
+     * Batch settings for ConcurrentInsertWorker. A batchSize of 1 keeps the original
+     * one executeUpdate per row in autocommit; anything larger uses addBatch/executeBatch
+     * and commits every commitInterval rows (0 means let every batch autocommit).
+     */
+    private static class BatchOptions {
+        private final int batchSize;
+        private final int commitInterval;
+        
+        public BatchOptions(int batchSize, int commitInterval) {
+            this.batchSize = Math.max(1, batchSize);
+            this.commitInterval = Math.max(0, commitInterval);
+        }
+        
+        public boolean batched() {
+            return batchSize > 1;
+        }
+    }
+    
+    /**
+     * One logical writer. Connections come from workerPool: in the plain demo a worker
+     * keeps one for its whole slice of rows, in benchmark mode each task is one transaction
+     * on a borrowed connection, after which the worker queues itself on the executor again.
+     * That way many more writers than threads or connections all take turns.
+     */
     private static class ConcurrentInsertWorker implements Runnable {
         private final String tableName;
         private final List<String> values;
         private final String threadId;
+        private final BatchOptions batchOptions;
+        private final InsertBudget budget;
+        private final LatencyHistogram histogram;
+        private final AtomicLong rowsInserted;
+        private final AtomicLong errors;
+        // Kept only in the plain demo; a benchmark run may insert without bound, so it just counts them
+        private final IdBuffer generatedKeys;
+        private long harvestedKeys;
+        private final AutoRandomIdAllocator idAllocator;
+        private final long[] pendingIds;
+        private int pendingIdCount;
+        private int uncommittedRows;
+        // Benchmark rows sent since the last commit, added to rowsInserted once they are committed
+        private long rowsSinceCommit;
+        private ExecutorService executor;
+        private CountDownLatch finished;
         
-        public ConcurrentInsertWorker(String tableName, List<String> values, String threadId) {
+        public ConcurrentInsertWorker(String tableName, List<String> values, BatchOptions batchOptions, String threadId) {
             this.tableName = tableName;
             this.values = values;
             this.threadId = threadId;
+            this.batchOptions = batchOptions;
+            this.budget = null;
+            this.histogram = null;
+            this.rowsInserted = null;
+            this.errors = null;
+            this.generatedKeys = new IdBuffer();
+            this.idAllocator = null;
+            this.pendingIds = null;
+        }
+        
+        /**
+         * Benchmark mode: insert until the budget runs out, timing every executeUpdate,
+         * or every executeBatch (plus its commit) when batching. With an idAllocator the
+         * worker inserts explicit client-side ids instead of letting the server pick them.
+         */
+        public ConcurrentInsertWorker(String tableName, InsertBudget budget, BatchOptions batchOptions,
+                AutoRandomIdAllocator idAllocator, LatencyHistogram histogram, AtomicLong rowsInserted,
+                AtomicLong errors, String threadId) {
+            this.tableName = tableName;
+            this.values = null;
+            this.threadId = threadId;
+            this.batchOptions = batchOptions;
+            this.budget = budget;
+            this.histogram = histogram;
+            this.rowsInserted = rowsInserted;
+            this.errors = errors;
+            this.generatedKeys = null;
+            this.idAllocator = idAllocator;
+            this.pendingIds = idAllocator == null ? null : new long[batchOptions.batchSize];
+        }
+        
+        /** Benchmark mode: queues the first transaction; finished is counted down once the budget is spent. */
+        public void startBenchmark(ExecutorService executor, CountDownLatch finished) {
+            this.executor = executor;
+            this.finished = finished;
+            executor.execute(this);
+        }
+        
+        /** The ids of every row this worker inserted, in insert order; empty in benchmark mode. */
+        public long[] generatedKeys() {
+            return generatedKeys == null ? new long[0] : generatedKeys.toArray();
         }
+
         
         @Override
         public void run() {
-            try (Connection connection = getConnection()) {
-                String insertStmt = "INSERT INTO " + tableName + " (name) VALUES (?)";
-                try (PreparedStatement pstmt = connection.prepareStatement(insertStmt)) {
+            try {
+                if (budget != null) {
+                    boolean more = false;
+                    try {
+                        more = runBenchmark();
+                    } finally {
+                        if (more) {
+                            executor.execute(this);
+                        } else {
+                            finished.countDown();
+                        }
+                    }
+                    return;
+                }
+                try (Connection connection = workerPool.getConnection();
+                     PreparedStatement pstmt = prepareInsert(connection)) {
+                    if (batchOptions.batched()) {
+                        runBatched(connection, pstmt);
+                        return;
+                    }
                     for (int i = 0; i < values.size(); i++) {
                         pstmt.setString(1, values.get(i));
                         pstmt.executeUpdate();
+                        harvestKeys(pstmt);
+                        countUncommitted(connection, 1);
                         
                         if (i % 5 == 0) { // Print progress every 5 inserts
                             System.out.println("Thread " + threadId + ": Inserted '" + values.get(i) + "' into " + tableName);
                         }
                     }
+                    commitRemaining(connection);
                 }
                 
                 System.out.println("Thread " + threadId + ": Completed all inserts for " + tableName);
@@ -90,9 +286,164 @@ public class DemoJdbcAutoRandom {
                 System.out.println("Thread " + threadId + ": Error inserting into " + tableName + ": " + e.getMessage());
             }
         }
+        
+        private PreparedStatement prepareInsert(Connection connection) throws SQLException {
+            connection.setAutoCommit(batchOptions.commitInterval == 0);
+            if (idAllocator != null) {
+                return connection.prepareStatement("INSERT INTO " + tableName + " (id, name) VALUES (?, ?)");
+            }
+            return connection.prepareStatement("INSERT INTO " + tableName + " (name) VALUES (?)",
+                    Statement.RETURN_GENERATED_KEYS);
+        }
+        
+        private void bindRow(PreparedStatement pstmt, String name) throws SQLException {
+            if (idAllocator == null) {
+                pstmt.setString(1, name);
+                return;
+            }
+            long id = idAllocator.nextId();
+            pendingIds[pendingIdCount++] = id;
+            pstmt.setLong(1, id);
+            pstmt.setString(2, name);
+        }
+        
+        private void runBatched(Connection connection, PreparedStatement pstmt) throws SQLException {
+            int batches = 0;
+            for (int i = 0; i < values.size(); i += batchOptions.batchSize) {
+                int end = Math.min(values.size(), i + batchOptions.batchSize);
+                for (int j = i; j < end; j++) {
+                    pstmt.setString(1, values.get(j));
+                    pstmt.addBatch();
+                }
+                flushBatch(connection, pstmt, end - i);
+                batches++;
+            }
+            commitRemaining(connection);
+            System.out.println("Thread " + threadId + ": Inserted " + values.size() + " rows into " + tableName
+                    + " in " + batches + " batches, " + harvestedKeys + " generated keys harvested");
+        }
+        
+        /** One transaction on a borrowed connection; returns false once the budget is spent. */
+        private boolean runBenchmark() throws SQLException {
+            try (Connection connection = workerPool.getConnection();
+                 PreparedStatement pstmt = prepareInsert(connection)) {
+                return runBenchmarkTransaction(connection, pstmt);
+            }
+        }
+        
+        /** Inserts batches up to the next commit point; returns false once the budget is spent. */
+        private boolean runBenchmarkTransaction(Connection connection, PreparedStatement pstmt) throws SQLException {
+            while (true) {
+                long row = 0;
+                int pending = 0;
+                while (pending < batchOptions.batchSize && (row = budget.claim()) >= 0) {
+                    bindRow(pstmt, threadId + "-" + row);
+                    if (batchOptions.batched()) {
+                        pstmt.addBatch();
+                    }
+                    pending++;
+                }
+                if (pending > 0) {
+                    long start = System.nanoTime();
+                    try {
+                        boolean committed;
+                        if (batchOptions.batched()) {
+                            committed = flushBatch(connection, pstmt, pending);
+                        } else {
+                            pstmt.executeUpdate();
+                            harvestKeys(pstmt);
+                            committed = countUncommitted(connection, 1);
+                        }
+                        histogram.recordSince(start);
+                        rowsSinceCommit += pending;
+                        if (committed) {
+                            countCommitted();
+                            return row >= 0;
+                        }
+                    } catch (SQLException e) {
+                        pstmt.clearBatch();
+                        pendingIdCount = 0;
+                        if (!connection.getAutoCommit()) {
+                            connection.rollback();
+                            uncommittedRows = 0;
+                        }
+                        // Rows of the rolled-back transaction were never inserted
+                        rowsSinceCommit = 0;
+                        if (errors.getAndIncrement() == 0) {
+                            System.out.println("Thread " + threadId + ": Error inserting into " + tableName + ": " + e.getMessage());
+                        }
+                        return row >= 0;
+                    }
+                }
+                if (row < 0) {
+                    commitRemaining(connection);
+                    countCommitted();
+                    return false;
+                }
+            }
+        }
+        
+        private void countCommitted() {
+            rowsInserted.addAndGet(rowsSinceCommit);
+            rowsSinceCommit = 0;
+        }
+        
+        /**
+         * Sends the pending batch and collects the keys the server assigned to it.
+         * TiDB gives all rows of one multi-row INSERT the same shard bits and consecutive
+         * auto-increment bits, so the driver's LAST_INSERT_ID based key list is correct
+         * for AUTO_RANDOM too.
+         */
+        private boolean flushBatch(Connection connection, PreparedStatement pstmt, int rows) throws SQLException {
+            pstmt.executeBatch();
+            harvestKeys(pstmt);
+            return countUncommitted(connection, rows);
+        }
+        
+        /** Commits once commitInterval rows have piled up; returns true when the rows are durable. */
+        private boolean countUncommitted(Connection connection, int rows) throws SQLException {
+            if (batchOptions.commitInterval == 0) {
+                return true;
+            }
+            uncommittedRows += rows;
+            if (uncommittedRows >= batchOptions.commitInterval) {
+                connection.commit();
+                uncommittedRows = 0;
+                return true;
+            }
+            return false;
+        }
+        
+        private void commitRemaining(Connection connection) throws SQLException {
+            if (uncommittedRows > 0) {
+                connection.commit();
+                uncommittedRows = 0;
+            }
+        }
+        
+        private void harvestKeys(PreparedStatement pstmt) throws SQLException {
+            if (idAllocator != null) {
+                // Client-side ids are known before the round trip
+                for (int i = 0; i < pendingIdCount && generatedKeys != null; i++) {
+                    generatedKeys.add(pendingIds[i]);
+                }
+                harvestedKeys += pendingIdCount;
+                pendingIdCount = 0;
+                return;
+            }
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                while (keys.next()) {
+                    long key = keys.getLong(1);
+                    if (generatedKeys != null) {
+                        generatedKeys.add(key);
+                    }
+                    harvestedKeys++;
+                }
+            }
+        }
     }
     
-    private static void insertDataConcurrent(int count, int numThreads) throws InterruptedException {
+    private static void insertDataConcurrent(int count, int numThreads, BatchOptions batchOptions) throws InterruptedException {
         // Generate values for each table
         List<String> autoRandomValues = new ArrayList<>();
         List<String> autoIncrementValues = new ArrayList<>();
@@ -104,112 +455,625 @@ public class DemoJdbcAutoRandom {
         
         // Divide work among threads
         int itemsPerThread = count / numThreads;
-        List<Thread> threads = new ArrayList<>();
+        List<ConcurrentInsertWorker> workers = new ArrayList<>();
         
         System.out.println("\nStarting " + numThreads + " threads to insert " + count + " rows into each table...");
         
-        // Create and start threads for AUTO_RANDOM table
+        // Create workers for AUTO_RANDOM table
         for (int i = 0; i < numThreads; i++) {
             int startIdx = i * itemsPerThread;
             int endIdx = (i < numThreads - 1) ? startIdx + itemsPerThread : count;
             List<String> threadValues = autoRandomValues.subList(startIdx, endIdx);
             
-            Thread thread = new Thread(new ConcurrentInsertWorker("auto_random_demo", threadValues, "AR-" + (i + 1)));
-            threads.add(thread);
-            thread.start();
+            workers.add(new ConcurrentInsertWorker("auto_random_demo", threadValues, batchOptions, "AR-" + (i + 1)));
         }
         
-        // Create and start threads for AUTO_INCREMENT table
+        // Create workers for AUTO_INCREMENT table
         for (int i = 0; i < numThreads; i++) {
             int startIdx = i * itemsPerThread;
             int endIdx = (i < numThreads - 1) ? startIdx + itemsPerThread : count;
             List<String> threadValues = autoIncrementValues.subList(startIdx, endIdx);
             
-            Thread thread = new Thread(new ConcurrentInsertWorker("auto_increment_demo", threadValues, "AI-" + (i + 1)));
-            threads.add(thread);
-            thread.start();
+            workers.add(new ConcurrentInsertWorker("auto_increment_demo", threadValues, batchOptions, "AI-" + (i + 1)));
         }
         
-        // Wait for all threads to complete
-        for (Thread thread : threads) {
-            thread.join();
-        }
+        // Run all workers and wait for them to complete
+        runAll(newWorkerExecutor(workers.size()), workers);
         
         System.out.println("Concurrent insert completed: " + count + " rows inserted into each table using " + numThreads + " threads");
+        
+        // The first numThreads workers wrote auto_random_demo, the rest auto_increment_demo
+        for (int table = 0; table < 2; table++) {
+            long keys = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (ConcurrentInsertWorker worker : workers.subList(table * numThreads, (table + 1) * numThreads)) {
+                for (long id : worker.generatedKeys()) {
+                    keys++;
+                    min = Math.min(min, id);
+                    max = Math.max(max, id);
+                }
+            }
+            System.out.println("Generated keys returned for " + workers.get(table * numThreads).tableName + ": " + keys
+                    + (keys > 0 ? " (min " + min + ", max " + max + ")" : "")
+                    + (keys == count ? "" : ", expected " + count));
+        }
     }
     
-    private static void compareIds(Connection connection) throws SQLException {
-        // Get AUTO_RANDOM IDs
-        List<Long> autoRandomIds = new ArrayList<>();
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT id FROM auto_random_demo ORDER BY id")) {
-            while (rs.next()) {
-                autoRandomIds.add(rs.getLong("id"));
+    /** Outcome of one benchmark run against a single table. */
+    private static class BenchmarkResult {
+        private final String tableName;
+        private final LatencyHistogram histogram;
+        private final long rows;
+        private final long errors;
+        private final long elapsedNanos;
+        
+        public BenchmarkResult(String tableName, LatencyHistogram histogram, long rows, long errors, long elapsedNanos) {
+            this.tableName = tableName;
+            this.histogram = histogram;
+            this.rows = rows;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+    
+    private static BenchmarkResult benchmarkTable(String tableName, String tag, int numThreads, long maxRows,
+            long durationSeconds, BatchOptions batchOptions) throws InterruptedException {
+        return benchmarkTable(tableName, tag, numThreads, maxRows, durationSeconds, batchOptions, null);
+    }
+    
+    private static BenchmarkResult benchmarkTable(String tableName, String tag, int numThreads, long maxRows,
+            long durationSeconds, BatchOptions batchOptions, AutoRandomIdAllocator idAllocator)
+            throws InterruptedException {
+        InsertBudget budget = new InsertBudget(maxRows, TimeUnit.SECONDS.toNanos(durationSeconds));
+        LatencyHistogram histogram = new LatencyHistogram();
+        AtomicLong rowsInserted = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        List<ConcurrentInsertWorker> workers = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(new ConcurrentInsertWorker(tableName, budget, batchOptions, idAllocator, histogram,
+                    rowsInserted, errors, tag + "-" + (i + 1)));
+        }
+        
+        ExecutorService executor = newWorkerExecutor(numThreads);
+        System.out.println("\nBenchmarking " + tableName + " with " + numThreads + " writers on "
+                + (useVirtualThreads ? "virtual" : "platform") + " threads, at most " + inFlight(numThreads)
+                + " transactions in flight on " + workerPool.getMaxSize() + " pooled connections...");
+        CountDownLatch finished = new CountDownLatch(numThreads);
+        long start = System.nanoTime();
+        for (ConcurrentInsertWorker worker : workers) {
+            worker.startBenchmark(executor, finished);
+        }
+        finished.await();
+        executor.shutdown();
+        return new BenchmarkResult(tableName, histogram, rowsInserted.get(), errors.get(), System.nanoTime() - start);
+    }
+    
+    private static void printBenchmarkReport(List<BenchmarkResult> results, int numThreads, BatchOptions batchOptions,
+            boolean json) {
+        if (json) {
+            StringBuilder sb = new StringBuilder("{\"threads\": ").append(numThreads)
+                    .append(", \"in_flight\": ").append(inFlight(numThreads))
+                    .append(", \"batch_size\": ").append(batchOptions.batchSize)
+                    .append(", \"commit_interval\": ").append(batchOptions.commitInterval)
+                    .append(", \"tables\": [");
+            for (int i = 0; i < results.size(); i++) {
+                BenchmarkResult r = results.get(i);
+                sb.append(i == 0 ? "" : ", ")
+                  .append(String.format(Locale.ROOT,
+                        "{\"table\": \"%s\", \"rows\": %d, \"errors\": %d, \"elapsed_s\": %.3f, \"rows_per_s\": %.1f, "
+                        + "\"p50_ms\": %.3f, \"p95_ms\": %.3f, \"p99_ms\": %.3f, \"p999_ms\": %.3f, \"max_ms\": %.3f}",
+                        r.tableName, r.rows, r.errors, r.elapsedNanos / 1e9, r.rowsPerSecond(),
+                        r.histogram.percentileMillis(50), r.histogram.percentileMillis(95),
+                        r.histogram.percentileMillis(99), r.histogram.percentileMillis(99.9),
+                        r.histogram.maxNanos() / 1e6));
+            }
+            System.out.println(sb.append("]}"));
+            return;
+        }
+        
+        System.out.println("\n=== Hotspot benchmark: AUTO_RANDOM vs AUTO_INCREMENT (" + numThreads + " writers per table, "
+                + inFlight(numThreads) + " in flight) ===");
+        if (batchOptions.batched()) {
+            System.out.println("Batch size " + batchOptions.batchSize + ", commit every " + batchOptions.commitInterval
+                    + " rows; latencies are per batch.");
+        }
+        StringBuilder header = new StringBuilder(String.format("%-16s", "metric"));
+        for (BenchmarkResult r : results) {
+            header.append(String.format("%22s", r.tableName));
+        }
+        System.out.println(header);
+        printBenchmarkRow("rows", results, r -> String.valueOf(r.rows));
+        printBenchmarkRow("errors", results, r -> String.valueOf(r.errors));
+        printBenchmarkRow("elapsed (s)", results, r -> String.format(Locale.ROOT, "%.2f", r.elapsedNanos / 1e9));
+        printBenchmarkRow("rows/s", results, r -> String.format(Locale.ROOT, "%.1f", r.rowsPerSecond()));
+        printBenchmarkRow("p50 (ms)", results, r -> String.format(Locale.ROOT, "%.3f", r.histogram.percentileMillis(50)));
+        printBenchmarkRow("p95 (ms)", results, r -> String.format(Locale.ROOT, "%.3f", r.histogram.percentileMillis(95)));
+        printBenchmarkRow("p99 (ms)", results, r -> String.format(Locale.ROOT, "%.3f", r.histogram.percentileMillis(99)));
+        printBenchmarkRow("p999 (ms)", results, r -> String.format(Locale.ROOT, "%.3f", r.histogram.percentileMillis(99.9)));
+        printBenchmarkRow("max (ms)", results, r -> String.format(Locale.ROOT, "%.3f", r.histogram.maxNanos() / 1e6));
+    }
+    
+    private static void printBenchmarkRow(String metric, List<BenchmarkResult> results,
+            Function<BenchmarkResult, String> value) {
+        StringBuilder row = new StringBuilder(String.format("%-16s", metric));
+        for (BenchmarkResult r : results) {
+            row.append(String.format("%22s", value.apply(r)));
+        }
+        System.out.println(row);
+    }
+    
+    private static void printScalingReport(Map<Integer, List<BenchmarkResult>> resultsByWriters) {
+        System.out.println("\n=== Throughput by concurrent writers (" + workerPool.getMaxSize() + " pooled connections, "
+                + (useVirtualThreads ? "virtual" : "platform") + " threads) ===");
+        System.out.println(String.format("%-10s %-10s %-22s %12s %10s %10s %8s", "writers", "in flight", "table", "rows/s",
+                "p50 (ms)", "p99 (ms)", "errors"));
+        for (Map.Entry<Integer, List<BenchmarkResult>> entry : resultsByWriters.entrySet()) {
+            for (BenchmarkResult r : entry.getValue()) {
+                System.out.println(String.format(Locale.ROOT, "%-10d %-10d %-22s %12.1f %10.3f %10.3f %8d", entry.getKey(),
+                        inFlight(entry.getKey()), r.tableName, r.rowsPerSecond(), r.histogram.percentileMillis(50),
+                        r.histogram.percentileMillis(99), r.errors));
+            }
+        }
+    }
+    
+    /**
+     * Bounded-memory summary of how a table's primary keys spread over the 64-bit key space.
+     * AUTO_RANDOM puts the shard bits right under the sign bit, so both the shard histogram
+     * and the high-order-bit histogram show directly whether writes fan out or pile up
+     * at the tail of the table.
+     */
+    private static class IdDistribution {
+        private static final int HIGH_BITS = 8;
+        private static final int SAMPLE_SIZE = 5;
+        
+        private final String tableName;
+        private final int shardBits;
+        private final long[] shardCounts;
+        private final long[] highBitCounts = new long[1 << HIGH_BITS];
+        private final long[] sample = new long[SAMPLE_SIZE];
+        private long count;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        
+        public IdDistribution(String tableName, int shardBits) {
+            this.tableName = tableName;
+            this.shardBits = shardBits;
+            this.shardCounts = new long[1 << shardBits];
+        }
+        
+        public void accept(long[] ids, int n) {
+            int shardShift = 63 - shardBits;
+            int shardMask = (1 << shardBits) - 1;
+            for (int i = 0; i < n; i++) {
+                long id = ids[i];
+                if (count < SAMPLE_SIZE) {
+                    sample[(int) count] = id;
+                }
+                count++;
+                min = Math.min(min, id);
+                max = Math.max(max, id);
+                shardCounts[(int) (id >>> shardShift) & shardMask]++;
+                highBitCounts[(int) (id >>> (63 - HIGH_BITS)) & ((1 << HIGH_BITS) - 1)]++;
+            }
+        }
+        
+        /** Shannon entropy of the counts, scaled so 1.0 means perfectly even and 0.0 means one bucket. */
+        private static double evenness(long[] counts, long total) {
+            if (total == 0 || counts.length < 2) {
+                return 0;
+            }
+            double entropy = 0;
+            for (long c : counts) {
+                if (c > 0) {
+                    double p = (double) c / total;
+                    entropy -= p * Math.log(p);
+                }
+            }
+            return entropy / Math.log(counts.length);
+        }
+        
+        private static int occupied(long[] counts) {
+            int n = 0;
+            for (long c : counts) {
+                if (c > 0) {
+                    n++;
+                }
+            }
+            return n;
+        }
+        
+        private static long largest(long[] counts) {
+            long largest = 0;
+            for (long c : counts) {
+                largest = Math.max(largest, c);
             }
+            return largest;
         }
         
-        // Get AUTO_INCREMENT IDs
-        List<Long> autoIncrementIds = new ArrayList<>();
+        public void print() {
+            System.out.println("\n" + tableName + ": " + count + " rows");
+            if (count == 0) {
+                return;
+            }
+            StringBuilder first = new StringBuilder();
+            for (int i = 0; i < Math.min(count, SAMPLE_SIZE); i++) {
+                first.append(i == 0 ? "" : ", ").append(sample[i]);
+            }
+            System.out.println("  first ids read:      " + first);
+            System.out.println("  min / max:           " + min + " / " + max);
+            System.out.println(String.format(Locale.ROOT, "  key-range spread:    %.6f%% of the positive key space",
+                    (max - (double) min) / Long.MAX_VALUE * 100));
+            System.out.println(String.format(Locale.ROOT,
+                    "  shard bits (%d):      %d/%d shards used, largest shard %.1f%% of rows, evenness %.3f",
+                    shardBits, occupied(shardCounts), shardCounts.length,
+                    largest(shardCounts) * 100.0 / count, evenness(shardCounts, count)));
+            System.out.println(String.format(Locale.ROOT,
+                    "  top %d bits:          %d/%d slices used, largest slice %.1f%% of rows, evenness %.3f",
+                    HIGH_BITS, occupied(highBitCounts), highBitCounts.length,
+                    largest(highBitCounts) * 100.0 / count, evenness(highBitCounts, count)));
+            
+            // Fold the high-order histogram into 16 slices so it fits on a screen
+            int fold = highBitCounts.length / 16;
+            for (int slice = 0; slice < 16; slice++) {
+                long c = 0;
+                for (int j = 0; j < fold; j++) {
+                    c += highBitCounts[slice * fold + j];
+                }
+                int bar = (int) Math.round(c * 40.0 / count);
+                System.out.println(String.format(Locale.ROOT, "    0x%X...  %-40s %6.2f%%",
+                        slice, "#".repeat(bar), c * 100.0 / count));
+            }
+        }
+    }
+    
+    /** Reads the shard bit count from the AUTO_RANDOM(n) clause, or returns the TiDB default of 5. */
+    private static int shardBitsOf(Connection connection, String tableName) throws SQLException {
         try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT id FROM auto_increment_demo ORDER BY id")) {
-            while (rs.next()) {
-                autoIncrementIds.add(rs.getLong("id"));
+             ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE " + tableName)) {
+            if (rs.next()) {
+                Matcher m = Pattern.compile("AUTO_RANDOM\\((\\d+)").matcher(rs.getString(2));
+                if (m.find()) {
+                    return Integer.parseInt(m.group(1));
+                }
+            }
+        }
+        return 5;
+    }
+    
+    /**
+     * Streams every id of the table without sorting it on the server (fetch size
+     * Integer.MIN_VALUE makes Connector/J read row by row instead of buffering the
+     * whole result) into a fixed primitive block, so memory stays constant however
+     * large the table is.
+     */
+    private static IdDistribution analyzeIds(Connection connection, String tableName, int shardBits) throws SQLException {
+        IdDistribution distribution = new IdDistribution(tableName, shardBits);
+        long[] block = new long[4096];
+        int n = 0;
+        try (Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = stmt.executeQuery("SELECT id FROM " + tableName)) {
+                while (rs.next()) {
+                    block[n++] = rs.getLong(1);
+                    if (n == block.length) {
+                        distribution.accept(block, n);
+                        n = 0;
+                    }
+                }
             }
         }
+        distribution.accept(block, n);
+        return distribution;
+    }
+    
+    private static void compareIds(Connection connection, boolean withClientIds) throws SQLException {
+        // Use the AUTO_RANDOM layout for both tables so the numbers are directly comparable
+        int shardBits = shardBitsOf(connection, "auto_random_demo");
         
-        System.out.println("\n=== ID Comparison: AUTO_RANDOM vs AUTO_INCREMENT ===");
+        System.out.println("\n=== ID Distribution: AUTO_RANDOM vs AUTO_INCREMENT ===");
         System.out.println("\nAUTO_RANDOM IDs (distributed to avoid hotspots):");
-        for (Long id : autoRandomIds) {
-            System.out.println(id);
-        }
+        analyzeIds(connection, "auto_random_demo", shardBits).print();
+        printRegionSpread(connection, "auto_random_demo");
         
         System.out.println("\nAUTO_INCREMENT IDs (sequential, can cause hotspots):");
-        for (Long id : autoIncrementIds) {
-            System.out.println(id);
+        analyzeIds(connection, "auto_increment_demo", shardBits).print();
+        printRegionSpread(connection, "auto_increment_demo");
+        
+        if (withClientIds) {
+            System.out.println("\nClient-side AUTO_RANDOM IDs (AutoRandomIdAllocator):");
+            analyzeIds(connection, "auto_random_client_demo", shardBits).print();
+            printRegionSpread(connection, "auto_random_client_demo");
+        }
+    }
+    
+    /**
+     * How many regions the table spans and how evenly they were written. A small table
+     * stays in one region until it grows past the split size, so this only shows a
+     * difference on long runs or tables created with SHARD_ROW_ID_BITS/PRE_SPLIT_REGIONS.
+     */
+    private static void printRegionSpread(Connection connection, String tableName) {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW TABLE " + tableName + " REGIONS")) {
+            int regions = 0;
+            int writtenRegions = 0;
+            long totalWritten = 0;
+            long maxWritten = 0;
+            while (rs.next()) {
+                long written = rs.getLong("WRITTEN_BYTES");
+                regions++;
+                writtenRegions += written > 0 ? 1 : 0;
+                totalWritten += written;
+                maxWritten = Math.max(maxWritten, written);
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "  regions:             %d, %d written recently, busiest region took %.1f%% of written bytes",
+                    regions, writtenRegions, totalWritten == 0 ? 0 : maxWritten * 100.0 / totalWritten));
+        } catch (SQLException e) {
+            System.out.println("  regions:             unavailable (" + e.getMessage() + ")");
+        }
+    }
+    
+    /**
+     * Measures raw AutoRandomIdAllocator throughput with in-process blocks, no database
+     * involved, and shows the shard spread of the ids it produces.
+     */
+    private static void benchmarkAllocator(int numThreads, long idsPerThread, int blockSize)
+            throws SQLException, InterruptedException {
+        AutoRandomIdAllocator allocator = new AutoRandomIdAllocator(5, blockSize, AutoRandomIdAllocator.localBlocks(1));
+        AtomicLong sink = new AtomicLong();
+        List<Runnable> workers = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            workers.add(() -> {
+                long xor = 0;
+                try {
+                    for (long i = 0; i < idsPerThread; i++) {
+                        xor ^= allocator.nextId();
+                    }
+                } catch (SQLException e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+                sink.addAndGet(xor);
+            });
+        }
+        
+        System.out.println("\nAllocating " + idsPerThread + " ids on each of " + numThreads + " threads (block size " + blockSize + ")...");
+        long start = System.nanoTime();
+        runAll(newWorkerExecutor(numThreads), workers);
+        long elapsed = System.nanoTime() - start;
+        long total = idsPerThread * numThreads;
+        System.out.println(String.format(Locale.ROOT, "Allocated %d ids in %.3f s: %.1f million ids/s, %.1f ns per id per thread (checksum %d)",
+                total, elapsed / 1e9, total * 1e3 / elapsed, elapsed * (double) numThreads / total, sink.get()));
+        
+        long[] block = new long[4096];
+        IdDistribution distribution = new IdDistribution("client-side ids (single thread sample)", allocator.getShardBits());
+        for (int i = 0; i < 256; i++) {
+            allocator.nextIds(block, block.length);
+            distribution.accept(block, block.length);
         }
+        distribution.print();
     }
     
     private static void cleanup(Connection connection) throws SQLException {
         try (Statement stmt = connection.createStatement()) {
             stmt.execute("DROP TABLE IF EXISTS auto_random_demo");
             stmt.execute("DROP TABLE IF EXISTS auto_increment_demo");
+            stmt.execute("DROP TABLE IF EXISTS auto_random_client_demo");
             System.out.println("\nCleanup complete. Test tables dropped.");
         }
     }
     
+    private static AutoRandomIdAllocator newClientIdAllocator(Connection connection, int blockSize, String idSequence)
+            throws SQLException {
+        int shardBits = shardBitsOf(connection, "auto_random_client_demo");
+        long first = AutoRandomIdAllocator.firstFreeIncrement(connection, "auto_random_client_demo", shardBits);
+        if (idSequence == null) {
+            return new AutoRandomIdAllocator(shardBits, blockSize, AutoRandomIdAllocator.localBlocks(first));
+        }
+        AutoRandomIdAllocator.prepareSequence(connection, idSequence, blockSize, first);
+        // A worker refills its block while holding a workerPool connection, so refills need their own pool
+        if (sequencePool == null) {
+            sequencePool = JdbcConnectionPool.fromEnv("", 1, 4);
+        }
+        return new AutoRandomIdAllocator(shardBits, blockSize, AutoRandomIdAllocator.sequenceBlocks(sequencePool, idSequence));
+    }
+    
+    private static void printUsage() {
+        System.out.println("Usage: java DemoJdbcAutoRandom [--bench] [options]");
+        System.out.println("  --bench             Run the AUTO_RANDOM vs AUTO_INCREMENT insert benchmark");
+        System.out.println("  --threads N         Concurrent writers per table (default: 5)");
+        System.out.println("  --rows N            Stop after N rows per table (default: 10, or unlimited with --duration)");
+        System.out.println("  --duration S        Stop after S seconds per table");
+        System.out.println("  --format text|json  Benchmark report format (default: text)");
+        System.out.println("  --analyze T1,T2      Only print the id distribution of existing tables, then exit");
+        System.out.println("  --batch-size N      Rows per executeBatch (default: 1, one executeUpdate per row)");
+        System.out.println("  --commit-every N    Commit every N rows when batching (default: 0, autocommit each batch)");
+        System.out.println("  --client-ids        Also benchmark auto_random_client_demo with ids from AutoRandomIdAllocator");
+        System.out.println("  --block-size N      Ids reserved per allocator block (default: 1000)");
+        System.out.println("  --id-sequence NAME  Reserve allocator blocks from this TiDB sequence instead of in-process");
+        System.out.println("  --allocator-bench   Only measure AutoRandomIdAllocator throughput, no database needed");
+        System.out.println("  --virtual           Run each writer on a virtual thread (Java 21+)");
+        System.out.println("  --pool-size N       Pooled connections shared by all writers (default: writers or the largest --scale, at most 64)");
+        System.out.println("  --scale N1,N2,...   Benchmark once per writer count, e.g. 10,100,1000,10000 (default: 10s each)");
+        System.out.println();
+        System.out.println("Examples:");
+        System.out.println("  java DemoJdbcAutoRandom");
+        System.out.println("  java DemoJdbcAutoRandom --bench --threads 32 --duration 60 --format json");
+        System.out.println("  java DemoJdbcAutoRandom --bench --threads 8 --rows 100000 --batch-size 500 --commit-every 5000");
+        System.out.println("  java DemoJdbcAutoRandom --bench --virtual --pool-size 64 --scale 10,100,1000,10000 --duration 30");
+        System.out.println("  java DemoJdbcAutoRandom --bench --client-ids --threads 16 --duration 60 --batch-size 200");
+        System.out.println("  java DemoJdbcAutoRandom --allocator-bench --threads 8 --rows 50000000");
+        System.out.println("  java DemoJdbcAutoRandom --analyze orders,order_items");
+    }
+    
     public static void main(String[] args) {
-        try (Connection connection = getConnection()) {
-            System.out.println("Connected to TiDB: " + connection.getMetaData().getUserName() + 
-                             "@" + connection.getMetaData().getURL());
-            
-            // Set autocommit to false for transactional operations
-            connection.setAutoCommit(false);
-            
-            // Create tables
-            setupTables(connection);
-            connection.commit();
+        boolean bench = false;
+        boolean json = false;
+        int numThreads = 5;  // Number of concurrent threads per table
+        long totalInserts = 10;  // Total number of rows to insert into each table
+        long durationSeconds = 0;
+        boolean rowsGiven = false;
+        int batchSize = 1;
+        int commitInterval = 0;
+        String analyzeTables = null;
+        int poolSize = 0;
+        String scale = null;
+        boolean clientIds = false;
+        boolean allocatorBench = false;
+        int blockSize = 1000;
+        String idSequence = null;
+        
+        // Simple argument parsing
+        for (int i = 0; i < args.length; i++) {
+            if ("--bench".equals(args[i])) {
+                bench = true;
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else if ("--rows".equals(args[i]) && i + 1 < args.length) {
+                totalInserts = Long.parseLong(args[++i]);
+                rowsGiven = true;
+            } else if ("--duration".equals(args[i]) && i + 1 < args.length) {
+                durationSeconds = Long.parseLong(args[++i]);
+            } else if ("--analyze".equals(args[i]) && i + 1 < args.length) {
+                analyzeTables = args[++i];
+            } else if ("--batch-size".equals(args[i]) && i + 1 < args.length) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else if ("--commit-every".equals(args[i]) && i + 1 < args.length) {
+                commitInterval = Integer.parseInt(args[++i]);
+            } else if ("--client-ids".equals(args[i])) {
+                clientIds = true;
+            } else if ("--block-size".equals(args[i]) && i + 1 < args.length) {
+                blockSize = Integer.parseInt(args[++i]);
+            } else if ("--id-sequence".equals(args[i]) && i + 1 < args.length) {
+                idSequence = args[++i];
+            } else if ("--allocator-bench".equals(args[i])) {
+                allocatorBench = true;
+            } else if ("--virtual".equals(args[i])) {
+                useVirtualThreads = true;
+            } else if ("--pool-size".equals(args[i]) && i + 1 < args.length) {
+                poolSize = Integer.parseInt(args[++i]);
+            } else if ("--scale".equals(args[i]) && i + 1 < args.length) {
+                scale = args[++i];
+                bench = true;
+            } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+                json = "json".equalsIgnoreCase(args[++i]);
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+        if (blockSize < 1) {
+            printUsage();
+            System.exit(1);
+        }
+        if (scale != null && durationSeconds == 0 && !rowsGiven) {
+            durationSeconds = 10;
+        }
+        if (durationSeconds > 0 && !rowsGiven) {
+            totalInserts = 0;
+        }
+        if (poolSize <= 0 && scale != null) {
+            poolSize = Math.min(Arrays.stream(scale.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).max().getAsInt(), 64);
+        } else if (poolSize <= 0) {
+            // The plain demo writes to both tables at once
+            poolSize = Math.min(bench ? numThreads : 2 * numThreads, 64);
+        }
+        BatchOptions batchOptions = new BatchOptions(batchSize, commitInterval);
+        
+        if (allocatorBench) {
+            try {
+                benchmarkAllocator(numThreads, rowsGiven ? totalInserts : 10_000_000, blockSize);
+            } catch (SQLException | InterruptedException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            return;
+        }
+        
+        try {
+            // One extra connection for this thread, which keeps its own for the whole run
+            workerPool = newWorkerPool(analyzeTables != null ? 1 : poolSize + 1);
+            try (Connection connection = workerPool.getConnection()) {
+                System.out.println("Connected to TiDB: " + connection.getMetaData().getUserName() + 
+                                 "@" + connection.getMetaData().getURL());
             
-            // Show table definitions
-            showTableDefinition(connection, "auto_increment_demo");
-            showTableDefinition(connection, "auto_random_demo");
+                if (analyzeTables != null) {
+                    for (String table : analyzeTables.split(",")) {
+                        analyzeIds(connection, table, shardBitsOf(connection, table)).print();
+                    }
+                    return;
+                }
             
-            // Insert data using multiple concurrent threads
-            // Adjust these parameters to control the concurrency level and total insert count
-            int numThreads = 5;  // Number of concurrent threads per table
-            int totalInserts = 10;  // Total number of rows to insert into each table
+                // Set autocommit to false for transactional operations
+                connection.setAutoCommit(false);
             
-            insertDataConcurrent(totalInserts, numThreads);
+                // Create tables
+                setupTables(connection);
+                if (clientIds) {
+                    setupClientIdTable(connection);
+                }
+                connection.commit();
             
-            // Compare the IDs
-            compareIds(connection);
+                // Show table definitions
+                showTableDefinition(connection, "auto_increment_demo");
+                showTableDefinition(connection, "auto_random_demo");
             
-            // Cleanup
-            cleanup(connection);
-            connection.commit();
+                if (scale != null) {
+                    Map<Integer, List<BenchmarkResult>> resultsByWriters = new LinkedHashMap<>();
+                    for (String level : scale.split(",")) {
+                        int writers = Integer.parseInt(level.trim());
+                        List<BenchmarkResult> results = new ArrayList<>();
+                        results.add(benchmarkTable("auto_random_demo", "AR", writers, totalInserts, durationSeconds, batchOptions));
+                        results.add(benchmarkTable("auto_increment_demo", "AI", writers, totalInserts, durationSeconds, batchOptions));
+                        resultsByWriters.put(writers, results);
+                        if (json) {
+                            printBenchmarkReport(results, writers, batchOptions, true);
+                        }
+                    }
+                    if (!json) {
+                        printScalingReport(resultsByWriters);
+                    }
+                } else if (bench) {
+                    // Run the tables one after the other so they do not compete for the same cluster
+                    List<BenchmarkResult> results = new ArrayList<>();
+                    results.add(benchmarkTable("auto_random_demo", "AR", numThreads, totalInserts, durationSeconds, batchOptions));
+                    results.add(benchmarkTable("auto_increment_demo", "AI", numThreads, totalInserts, durationSeconds, batchOptions));
+                    if (clientIds) {
+                        results.add(benchmarkTable("auto_random_client_demo", "CR", numThreads, totalInserts, durationSeconds,
+                                batchOptions, newClientIdAllocator(connection, blockSize, idSequence)));
+                    }
+                    printBenchmarkReport(results, numThreads, batchOptions, json);
+                    if (!json) {
+                        compareIds(connection, clientIds);
+                    }
+                } else {
+                    // Insert data using multiple concurrent threads
+                    insertDataConcurrent((int) totalInserts, numThreads, batchOptions);
+                
+                    // Compare the IDs
+                    compareIds(connection, false);
+                }
             
+                // Cleanup
+                cleanup(connection);
+                connection.commit();
+            }
         } catch (SQLException | InterruptedException e) {
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            if (workerPool != null) {
+                if (bench) {
+                    workerPool.printStats();
+                }
+                workerPool.close();
+            }
+            if (sequencePool != null) {
+                sequencePool.close();
+            }
         }
     }
 }
\ No newline at end of file
@@ -1,50 +1,538 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * JDBC parameter: rewriteBatchedStatements=true|false.
+ *
+ * With --sweep, benchmarks every combination of the given load methods (executeBatch,
+ * LOAD DATA LOCAL INFILE, ParallelChunkLoader's adaptive batches, or statements from
+ * MultiRowInsertEncoder), batch sizes, row counts, driver settings, transaction modes
+ * and loader counts, and prints one result row per combination (text, csv or json).
+ * --encoder-bench measures MultiRowInsertEncoder alone, without a database.
  */
 
 public class DemoJdbcBatchInsert {
 
-    public static void printResultSetStringString(String stmtText, Connection connection) {
-        int count = 0;
-        System.out.println("\n/* Executing query: " + stmtText + "; */");
+    private static final String TABLE_NAME = "t1_batchtest";
+    private static final String[] COLUMNS = { "id", "name" };
+
+    /** Bytes per LOAD DATA chunk in load-data cells, whose batch size is the rows per chunk. */
+    static long chunkBytes = LocalInfileLoader.DEFAULT_CHUNK_BYTES;
+
+    /** Commit latency the adaptive method aims for. */
+    static long targetCommitMillis = ParallelChunkLoader.DEFAULT_TARGET_COMMIT_MILLIS;
+
+    /** Checkpoint file for the adaptive method; a trial that finds one resumes instead of truncating. */
+    static Path checkpointFile;
+
+    /** Byte budget per statement in multi-row cells, whose batch size is the rows per statement. */
+    static int maxStatementBytes = 1 << 20;
+
+    /** One combination of the sweep parameters. */
+    static class SweepCell {
+        final String method;
+        final int batchSize;
+        final int rows;
+        final boolean rewrite;
+        final boolean serverPrep;
+        final boolean cachePrep;
+        final long maxAllowedPacket;
+        final boolean explicitTxn;
+        final int loaders;
+
+        SweepCell(String method, int batchSize, int rows, boolean rewrite, boolean serverPrep, boolean cachePrep,
+                long maxAllowedPacket, boolean explicitTxn, int loaders) {
+            this.method = method;
+            this.batchSize = batchSize;
+            this.rows = rows;
+            this.rewrite = rewrite;
+            this.serverPrep = serverPrep;
+            this.cachePrep = cachePrep;
+            this.maxAllowedPacket = maxAllowedPacket;
+            this.explicitTxn = explicitTxn;
+            this.loaders = loaders;
+        }
+
+        String urlParams() {
+            return "&rewriteBatchedStatements=" + rewrite + "&useServerPrepStmts=" + serverPrep
+                    + "&cachePrepStmts=" + cachePrep + (maxAllowedPacket > 0 ? "&maxAllowedPacket=" + maxAllowedPacket : "")
+                    + ("load-data".equals(method) ? "&allowLoadLocalInfile=true" : "");
+        }
+    }
+
+    /** Throughput of every measured trial of a cell, plus the per-batch latency over all of them. */
+    static class CellResult {
+        final SweepCell cell;
+        final double[] rowsPerSecond;
+        final LatencyHistogram batchLatency;
+        final long errors;
+
+        CellResult(SweepCell cell, double[] rowsPerSecond, LatencyHistogram batchLatency, long errors) {
+            this.cell = cell;
+            this.rowsPerSecond = rowsPerSecond.clone();
+            Arrays.sort(this.rowsPerSecond);
+            this.batchLatency = batchLatency;
+            this.errors = errors;
+        }
+
+        double medianRowsPerSecond() {
+            int n = rowsPerSecond.length;
+            return n % 2 == 1 ? rowsPerSecond[n / 2] : (rowsPerSecond[n / 2 - 1] + rowsPerSecond[n / 2]) / 2;
+        }
+
+        double minRowsPerSecond() {
+            return rowsPerSecond[0];
+        }
+
+        double maxRowsPerSecond() {
+            return rowsPerSecond[rowsPerSecond.length - 1];
+        }
+    }
+
+    /**
+     * Every combination of the parameter lists, batch size varying fastest. load-data and adaptive cells only
+     * take the first rewrite, serverPrep and cachePrep value, since those methods are not swept over them.
+     */
+    static List<SweepCell> cartesian(String[] methods, int[] loaderCounts, boolean[] explicitTxns, long[] maxPackets,
+            boolean[] cachePreps, boolean[] serverPreps, boolean[] rewrites, int[] rowCounts, int[] batchSizes) {
+        List<SweepCell> cells = new ArrayList<>();
+        for (String method : methods) {
+            boolean fixedStatements = "load-data".equals(method) || "adaptive".equals(method);
+            boolean[] methodCachePreps = fixedStatements ? new boolean[] { cachePreps[0] } : cachePreps;
+            boolean[] methodServerPreps = fixedStatements ? new boolean[] { serverPreps[0] } : serverPreps;
+            boolean[] methodRewrites = fixedStatements ? new boolean[] { rewrites[0] } : rewrites;
+            for (int loaders : loaderCounts) {
+                for (boolean explicitTxn : explicitTxns) {
+                    for (long maxPacket : maxPackets) {
+                        for (boolean cachePrep : methodCachePreps) {
+                            for (boolean serverPrep : methodServerPreps) {
+                                for (boolean rewrite : methodRewrites) {
+                                    for (int rows : rowCounts) {
+                                        for (int batchSize : batchSizes) {
+                                            cells.add(new SweepCell(method, batchSize, rows, rewrite,
+                                                    serverPrep, cachePrep, maxPacket, explicitTxn, loaders));
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    static CellResult runCell(SweepCell cell, int warmupTrials, int trials) throws SQLException, InterruptedException {
+        try (JdbcConnectionPool pool = JdbcConnectionPool.fromEnv(cell.urlParams(), cell.loaders, cell.loaders)) {
+            ExecutorService loaders = Executors.newFixedThreadPool(cell.loaders);
+            try {
+                if (resuming(cell) && warmupTrials > 0) {
+                    // A warm-up trial would finish the interrupted load, leaving only full reloads to measure
+                    System.err.println("  resuming from " + checkpointFile + ", skipping warm-up");
+                    warmupTrials = 0;
+                }
+                for (int i = 0; i < warmupTrials; i++) {
+                    runTrial(pool, loaders, cell, new LatencyHistogram(), new AtomicLong(), new AtomicLong());
+                }
+                double[] rowsPerSecond = new double[trials];
+                LatencyHistogram batchLatency = new LatencyHistogram();
+                AtomicLong errors = new AtomicLong();
+                for (int i = 0; i < trials; i++) {
+                    AtomicLong committed = new AtomicLong();
+                    long elapsedNanos = runTrial(pool, loaders, cell, batchLatency, errors, committed);
+                    rowsPerSecond[i] = committed.get() / (elapsedNanos / 1e9);
+                }
+                return new CellResult(cell, rowsPerSecond, batchLatency, errors.get());
+            } finally {
+                loaders.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Empties the table, then loads cell.rows rows split over the loaders; returns the elapsed nanoseconds.
+     * Rows that made it into the table are added to committed, so failed batches do not count as throughput.
+     */
+    static long runTrial(JdbcConnectionPool pool, ExecutorService loaders, SweepCell cell, LatencyHistogram batchLatency,
+            AtomicLong errors, AtomicLong committed) throws SQLException, InterruptedException {
+        if (!resuming(cell)) {
+            try (Connection connection = pool.getConnection(); Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("TRUNCATE TABLE " + TABLE_NAME);
+            }
+        }
+        if ("adaptive".equals(cell.method)) {
+            return loadAdaptive(pool, cell, batchLatency, committed);
+        }
+        int perLoader = cell.rows / cell.loaders;
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int l = 0; l < cell.loaders; l++) {
+            int firstId = l * perLoader + 1;
+            int rows = l == cell.loaders - 1 ? cell.rows - l * perLoader : perLoader;
+            futures.add(loaders.submit(() -> {
+                loadRange(pool, cell, firstId, rows, batchLatency, errors, committed);
+                return null;
+            }));
+        }
         try {
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery(stmtText);
-            System.out.println("\tRow#, " + resultSet.getMetaData().getColumnName(1) + ", "
-                    + resultSet.getMetaData().getColumnName(2));
-            while (resultSet.next()) {
-                System.out.println("\t" + (++count) + ") " + resultSet.getString(1) + ", " + resultSet.getString(2));
-            }
-            resultSet.close();
-            statement.close();
-        } catch (SQLException e) {
-            System.out.println("Error: " + e);
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Inserts ids [firstId, firstId + rows) in batches, committing each batch in explicit-transaction mode. */
+    static void loadRange(JdbcConnectionPool pool, SweepCell cell, int firstId, int rows, LatencyHistogram batchLatency,
+            AtomicLong errors, AtomicLong committed) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(!cell.explicitTxn);
+            if ("load-data".equals(cell.method)) {
+                loadRangeInfile(connection, cell, firstId, rows, batchLatency, errors, committed);
+                return;
+            }
+            if ("multi-row".equals(cell.method)) {
+                loadRangeMultiRow(connection, cell, firstId, rows, batchLatency, errors, committed);
+                return;
+            }
+            try (PreparedStatement ps = connection.prepareStatement("INSERT INTO " + TABLE_NAME + " VALUES (?, ?)")) {
+                int end = firstId + rows;
+                for (int batchStart = firstId; batchStart < end; batchStart += cell.batchSize) {
+                    int batchEnd = Math.min(batchStart + cell.batchSize, end);
+                    for (int id = batchStart; id < batchEnd; id++) {
+                        ps.setInt(1, id);
+                        ps.setString(2, Integer.toString(id));
+                        ps.addBatch();
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        ps.executeBatch();
+                        if (cell.explicitTxn) {
+                            connection.commit();
+                        }
+                        batchLatency.recordSince(start);
+                        committed.addAndGet(batchEnd - batchStart);
+                    } catch (SQLException e) {
+                        errors.incrementAndGet();
+                        ps.clearBatch();
+                        if (cell.explicitTxn) {
+                            connection.rollback();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static boolean resuming(SweepCell cell) {
+        return "adaptive".equals(cell.method) && checkpointFile != null && Files.exists(checkpointFile);
+    }
+
+    /**
+     * All cell.rows rows through one ParallelChunkLoader with cell.loaders writers; returns the elapsed nanoseconds.
+     * When resuming from the checkpoint, only the rows loaded by this run are added to committed.
+     */
+    static long loadAdaptive(JdbcConnectionPool pool, SweepCell cell, LatencyHistogram commitLatency,
+            AtomicLong committed) throws SQLException, InterruptedException {
+        ParallelChunkLoader<Integer> loader = new ParallelChunkLoader<>(pool,
+                "INSERT IGNORE INTO " + TABLE_NAME + " VALUES (?, ?)", (ps, id) -> {
+                    ps.setInt(1, id);
+                    ps.setString(2, Integer.toString(id));
+                }, cell.loaders, cell.batchSize, targetCommitMillis);
+        loader.setCheckpointFile(checkpointFile);
+        int[] nextId = new int[1];
+        ParallelChunkLoader.LoadResult result = loader.load(new ParallelChunkLoader.RowSource<Integer>() {
+            @Override
+            public void seek(long ordinal) {
+                nextId[0] = (int) ordinal + 1;
+            }
+
+            @Override
+            public Integer next() {
+                return nextId[0] <= cell.rows ? nextId[0]++ : null;
+            }
+        });
+        commitLatency.add(result.commitLatency);
+        committed.addAndGet(result.rows);
+        System.err.println("  " + result);
+        return result.elapsedNanos;
+    }
+
+    /** Same rows as loadRange, as multi-row INSERT statements of at most cell.batchSize rows or maxStatementBytes. */
+    static void loadRangeMultiRow(Connection connection, SweepCell cell, int firstId, int rows,
+            LatencyHistogram statementLatency, AtomicLong errors, AtomicLong committed) throws SQLException {
+        StringBuilder name = new StringBuilder();
+        try (Statement stmt = connection.createStatement()) {
+            MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert(TABLE_NAME, COLUMNS, maxStatementBytes,
+                    cell.batchSize, (sql, count) -> {
+                        long start = System.nanoTime();
+                        try {
+                            stmt.executeUpdate(sql);
+                            if (cell.explicitTxn) {
+                                connection.commit();
+                            }
+                            statementLatency.recordSince(start);
+                            committed.addAndGet(count);
+                        } catch (SQLException e) {
+                            errors.incrementAndGet();
+                            if (cell.explicitTxn) {
+                                connection.rollback();
+                            }
+                        }
+                    });
+            for (int id = firstId; id < firstId + rows; id++) {
+                name.setLength(0);
+                encoder.beginRow();
+                encoder.value(id);
+                encoder.value(name.append(id));
+                encoder.endRow();
+            }
+            encoder.flush();
         }
     }
 
+    /**
+     * Encoding cost of MultiRowInsertEncoder against building the same statements with
+     * StringBuilder and String escaping, in ns and allocated bytes per row. No database needed.
+     */
+    static void benchmarkEncoder(int rows, int rowsPerStatement) throws SQLException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long[] sink = new long[1];
+        MultiRowInsertEncoder.StatementSink discard = (sql, count) -> sink[0] += sql.length();
+        StringBuilder name = new StringBuilder();
+        System.out.println(String.format("%-14s %6s %12s %14s %12s", "encoder", "round", "ns/row", "alloc B/row",
+                "MB/s"));
+        for (int round = -3; round < 5; round++) {
+            // Negative rounds are warm-up, to get both paths compiled before measuring
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert(TABLE_NAME, COLUMNS, maxStatementBytes,
+                    rowsPerStatement, discard);
+            for (int id = 0; id < rows; id++) {
+                name.setLength(0);
+                encoder.beginRow();
+                encoder.value(id);
+                encoder.value(name.append("name-").append(id).append(" it's"));
+                encoder.endRow();
+            }
+            encoder.flush();
+            printEncoderRound("byte buffer", round, rows, System.nanoTime() - start,
+                    threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated, encoder.bytes());
+
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            long bytes = 0;
+            StringBuilder sql = new StringBuilder();
+            for (int id = 0; id < rows; id++) {
+                if (id % rowsPerStatement == 0) {
+                    if (sql.length() > 0) {
+                        String statement = sql.toString();
+                        sink[0] += statement.length();
+                        bytes += statement.length();
+                    }
+                    sql.setLength(0);
+                    sql.append("INSERT INTO ").append(TABLE_NAME).append(" (id, name) VALUES ");
+                } else {
+                    sql.append(',');
+                }
+                String value = "name-" + id + " it's";
+                sql.append('(').append(id).append(",'")
+                        .append(value.replace("\\", "\\\\").replace("'", "\\'")).append("')");
+            }
+            String statement = sql.toString();
+            sink[0] += statement.length();
+            bytes += statement.length();
+            printEncoderRound("StringBuilder", round, rows, System.nanoTime() - start,
+                    threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated, bytes);
+        }
+        // Using the result keeps the JIT from dropping the statements as dead code
+        System.out.println(sink[0] + " chars encoded in total");
+    }
+
+    private static void printEncoderRound(String encoder, int round, int rows, long nanos, long allocated, long bytes) {
+        if (round < 0) {
+            return;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-14s %6d %12.1f %14.1f %12.1f", encoder, round,
+                (double) nanos / rows, (double) allocated / rows, bytes / (nanos / 1e9) / (1 << 20)));
+    }
+
+    /** Same rows as loadRange, streamed through LOAD DATA LOCAL INFILE in chunks of cell.batchSize rows. */
+    static void loadRangeInfile(Connection connection, SweepCell cell, int firstId, int rows,
+            LatencyHistogram chunkLatency, AtomicLong errors, AtomicLong committed) throws SQLException {
+        int end = firstId + rows;
+        StringBuilder name = new StringBuilder();
+        int[] nextId = { firstId };
+        LocalInfileLoader loader = LocalInfileLoader.tsv(cell.batchSize, chunkBytes);
+        LocalInfileLoader.RowProducer producer = row -> {
+            if (nextId[0] >= end) {
+                return false;
+            }
+            int id = nextId[0]++;
+            name.setLength(0);
+            row.field(id);
+            row.field(name.append(id));
+            return true;
+        };
+        long loaded = loader.load(connection, TABLE_NAME, COLUMNS, producer, chunkLatency);
+        committed.addAndGet(loaded);
+        if (loaded < rows) {
+            // LOAD DATA turns bad rows into warnings instead of failing
+            errors.addAndGet(rows - loaded);
+        }
+    }
+
+    static void printSweep(List<CellResult> results, String format) {
+        if ("json".equalsIgnoreCase(format)) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < results.size(); i++) {
+                CellResult r = results.get(i);
+                SweepCell c = r.cell;
+                sb.append(i == 0 ? "\n  " : ",\n  ").append(String.format(Locale.ROOT,
+                        "{\"method\": \"%s\", \"batch_size\": %d, \"rows\": %d, \"rewrite\": %b, \"server_prep\": %b, \"cache_prep\": %b, "
+                        + "\"max_allowed_packet\": %d, \"txn\": \"%s\", \"loaders\": %d, \"trials\": %d, "
+                        + "\"rows_per_s\": %.1f, \"rows_per_s_min\": %.1f, \"rows_per_s_max\": %.1f, "
+                        + "\"p50_ms\": %.3f, \"p95_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f, \"errors\": %d}",
+                        c.method, c.batchSize, c.rows, c.rewrite, c.serverPrep, c.cachePrep, c.maxAllowedPacket,
+                        c.explicitTxn ? "explicit" : "auto", c.loaders, r.rowsPerSecond.length,
+                        r.medianRowsPerSecond(), r.minRowsPerSecond(), r.maxRowsPerSecond(),
+                        r.batchLatency.percentileMillis(50), r.batchLatency.percentileMillis(95),
+                        r.batchLatency.percentileMillis(99), r.batchLatency.maxNanos() / 1e6, r.errors));
+            }
+            System.out.println(sb.append("\n]"));
+            return;
+        }
+        boolean csv = "csv".equalsIgnoreCase(format);
+        String headerFormat = csv ? "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s"
+                : "%-9s %7s %9s %7s %7s %7s %10s %8s %7s %12s %12s %12s %9s %9s %9s %9s %6s";
+        String rowFormat = csv ? "%s,%d,%d,%b,%b,%b,%d,%s,%d,%.1f,%.1f,%.1f,%.3f,%.3f,%.3f,%.3f,%d"
+                : "%-9s %7d %9d %7b %7b %7b %10d %8s %7d %12.1f %12.1f %12.1f %9.3f %9.3f %9.3f %9.3f %6d";
+        System.out.println(String.format(headerFormat, "method", "batch", "rows", "rewrite", "srvprep", "cache", "maxpacket",
+                "txn", "loaders", "rows_per_s", "min_rows_s", "max_rows_s", "p50_ms", "p95_ms", "p99_ms", "max_ms",
+                "errors"));
+        for (CellResult r : results) {
+            SweepCell c = r.cell;
+            System.out.println(String.format(Locale.ROOT, rowFormat, c.method, c.batchSize, c.rows, c.rewrite, c.serverPrep,
+                    c.cachePrep, c.maxAllowedPacket, c.explicitTxn ? "explicit" : "auto", c.loaders,
+                    r.medianRowsPerSecond(), r.minRowsPerSecond(), r.maxRowsPerSecond(),
+                    r.batchLatency.percentileMillis(50), r.batchLatency.percentileMillis(95),
+                    r.batchLatency.percentileMillis(99), r.batchLatency.maxNanos() / 1e6, r.errors));
+        }
+    }
+
+    static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+
+    static boolean[] parseBooleans(String list) {
+        String[] parts = list.split(",");
+        boolean[] values = new boolean[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Boolean.parseBoolean(parts[i].trim());
+        }
+        return values;
+    }
+
+    /** Sizes such as 65536, 4M or 64K; 0 keeps the driver default. */
+    static long[] parseSizes(String list) {
+        return Arrays.stream(list.split(",")).mapToLong(s -> {
+            String size = s.trim().toUpperCase(Locale.ROOT);
+            long unit = size.endsWith("K") ? 1 << 10 : size.endsWith("M") ? 1 << 20 : size.endsWith("G") ? 1 << 30 : 1;
+            return Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+        }).toArray();
+    }
+
+    static boolean[] parseTxnModes(String list) {
+        String[] parts = list.split(",");
+        boolean[] explicit = new boolean[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            explicit[i] = "explicit".equalsIgnoreCase(parts[i].trim());
+        }
+        return explicit;
+    }
+
+    static String[] parseMethods(String list) {
+        String[] methods = list.split(",");
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = methods[i].trim().toLowerCase(Locale.ROOT);
+            if (!Arrays.asList("batch", "load-data", "adaptive", "multi-row").contains(methods[i])) {
+                throw new IllegalArgumentException("Unknown load method: " + methods[i]);
+            }
+        }
+        return methods;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java DemoJdbcBatchInsert [--sweep] [options]");
+        System.out.println("  --sweep                 Benchmark every combination of the options below");
+        System.out.println("  --method M1,M2          batch (executeBatch), load-data (LOAD DATA LOCAL INFILE) and/or");
+        System.out.println("                          adaptive (ParallelChunkLoader, batch size = initial size) and/or");
+        System.out.println("                          multi-row (MultiRowInsertEncoder, batch size = rows per statement) (default: batch)");
+        System.out.println("  --statement-bytes S     Byte budget per multi-row statement (default: 1M)");
+        System.out.println("  --target-ms N           Commit latency the adaptive method aims for (default: 250)");
+        System.out.println("  --checkpoint FILE       Adaptive method only: resume from FILE if present, instead of truncating");
+        System.out.println("  --batch-size N1,N2      Rows per executeBatch, or per LOAD DATA chunk (default: 100,1000)");
+        System.out.println("  --chunk-bytes S         Also end a LOAD DATA chunk after about this many bytes (default: 32M)");
+        System.out.println("  --rows N1,N2            Rows per trial (default: 10000)");
+        System.out.println("  --rewrite B1,B2         rewriteBatchedStatements (default: true,false)");
+        System.out.println("  --server-prep B1,B2     useServerPrepStmts (default: true)");
+        System.out.println("  --cache-prep B1,B2      cachePrepStmts (default: true)");
+        System.out.println("                          load-data and adaptive only run the first value of these three");
+        System.out.println("  --max-packet S1,S2      maxAllowedPacket, e.g. 4M,64M (default: 0, driver default)");
+        System.out.println("  --txn auto,explicit     autocommit (one commit per statement sent), or commit each batch explicitly (default: auto)");
+        System.out.println("  --loaders N1,N2         Parallel loaders, each on its own connection (default: 1)");
+        System.out.println("  --warmup N              Unmeasured trials per combination (default: 1)");
+        System.out.println("  --trials N              Measured trials per combination (default: 3)");
+        System.out.println("  --format text|csv|json  Results table format (default: text)");
+        System.out.println("  --encoder-bench         Only measure multi-row statement encoding (first --rows, --batch-size), no database needed");
+        System.out.println();
+        System.out.println("Examples:");
+        System.out.println("  java DemoJdbcBatchInsert --sweep --batch-size 50,200,1000 --rows 100000 --loaders 1,4,16 --format csv");
+        System.out.println("  java DemoJdbcBatchInsert --sweep --method batch,load-data --batch-size 1000,100000 --rows 1000000 --rewrite true");
+        System.out.println("  java DemoJdbcBatchInsert --sweep --method batch,multi-row --batch-size 500,5000 --rewrite true --statement-bytes 4M");
+        System.out.println("  java DemoJdbcBatchInsert --encoder-bench --rows 1000000 --batch-size 1000");
+        System.out.println("  java DemoJdbcBatchInsert --sweep --method adaptive --rewrite true --loaders 8 --rows 10000000 --trials 1 --warmup 0 --checkpoint load.ckpt");
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0) {
+            sweepMain(args);
+            return;
+        }
+
+        JdbcConnectionPool pool = null;
         Connection connection = null;
 
         try {
             for (String flag : new String[] { "true", "false" }) {
-                String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-                int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-                String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-                String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-                String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-
-                String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3" + "&useServerPrepStmts=true&cachePrepStmts=true&&rewriteBatchedStatements=" + flag ;
-                connection = DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword);
-                
+                if (pool != null) {
+                    connection.close();
+                    pool.close();
+                }
+                pool = JdbcConnectionPool.fromEnv("&useServerPrepStmts=true&cachePrepStmts=true&rewriteBatchedStatements=" + flag, 1, 1);
+                connection = pool.getConnection();
+
                 System.out.println("Connection established.");
-            
+
                 // Prepare the table in the connection
                 String sqlDropTable = "DROP TABLE IF EXISTS t1_batchtest";
                 String sqlCreateTable = "CREATE TABLE t1_batchtest (id int primary key, name char(30))";
@@ -58,20 +546,21 @@ public class DemoJdbcBatchInsert {
                 }
                 // Batch PS
                 connection.setAutoCommit(true);
-                PreparedStatement insert1_ps = connection.prepareStatement("INSERT INTO t1_batchtest VALUES (?, ?)");
-                System.out.println(">>> Begin insert 1000 rows.");
-                long s1 = System.currentTimeMillis();
-                for (int i = 1; i < 1001; i++) {
-                    insert1_ps.setInt(1, i);
-                    insert1_ps.setString(2, Integer.toString(i));
-                    // Adding batch to prepared statement:
-                    insert1_ps.addBatch();
+                try (PreparedStatement insert1_ps = connection.prepareStatement("INSERT INTO t1_batchtest VALUES (?, ?)")) {
+                    System.out.println(">>> Begin insert 1000 rows.");
+                    long s1 = System.nanoTime();
+                    for (int i = 1; i < 1001; i++) {
+                        insert1_ps.setInt(1, i);
+                        insert1_ps.setString(2, Integer.toString(i));
+                        // Adding batch to prepared statement:
+                        insert1_ps.addBatch();
+                    }
+                    // Executing the batch:
+                    insert1_ps.executeBatch();
+                    System.out.println(String.format(Locale.ROOT,
+                            ">>> End batch insert,rewriteBatchedStatements=%s,elapsed: %.3f (ms).", flag,
+                            (System.nanoTime() - s1) / 1e6));
                 }
-                // Executing the batch:
-                insert1_ps.executeBatch();
-                System.out.println(
-                        ">>> End batch insert,rewriteBatchedStatements=" + flag + ",elapsed: "
-                                + Long.toString(System.currentTimeMillis() - s1) + " (ms).");
             }
         } catch (SQLException e) {
             System.out.println("Error: " + e);
@@ -88,7 +577,7 @@ public class DemoJdbcBatchInsert {
             if (connection != null) {
                 try {
                     // Check the battle field
-                    printResultSetStringString("select count(*), max(name) from test.t1_batchtest", connection);
+                    JdbcResultPrinter.printQuery("select count(*), max(name) from test.t1_batchtest", connection);
                     // Turn on autocommit
                     connection.setAutoCommit(true);
                     System.out.println("Turn on autocommit.");
@@ -100,6 +589,108 @@ public class DemoJdbcBatchInsert {
             } else {
                 System.out.println("Already disconnected.");
             }
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    private static void sweepMain(String[] args) {
+        String[] methods = { "batch" };
+        int[] batchSizes = { 100, 1000 };
+        int[] rowCounts = { 10_000 };
+        boolean[] rewrites = { true, false };
+        boolean[] serverPreps = { true };
+        boolean[] cachePreps = { true };
+        long[] maxPackets = { 0 };
+        boolean[] explicitTxns = { false };
+        int[] loaderCounts = { 1 };
+        int warmupTrials = 1;
+        int trials = 3;
+        String format = "text";
+        boolean sweep = false;
+        boolean encoderBench = false;
+
+        // Simple argument parsing
+        for (int i = 0; i < args.length; i++) {
+            if ("--sweep".equals(args[i])) {
+                sweep = true;
+            } else if ("--encoder-bench".equals(args[i])) {
+                encoderBench = true;
+            } else if ("--statement-bytes".equals(args[i]) && i + 1 < args.length) {
+                maxStatementBytes = (int) parseSizes(args[++i])[0];
+            } else if ("--method".equals(args[i]) && i + 1 < args.length) {
+                methods = parseMethods(args[++i]);
+            } else if ("--target-ms".equals(args[i]) && i + 1 < args.length) {
+                targetCommitMillis = Long.parseLong(args[++i]);
+            } else if ("--checkpoint".equals(args[i]) && i + 1 < args.length) {
+                checkpointFile = Paths.get(args[++i]);
+            } else if ("--chunk-bytes".equals(args[i]) && i + 1 < args.length) {
+                chunkBytes = parseSizes(args[++i])[0];
+            } else if ("--batch-size".equals(args[i]) && i + 1 < args.length) {
+                batchSizes = parseInts(args[++i]);
+            } else if ("--rows".equals(args[i]) && i + 1 < args.length) {
+                rowCounts = parseInts(args[++i]);
+            } else if ("--rewrite".equals(args[i]) && i + 1 < args.length) {
+                rewrites = parseBooleans(args[++i]);
+            } else if ("--server-prep".equals(args[i]) && i + 1 < args.length) {
+                serverPreps = parseBooleans(args[++i]);
+            } else if ("--cache-prep".equals(args[i]) && i + 1 < args.length) {
+                cachePreps = parseBooleans(args[++i]);
+            } else if ("--max-packet".equals(args[i]) && i + 1 < args.length) {
+                maxPackets = parseSizes(args[++i]);
+            } else if ("--txn".equals(args[i]) && i + 1 < args.length) {
+                explicitTxns = parseTxnModes(args[++i]);
+            } else if ("--loaders".equals(args[i]) && i + 1 < args.length) {
+                loaderCounts = parseInts(args[++i]);
+            } else if ("--warmup".equals(args[i]) && i + 1 < args.length) {
+                warmupTrials = Integer.parseInt(args[++i]);
+            } else if ("--trials".equals(args[i]) && i + 1 < args.length) {
+                trials = Integer.parseInt(args[++i]);
+            } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+                format = args[++i];
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+        if (encoderBench) {
+            try {
+                benchmarkEncoder(rowCounts[0], batchSizes[0]);
+            } catch (SQLException e) {
+                System.out.println("Error: " + e);
+            }
+            return;
+        }
+        if (!sweep || trials < 1) {
+            printUsage();
+            System.exit(1);
+        }
+
+        List<SweepCell> cells = cartesian(methods, loaderCounts, explicitTxns, maxPackets, cachePreps, serverPreps, rewrites,
+                rowCounts, batchSizes);
+        List<CellResult> results = new ArrayList<>();
+        try {
+            try (JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("", 1, 1);
+                 Connection connection = pool.getConnection();
+                 Statement stmt = connection.createStatement()) {
+                if (checkpointFile == null || !Files.exists(checkpointFile)) {
+                    stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE_NAME);
+                }
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (id int primary key, name char(30))");
+            }
+            for (int i = 0; i < cells.size(); i++) {
+                SweepCell cell = cells.get(i);
+                // Progress goes to stderr so stdout stays a clean csv/json document
+                System.err.println("Running " + (i + 1) + "/" + cells.size() + ": " + cell.method + ", "
+                        + cell.urlParams().substring(1)
+                        + ", batch " + cell.batchSize + ", rows " + cell.rows + ", "
+                        + (cell.explicitTxn ? "explicit" : "auto") + " txn, " + cell.loaders + " loader(s)");
+                results.add(runCell(cell, warmupTrials, trials));
+            }
+        } catch (SQLException | InterruptedException e) {
+            System.out.println("Error: " + e);
         }
+        printSweep(results, format);
     }
-}
\ No newline at end of file
+}
@@ -1,23 +1,293 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
+/**
+ * Without arguments: open one pooled connection and close it again.
+ * With --bench: measure how long it takes to get from nothing to a first query result.
+ */
 public class DemoJdbcConnectionServerless {
+
+    // Driver settings compared by the benchmark; appended to the URL built by JdbcConnectionPool
+    private static final Map<String, String> DRIVER_VARIANTS = new LinkedHashMap<>();
+    static {
+        DRIVER_VARIANTS.put("baseline", "");
+        DRIVER_VARIANTS.put("useLocalSessionState", "&useLocalSessionState=true");
+        DRIVER_VARIANTS.put("cacheServerConfiguration", "&cacheServerConfiguration=true");
+        DRIVER_VARIANTS.put("tuned", "&useLocalSessionState=true&useLocalTransactionState=true&cacheServerConfiguration=true");
+    }
+
+    /**
+     * Times the phases the driver hides inside getConnection(): TCP connect, the server
+     * greeting, and the TLS handshake that MySQL starts after an SSLRequest packet.
+     * The socket is dropped right after the handshake, before authentication.
+     */
+    static class HandshakeProbe {
+        private static final int CLIENT_LONG_PASSWORD = 0x1;
+        private static final int CLIENT_PROTOCOL_41 = 0x200;
+        private static final int CLIENT_SSL = 0x800;
+        private static final int CLIENT_SECURE_CONNECTION = 0x8000;
+        private static final int CLIENT_PLUGIN_AUTH = 0x80000;
+        private static final int UTF8MB4_GENERAL_CI = 45;
+
+        long tcpNanos;
+        long greetingNanos;
+        long tlsNanos;
+        byte[] tlsSessionId;
+
+        static HandshakeProbe run(String host, int port, SSLContext sslContext) throws IOException {
+            HandshakeProbe probe = new HandshakeProbe();
+            try (Socket socket = new Socket()) {
+                socket.setTcpNoDelay(true);
+                long start = System.nanoTime();
+                socket.connect(new InetSocketAddress(host, port), 10_000);
+                probe.tcpNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] header = new byte[4];
+                in.readFully(header);
+                int length = (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16;
+                in.readFully(new byte[length]);
+                probe.greetingNanos = System.nanoTime() - start;
+
+                if (sslContext == null) {
+                    return probe;
+                }
+                start = System.nanoTime();
+                OutputStream out = socket.getOutputStream();
+                byte[] sslRequest = new byte[4 + 32];
+                sslRequest[0] = 32;
+                sslRequest[3] = (byte) (header[3] + 1); // sequence id follows the greeting
+                int capabilities = CLIENT_LONG_PASSWORD | CLIENT_PROTOCOL_41 | CLIENT_SSL | CLIENT_SECURE_CONNECTION
+                        | CLIENT_PLUGIN_AUTH;
+                for (int i = 0; i < 4; i++) {
+                    sslRequest[4 + i] = (byte) (capabilities >>> (8 * i));
+                }
+                sslRequest[8 + 3] = 0x01; // max packet size 16 MB
+                sslRequest[12] = UTF8MB4_GENERAL_CI;
+                out.write(sslRequest);
+                out.flush();
+
+                SSLSocket tls = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, true);
+                SSLParameters params = tls.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                params.setProtocols(new String[] { "TLSv1.2", "TLSv1.3" });
+                tls.setSSLParameters(params);
+                tls.startHandshake();
+                probe.tlsNanos = System.nanoTime() - start;
+                probe.tlsSessionId = tls.getSession().getId();
+                tls.close();
+            }
+            return probe;
+        }
+    }
+
+    /** Opens a connection with plain DriverManager (no pool) and runs a first query, timing both. */
+    private static long[] connectAndQuery(String url) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = DriverManager.getConnection(url, JdbcConnectionPool.user(), JdbcConnectionPool.password())) {
+            long connected = System.nanoTime();
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT 1")) {
+                rs.next();
+            }
+            long queried = System.nanoTime();
+            return new long[] { connected - start, queried - connected };
+        }
+    }
+
+    private static void printPhase(String phase, LatencyHistogram h) {
+        System.out.println(String.format(Locale.ROOT, "  %-42s %6d %10.2f %10.2f %10.2f %10.2f", phase, h.count(),
+                h.percentileMillis(50), h.percentileMillis(95), h.percentileMillis(99), h.maxNanos() / 1e6));
+    }
+
+    private static void printPhaseHeader(String title) {
+        System.out.println("\n" + title);
+        System.out.println(String.format("  %-42s %6s %10s %10s %10s %10s", "phase", "n", "p50 (ms)", "p95 (ms)",
+                "p99 (ms)", "max (ms)"));
+    }
+
+    private static SSLContext newSslContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        return context;
+    }
+
+    /**
+     * Sequential samples of every phase. A shared SSLContext keeps the JSSE session cache
+     * between probes, so its handshakes can resume; a fresh one per probe never can.
+     */
+    private static void benchmarkSequential(int samples) throws Exception {
+        String host = JdbcConnectionPool.host();
+        int port = JdbcConnectionPool.port();
+        boolean ssl = JdbcConnectionPool.useSsl();
+
+        LatencyHistogram tcp = new LatencyHistogram();
+        LatencyHistogram greeting = new LatencyHistogram();
+        LatencyHistogram tlsFresh = new LatencyHistogram();
+        LatencyHistogram tlsShared = new LatencyHistogram();
+        int resumed = 0;
+        SSLContext shared = ssl ? newSslContext() : null;
+        byte[] lastSessionId = null;
+        for (int i = 0; i < samples; i++) {
+            HandshakeProbe fresh = HandshakeProbe.run(host, port, ssl ? newSslContext() : null);
+            tcp.record(fresh.tcpNanos);
+            greeting.record(fresh.greetingNanos);
+            if (ssl) {
+                tlsFresh.record(fresh.tlsNanos);
+                HandshakeProbe reused = HandshakeProbe.run(host, port, shared);
+                tcp.record(reused.tcpNanos);
+                greeting.record(reused.greetingNanos);
+                tlsShared.record(reused.tlsNanos);
+                if (lastSessionId != null && reused.tlsSessionId.length > 0 && Arrays.equals(lastSessionId, reused.tlsSessionId)) {
+                    resumed++;
+                }
+                lastSessionId = reused.tlsSessionId;
+            }
+        }
+
+        printPhaseHeader("=== Connection phases, " + samples + " sequential samples against " + host + ":" + port + " ===");
+        printPhase("TCP connect", tcp);
+        printPhase("server greeting", greeting);
+        if (ssl) {
+            printPhase("TLS handshake, new SSLContext each time", tlsFresh);
+            printPhase("TLS handshake, shared SSLContext", tlsShared);
+            System.out.println("  (" + resumed + " of " + (samples - 1) + " shared-context handshakes reused the previous"
+                    + " session id; TLS 1.3 resumption uses tickets and is only visible in the timings)");
+        }
+
+        long baselineConnectNanos = 0;
+        for (Map.Entry<String, String> variant : DRIVER_VARIANTS.entrySet()) {
+            String url = JdbcConnectionPool.connectionUrl(variant.getValue());
+            LatencyHistogram connect = new LatencyHistogram();
+            LatencyHistogram firstQuery = new LatencyHistogram();
+            for (int i = 0; i < samples; i++) {
+                long[] t = connectAndQuery(url);
+                connect.record(t[0]);
+                firstQuery.record(t[1]);
+            }
+            if (baselineConnectNanos == 0) {
+                baselineConnectNanos = connect.percentileNanos(50);
+            }
+            printPhase("getConnection [" + variant.getKey() + "]", connect);
+            printPhase("first query [" + variant.getKey() + "]", firstQuery);
+        }
+        // The driver does not expose its own phase timings, so derive auth and session setup from the medians
+        long handshakeNanos = tcp.percentileNanos(50) + greeting.percentileNanos(50) + tlsFresh.percentileNanos(50);
+        System.out.println(String.format(Locale.ROOT, "  %-42s %6s %10.2f", "auth + session setup (estimated)", "",
+                Math.max(0, baselineConnectNanos - handshakeNanos) / 1e6));
+    }
+
+    /**
+     * Opens burst connections at the same instant, like pods reconnecting after a deploy,
+     * and records each one's time from release to first query result.
+     */
+    private static void benchmarkStorm(int burst, String variant) throws InterruptedException {
+        String url = JdbcConnectionPool.connectionUrl(DRIVER_VARIANTS.get(variant));
+        LatencyHistogram timeToFirstQuery = new LatencyHistogram();
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(burst);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < burst; i++) {
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    long start = System.nanoTime();
+                    connectAndQuery(url);
+                    timeToFirstQuery.recordSince(start);
+                } catch (SQLException e) {
+                    if (failures.getAndIncrement() == 0) {
+                        System.out.println("Error: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        printPhase(String.format("burst of %d [%s]%s", burst, variant,
+                failures.get() == 0 ? "" : ", " + failures.get() + " failed"), timeToFirstQuery);
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java DemoJdbcConnectionServerless [--bench] [--samples N] [--bursts N1,N2,...]");
+        System.out.println("  --bench            Measure TCP, greeting, TLS, getConnection and first-query time");
+        System.out.println("  --samples N        Sequential samples per phase (default: 20)");
+        System.out.println("  --bursts N1,N2     Parallel connection storms to run (default: 1,10,50,100)");
+    }
+
+    private static void runBenchmark(int samples, String bursts) {
+        try {
+            benchmarkSequential(samples);
+            printPhaseHeader("=== Connection storm: time from release to first query result ===");
+            for (String burst : bursts.split(",")) {
+                for (String variant : new String[] { "baseline", "tuned" }) {
+                    benchmarkStorm(Integer.parseInt(burst.trim()), variant);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
     public static void main(String[] args) {
+        boolean bench = false;
+        int samples = 20;
+        String bursts = "1,10,50,100";
+        for (int i = 0; i < args.length; i++) {
+            if ("--bench".equals(args[i])) {
+                bench = true;
+            } else if ("--samples".equals(args[i]) && i + 1 < args.length) {
+                samples = Integer.parseInt(args[++i]);
+            } else if ("--bursts".equals(args[i]) && i + 1 < args.length) {
+                bursts = args[++i];
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+        if (bench) {
+            runBenchmark(samples, bursts);
+            return;
+        }
+
+        JdbcConnectionPool pool = null;
         Connection connection = null;
         try {
-            String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-            int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-            String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-            String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-            String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-            
-            String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
-
-            connection = DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword);
+            pool = JdbcConnectionPool.fromEnv("", 1, 1);
+            connection = pool.getConnection();
             System.out.println("Connection established.");
-            
+
         } catch (Exception e) {
             System.out.println("Error: " + e);
         } finally {
@@ -32,6 +302,10 @@ public class DemoJdbcConnectionServerless {
             } else {
                 System.out.println("Already disconnected.");
             }
+            if (pool != null) {
+                pool.printStats();
+                pool.close();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,67 +1,294 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Execute multi-statement?
  *   Error: java.sql.SQLException: client has multi-statement capability disabled.
  *   Run SET GLOBAL tidb_multi_statement_mode='ON' after you understand the security risk.
+ * Connecting with allowMultiQueries=true declares the capability instead, as done here,
+ * and PipelinedExecutor reads every statement's result. --pipeline-bench measures it.
  */
 
 public class DemoJdbcExecute {
 
-    public static void printResultSetStringString(String stmtText, Connection connection) {
-        int count = 0;
-        System.out.println("\n/* Executing: "+stmtText+"; */");
-        try {
-            Statement statement = connection.createStatement();
-            Boolean isResultSet = statement.execute(stmtText);
-            if (isResultSet){
-                ResultSet resultSet = statement.getResultSet();
-                System.out.println("\tRow#,  "+resultSet.getMetaData().getColumnName(1)+", "+resultSet.getMetaData().getColumnName(2));
-                while (resultSet.next()) {
-                    System.out.println("\t"+(++count) + ") " + resultSet.getString(1)+", "+resultSet.getString(2));
-                }    
-                resultSet.close();
+    private static final String PIPELINE_TABLE = "pipeline_bench";
+
+    private static void printUsage() {
+        System.out.println("Usage: java DemoJdbcExecute [--pipeline-bench] [options]");
+        System.out.println("  --pipeline-bench    Compare one statement per round trip with PipelinedExecutor");
+        System.out.println("  --rtt-ms N          Round-trip time added by a local proxy in front of the server (default: 0, none)");
+        System.out.println("  --statements N      Independent upserts per run (default: 2000)");
+        System.out.println("  --depths N,...      Statements per round trip to try, 1 is one by one (default: 1,10,50,200)");
+        System.out.println("  --fail-every N      Make every Nth statement fail with a duplicate key (default: 0, never)");
+        System.out.println();
+        System.out.println("Example, against a local stand-in with a simulated 5 ms round trip:");
+        System.out.println("  TIDB_HOST=127.0.0.1 USE_SSL=false java DemoJdbcExecute --pipeline-bench --rtt-ms 5");
+    }
+
+    /** The same fan-out of independent writes, one statement per round trip and pipelined at each depth. */
+    private static void pipelineBench(String[] args) throws Exception {
+        long rttMicros = 0;
+        int statements = 2000;
+        String depths = "1,10,50,200";
+        int failEvery = 0;
+        for (int i = 0; i < args.length; i++) {
+            if ("--pipeline-bench".equals(args[i])) {
+                // Selects this mode
+            } else if ("--rtt-ms".equals(args[i]) && i + 1 < args.length) {
+                rttMicros = (long) (Double.parseDouble(args[++i]) * 1000);
+            } else if ("--statements".equals(args[i]) && i + 1 < args.length) {
+                statements = Integer.parseInt(args[++i]);
+            } else if ("--depths".equals(args[i]) && i + 1 < args.length) {
+                depths = args[++i];
+            } else if ("--fail-every".equals(args[i]) && i + 1 < args.length) {
+                failEvery = Integer.parseInt(args[++i]);
+            } else {
+                printUsage();
+                System.exit(1);
             }
-            statement.close();
-        } catch (Exception e) {
-            System.out.println("Error: "+e.toString());
         }
+
+        LatencyInjectingProxy proxy = null;
+        String url = JdbcConnectionPool.connectionUrl("&allowMultiQueries=true");
+        if (rttMicros > 0) {
+            proxy = new LatencyInjectingProxy(JdbcConnectionPool.host(), JdbcConnectionPool.port(), rttMicros);
+            // The certificate is not for 127.0.0.1: still encrypt, but skip the host name check
+            url = JdbcConnectionPool.connectionUrl("127.0.0.1", proxy.getPort(), "&allowMultiQueries=true")
+                    .replace("sslMode=VERIFY_IDENTITY", "sslMode=REQUIRED");
+        }
+        JdbcConnectionPool pool = new JdbcConnectionPool(url, JdbcConnectionPool.user(),
+                JdbcConnectionPool.password(), 1, JdbcConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+        try (Connection connection = pool.getConnection()) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("DROP TABLE IF EXISTS " + PIPELINE_TABLE);
+                stmt.execute("CREATE TABLE " + PIPELINE_TABLE + " (id int PRIMARY KEY, name varchar(32))");
+            }
+            List<String> sqls = new ArrayList<>(statements);
+            for (int i = 0; i < statements; i++) {
+                if (failEvery > 0 && i % failEvery == failEvery - 1) {
+                    sqls.add("INSERT INTO " + PIPELINE_TABLE + " VALUES (-1, 'duplicate')");
+                } else {
+                    sqls.add(PipelinedExecutor.bind("INSERT INTO " + PIPELINE_TABLE
+                            + " (id, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE name = VALUES(name)", i % 1000,
+                            "v" + i));
+                }
+            }
+            int maxPacket = PipelinedExecutor.maxAllowedPacket(connection);
+            System.out.println(String.format(Locale.ROOT,
+                    ">>> %d statements, simulated RTT %.1f ms, max_allowed_packet %d", statements, rttMicros / 1000.0,
+                    maxPacket));
+            for (String depth : depths.split(",")) {
+                int n = Integer.parseInt(depth.trim());
+                // Every depth starts from the same table, so its upserts insert rather than update
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("TRUNCATE TABLE " + PIPELINE_TABLE);
+                    stmt.execute("INSERT INTO " + PIPELINE_TABLE + " VALUES (-1, 'taken')");
+                }
+                long start = System.nanoTime();
+                long roundTrips;
+                int errors = 0;
+                if (n == 1) {
+                    // The baseline: plain executeUpdate, one round trip each
+                    try (Statement stmt = connection.createStatement()) {
+                        for (String sql : sqls) {
+                            try {
+                                stmt.executeUpdate(sql);
+                            } catch (SQLException e) {
+                                errors++;
+                            }
+                        }
+                    }
+                    roundTrips = sqls.size();
+                } else {
+                    PipelinedExecutor pipeline = new PipelinedExecutor(maxPacket - 1024, n);
+                    for (PipelinedExecutor.Outcome outcome : pipeline.execute(connection, sqls)) {
+                        if (!outcome.ok()) {
+                            errors++;
+                        }
+                    }
+                    roundTrips = pipeline.roundTrips();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format(Locale.ROOT,
+                        ">>> depth %4d: %8.3f s, %9.0f statements/s, %6d round trips, %d failed statements", n,
+                        seconds, sqls.size() / seconds, roundTrips, errors));
+            }
+        } finally {
+            pool.close();
+            if (proxy != null) {
+                proxy.close();
+            }
+        }
+    }
+
+    /** Hot queries checked by --plan-check when no --queries file is given. */
+    private static final String[][] DEFAULT_PLAN_QUERIES = {
+            { "t1_full_scan", "SELECT * FROM test.t1" },
+            { "t1_point_get", "SELECT * FROM test.t1 WHERE id = 100" },
+            { "t1_group_by_name", "SELECT name, count(*) FROM test.t1 GROUP BY name" },
+    };
+
+    private static void printPlanCheckUsage() {
+        System.out.println("Usage: java DemoJdbcExecute --plan-check [options]");
+        System.out.println("  --plan-check          Capture the plans of hot queries and compare them with a baseline");
+        System.out.println("  --queries FILE        name<TAB>sql per line (default: a few queries on test.t1)");
+        System.out.println("  --baseline FILE       Baseline to compare with (default: plan-baseline.tsv)");
+        System.out.println("  --update-baseline     Write the captured plans as the new baseline instead of comparing");
+        System.out.println("  --no-analyze          Plain EXPLAIN: compare plans only, do not run the queries");
+        System.out.println("  --runs N              EXPLAIN ANALYZE runs per query, the median time counts (default: 5)");
+        System.out.println("  --max-est-error X     Largest acceptable row-estimate q-error of any operator (default: 10)");
+        System.out.println("  --max-slowdown X      Largest acceptable time over the baseline's (default: 1.5)");
+        System.out.println("  --min-slowdown-ms N   Ignore slowdowns smaller than this (default: 1)");
+        System.out.println();
+        System.out.println("Exits with 0 when no plan regressed, 2 when some did, 1 on errors. In CI, e.g.:");
+        System.out.println("  TIDB_HOST=127.0.0.1 USE_SSL=false java DemoJdbcExecute --plan-check --queries hot-queries.tsv");
+    }
+
+    /** Runs the plan regression check and returns the process exit code. */
+    private static int planCheck(String[] args) throws Exception {
+        Path queriesFile = null;
+        Path baselineFile = Paths.get("plan-baseline.tsv");
+        boolean update = false;
+        boolean analyze = true;
+        int runs = 5;
+        PlanCapture.Thresholds thresholds = new PlanCapture.Thresholds();
+        for (int i = 0; i < args.length; i++) {
+            if ("--plan-check".equals(args[i])) {
+                // Selects this mode
+            } else if ("--queries".equals(args[i]) && i + 1 < args.length) {
+                queriesFile = Paths.get(args[++i]);
+            } else if ("--baseline".equals(args[i]) && i + 1 < args.length) {
+                baselineFile = Paths.get(args[++i]);
+            } else if ("--update-baseline".equals(args[i])) {
+                update = true;
+            } else if ("--no-analyze".equals(args[i])) {
+                analyze = false;
+            } else if ("--runs".equals(args[i]) && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else if ("--max-est-error".equals(args[i]) && i + 1 < args.length) {
+                thresholds.maxEstimateError = Double.parseDouble(args[++i]);
+            } else if ("--max-slowdown".equals(args[i]) && i + 1 < args.length) {
+                thresholds.maxSlowdown = Double.parseDouble(args[++i]);
+            } else if ("--min-slowdown-ms".equals(args[i]) && i + 1 < args.length) {
+                thresholds.minSlowdownNanos = (long) (Double.parseDouble(args[++i]) * 1e6);
+            } else {
+                printPlanCheckUsage();
+                return 1;
+            }
+        }
+        Map<String, String> queries = new LinkedHashMap<>();
+        if (queriesFile != null) {
+            queries.putAll(PlanCapture.readQueries(queriesFile));
+        } else {
+            for (String[] q : DEFAULT_PLAN_QUERIES) {
+                queries.put(q[0], q[1]);
+            }
+        }
+        Map<String, PlanCapture.Baseline> baselines = PlanCapture.readBaseline(baselineFile);
+
+        JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("", 1, 1);
+        List<PlanCapture.Baseline> captured = new ArrayList<>();
+        int regressed = 0;
+        try (Connection connection = pool.getConnection()) {
+            for (Map.Entry<String, String> q : queries.entrySet()) {
+                PlanCapture.Plan plan = PlanCapture.capture(connection, q.getKey(), q.getValue(), analyze, runs);
+                captured.add(PlanCapture.Baseline.of(plan));
+                PlanCapture.PlanNode worst = plan.worstEstimate();
+                String summary = String.format(Locale.ROOT,
+                        "%s: plan %s, est %.0f rows, act %d rows, %.3f ms, worst estimate %.1fx at %s", plan.name,
+                        plan.digest, plan.root.estRows, plan.root.actRows, plan.timeNanos / 1e6,
+                        worst.estimateError(), worst.id);
+                PlanCapture.Baseline baseline = baselines.get(plan.name);
+                if (update || baseline == null) {
+                    System.out.println((update ? "CAPTURED " : "NEW      ") + summary);
+                    continue;
+                }
+                List<String> regressions = PlanCapture.compare(plan, baseline, thresholds);
+                if (regressions.isEmpty()) {
+                    System.out.println("OK       " + summary);
+                    continue;
+                }
+                regressed++;
+                System.out.println("REGRESSED " + summary);
+                for (String r : regressions) {
+                    System.out.println("    - " + r);
+                }
+                if (!plan.digest.equals(baseline.digest)) {
+                    System.out.println("    baseline plan:");
+                    PlanCapture.printShape(baseline.shape, "      ");
+                    System.out.println("    current plan:");
+                    PlanCapture.printShape(plan.shape, "      ");
+                }
+            }
+        } finally {
+            pool.close();
+        }
+        if (update) {
+            PlanCapture.writeBaseline(baselineFile, captured);
+            System.out.println("Baseline written to " + baselineFile + " (" + captured.size() + " queries).");
+            return 0;
+        }
+        System.out.println(regressed == 0 ? "No plan regressions." : regressed + " of " + queries.size()
+                + " queries regressed.");
+        return regressed == 0 ? 0 : 2;
     }
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            try {
+                if (Arrays.asList(args).contains("--plan-check")) {
+                    System.exit(planCheck(args));
+                }
+                pipelineBench(args);
+            } catch (Exception e) {
+                System.out.println("Error: " + e);
+                System.exit(1);
+            }
+            return;
+        }
+        JdbcConnectionPool pool = null;
         Connection connection = null;
         try {
-            String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-            int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-            String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-            String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-            String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-
-            String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
-            connection = DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword);
+            pool = JdbcConnectionPool.fromEnv("&allowMultiQueries=true", 1, 1);
+            connection = pool.getConnection();
 
             System.out.println("Connection established.");
             // Turn on multi-statement
-            printResultSetStringString("SET tidb_multi_statement_mode='ON'", connection);
+            JdbcResultPrinter.printQuery("SET tidb_multi_statement_mode='ON'", connection);
             // Show autocommit
-            printResultSetStringString("show variables like 'autocommit'", connection);
+            JdbcResultPrinter.printQuery("show variables like 'autocommit'", connection);
             // Create table
             connection.createStatement().executeUpdate("DROP TABLE IF EXISTS t1");
             connection.createStatement().executeUpdate("CREATE TABLE t1 (id int PRIMARY KEY, name char(4))");
             // Describe table
-            printResultSetStringString("DESCRIBE test.t1", connection);
+            JdbcResultPrinter.printQuery("DESCRIBE test.t1", connection);
             // Explain SQL
-            printResultSetStringString("EXPLAIN SELECT * FROM test.t1", connection);
+            JdbcResultPrinter.printQuery("EXPLAIN SELECT * FROM test.t1", connection);
             // Select
-            printResultSetStringString("SELECT * FROM test.t1", connection);
-            // Try DML
-            printResultSetStringString("INSERT INTO test.t1 VALUES (100, 'WXYZ'); INSERT INTO test.t1 VALUES (200, 'ABCD')", connection);
+            JdbcResultPrinter.printQuery("SELECT * FROM test.t1", connection);
+            // Try DML: all in one round trip, with a result (or error) per statement
+            List<String> dml = Arrays.asList(
+                    "INSERT INTO test.t1 VALUES (100, 'WXYZ')",
+                    "INSERT INTO test.t1 VALUES (200, 'ABCD')",
+                    "INSERT INTO test.t1 VALUES (100, 'DUPE')",
+                    "UPDATE test.t1 SET name = 'EFGH' WHERE id = 200",
+                    "SELECT * FROM test.t1");
+            PipelinedExecutor pipeline = PipelinedExecutor.forConnection(connection, 100);
+            List<PipelinedExecutor.Outcome> outcomes = pipeline.execute(connection, dml);
+            for (int i = 0; i < dml.size(); i++) {
+                System.out.println(dml.get(i) + " -> " + outcomes.get(i) + " (round trip " + outcomes.get(i).roundTrip + ")");
+            }
             // Select again
-            printResultSetStringString("SELECT * FROM test.t1", connection);
+            JdbcResultPrinter.printQuery("SELECT * FROM test.t1", connection);
             // Finishing.
         } catch (Exception e) {
             System.out.println("Error: " + e.toString());
@@ -77,6 +304,9 @@ public class DemoJdbcExecute {
             else{
                 System.out.println("Already disconnected.");
             }
+            if (pool != null) {
+                pool.close();
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,498 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same contended workload under BEGIN OPTIMISTIC and BEGIN PESSIMISTIC and
+ * compares them, the many-session version of DemoJdbcOptimisticLock and
+ * DemoJdbcPessimisticLock.
+ *
+ * Each session runs transactions of --ops-per-txn point operations on the rows of
+ * test_tx_contention, each a read (SELECT) or an increment (UPDATE ... SET v = v + 1),
+ * with keys drawn from a uniform, Zipfian or hotspot distribution. Transactions go
+ * through a TransactionRetryExecutor, so a write conflict or deadlock re-runs the whole
+ * transaction with the same keys. At the end the sum of all counters is checked against
+ * the increments that were committed.
+ *
+ * Mode "combined" runs the same workload without transactions: increments go to a
+ * HotRowWriteCombiner, which writes each dirty row once per flush, and reads run on
+ * their own. Its tps counts acknowledged transactions, and aborts and retries are those
+ * of the combiner's flush transactions.
+ */
+public class DemoJdbcLockContention {
+
+    private static final String TABLE = "test_tx_contention";
+
+    /** Picks row keys in [0, rows). */
+    static final class KeyChooser {
+        private final String name;
+        private final long rows;
+        // Zipfian, after Gray et al., "Quickly generating billion-record synthetic databases"
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        // Hotspot: hotOpsFraction of the operations go to the first hotFraction of the rows
+        private final long hotRows;
+        private final double hotOpsFraction;
+
+        private KeyChooser(String name, long rows, double theta, double hotFraction, double hotOpsFraction) {
+            this.name = name;
+            this.rows = rows;
+            this.theta = theta;
+            this.hotRows = Math.max(1, Math.min(rows, Math.round(rows * hotFraction)));
+            this.hotOpsFraction = hotOpsFraction;
+            if ("zipfian".equals(name)) {
+                double zeta2 = zeta(2, theta);
+                this.zetaN = zeta(rows, theta);
+                this.alpha = 1 / (1 - theta);
+                this.eta = (1 - Math.pow(2.0 / rows, 1 - theta)) / (1 - zeta2 / zetaN);
+            } else {
+                this.zetaN = 0;
+                this.alpha = 0;
+                this.eta = 0;
+            }
+        }
+
+        static KeyChooser uniform(long rows) {
+            return new KeyChooser("uniform", rows, 0, 1, 1);
+        }
+
+        /**
+         * Key i is drawn with probability proportional to 1 / (i + 1)^theta. The closed form in
+         * next() (Gray et al., as in YCSB) only holds for 0 < theta < 1.
+         */
+        static KeyChooser zipfian(long rows, double theta) {
+            if (theta <= 0 || theta >= 1) {
+                throw new IllegalArgumentException("Zipfian theta must be > 0 and < 1: " + theta);
+            }
+            return new KeyChooser("zipfian", rows, theta, 1, 1);
+        }
+
+        static KeyChooser hotspot(long rows, double hotFraction, double hotOpsFraction) {
+            return new KeyChooser("hotspot", rows, 0, hotFraction, hotOpsFraction);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        long next(ThreadLocalRandom random) {
+            switch (name) {
+                case "zipfian": {
+                    double u = random.nextDouble();
+                    double uz = u * zetaN;
+                    if (uz < 1) {
+                        return 0;
+                    }
+                    if (uz < 1 + Math.pow(0.5, theta)) {
+                        return 1;
+                    }
+                    return Math.min(rows - 1, (long) (rows * Math.pow(eta * u - eta + 1, alpha)));
+                }
+                case "hotspot":
+                    if (hotRows == rows || random.nextDouble() < hotOpsFraction) {
+                        return random.nextLong(hotRows);
+                    }
+                    return hotRows + random.nextLong(rows - hotRows);
+                default:
+                    return random.nextLong(rows);
+            }
+        }
+
+        @Override
+        public String toString() {
+            switch (name) {
+                case "zipfian":
+                    return String.format(Locale.ROOT, "zipfian (theta %.2f)", theta);
+                case "hotspot":
+                    return String.format(Locale.ROOT, "hotspot (%.0f%% of ops on %d rows)", 100 * hotOpsFraction,
+                            hotRows);
+                default:
+                    return name;
+            }
+        }
+    }
+
+    private static final class Options {
+        int sessions = 32;
+        long rows = 1000;
+        String distribution = "zipfian";
+        double theta = 0.99;
+        double hotFraction = 0.01;
+        double hotOpsFraction = 0.9;
+        int readPercent = 50;
+        int opsPerTxn = 4;
+        long thinkMillis = 0;
+        long durationSeconds = 10;
+        List<String> modes = Arrays.asList("optimistic", "pessimistic");
+        int maxAttempts = 10;
+        double retryRatio = 1;
+        int lockWaitTimeout = 0;
+        long flushMillis = 10;
+        int maxDirtyKeys = 1000;
+
+        KeyChooser keyChooser() {
+            switch (distribution) {
+                case "uniform":
+                    return KeyChooser.uniform(rows);
+                case "zipfian":
+                    return KeyChooser.zipfian(rows, theta);
+                case "hotspot":
+                    return KeyChooser.hotspot(rows, hotFraction, hotOpsFraction);
+                default:
+                    throw new IllegalArgumentException("Unknown distribution: " + distribution);
+            }
+        }
+    }
+
+    /** One session: runs transactions on its own connection until the deadline. */
+    static class Session implements Runnable {
+        private final JdbcConnectionPool pool;
+        private final TransactionRetryExecutor executor;
+        private final HotRowWriteCombiner combiner;
+        private final KeyChooser keys;
+        private final Options options;
+        private final String begin;
+        private final long deadlineNanos;
+        final LatencyHistogram txnLatency = new LatencyHistogram();
+        final LatencyHistogram writeLatency = new LatencyHistogram();
+        long committedIncrements;
+        long failed;
+        long lockWaitTimeouts;
+        private long combinedIncrements;
+
+        Session(JdbcConnectionPool pool, TransactionRetryExecutor executor, HotRowWriteCombiner combiner,
+                KeyChooser keys, Options options, String mode, long deadlineNanos) {
+            this.pool = pool;
+            this.executor = executor;
+            this.combiner = combiner;
+            this.keys = keys;
+            this.options = options;
+            this.begin = "BEGIN " + mode.toUpperCase(Locale.ROOT);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long[] txnKeys = new long[options.opsPerTxn];
+            boolean[] txnReads = new boolean[options.opsPerTxn];
+            try (Connection connection = pool.getConnection();
+                    Statement stmt = connection.createStatement();
+                    PreparedStatement select = connection.prepareStatement("SELECT v FROM " + TABLE + " WHERE id = ?");
+                    PreparedStatement update = connection.prepareStatement(
+                            "UPDATE " + TABLE + " SET v = v + 1 WHERE id = ?")) {
+                if (options.lockWaitTimeout > 0) {
+                    stmt.execute("SET SESSION innodb_lock_wait_timeout = " + options.lockWaitTimeout);
+                }
+                while (System.nanoTime() < deadlineNanos) {
+                    int increments = 0;
+                    for (int i = 0; i < txnKeys.length; i++) {
+                        txnKeys[i] = keys.next(random);
+                        txnReads[i] = random.nextInt(100) < options.readPercent;
+                        increments += txnReads[i] ? 0 : 1;
+                    }
+                    long start = System.nanoTime();
+                    if (combiner != null) {
+                        try {
+                            runCombined(select, txnKeys, txnReads);
+                            txnLatency.recordSince(start);
+                        } catch (SQLException e) {
+                            if (failed++ == 0) {
+                                System.out.println("Error: " + e);
+                            }
+                        }
+                        // Increments made before a failed read are kept, as in the combiner
+                        committedIncrements += combinedIncrements;
+                        combinedIncrements = 0;
+                        continue;
+                    }
+                    try {
+                        // A retry runs the same keys again, as the application would
+                        executor.execute(connection, conn -> {
+                            stmt.execute(begin);
+                            for (int i = 0; i < txnKeys.length; i++) {
+                                if (txnReads[i]) {
+                                    select.setLong(1, txnKeys[i]);
+                                    try (ResultSet rs = select.executeQuery()) {
+                                        rs.next();
+                                    }
+                                } else {
+                                    // In pessimistic mode this is where a session waits for the row lock
+                                    long writeStart = System.nanoTime();
+                                    update.setLong(1, txnKeys[i]);
+                                    update.executeUpdate();
+                                    writeLatency.recordSince(writeStart);
+                                }
+                            }
+                            if (options.thinkMillis > 0) {
+                                try {
+                                    Thread.sleep(options.thinkMillis);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                            return null;
+                        });
+                        txnLatency.recordSince(start);
+                        committedIncrements += increments;
+                    } catch (SQLException e) {
+                        if (e.getErrorCode() == 1205) {
+                            lockWaitTimeouts++;
+                        }
+                        if (failed++ == 0) {
+                            System.out.println("Error: " + e);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error: " + e);
+            }
+        }
+
+        /** Reads in autocommit, increments into the combiner; both are acknowledged at once. */
+        private void runCombined(PreparedStatement select, long[] txnKeys, boolean[] txnReads) throws SQLException {
+            for (int i = 0; i < txnKeys.length; i++) {
+                if (txnReads[i]) {
+                    select.setLong(1, txnKeys[i]);
+                    try (ResultSet rs = select.executeQuery()) {
+                        rs.next();
+                    }
+                } else {
+                    combiner.add(txnKeys[i], 1);
+                    combinedIncrements++;
+                }
+            }
+        }
+    }
+
+    /** What one mode achieved. */
+    private static final class ModeResult {
+        String mode;
+        double seconds;
+        long committed;
+        long failed;
+        long lockWaitTimeouts;
+        long committedIncrements;
+        TransactionRetryExecutor executor;
+        LatencyHistogram txnLatency = new LatencyHistogram();
+        LatencyHistogram writeLatency = new LatencyHistogram();
+    }
+
+    private static void setupTable(JdbcConnectionPool pool, long rows) throws SQLException {
+        try (Connection connection = pool.getConnection(); Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + TABLE);
+            stmt.execute("CREATE TABLE " + TABLE + " (id bigint primary key, v bigint not null, name char(20))");
+            MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert(TABLE, new String[] { "id", "v", "name" },
+                    1 << 20, 5000, (sql, n) -> stmt.executeUpdate(sql));
+            for (long id = 0; id < rows; id++) {
+                encoder.beginRow();
+                encoder.value(id);
+                encoder.value(0);
+                encoder.value("INIT");
+                encoder.endRow();
+            }
+            encoder.flush();
+        }
+    }
+
+    private static long sumOfCounters(JdbcConnectionPool pool) throws SQLException {
+        try (Connection connection = pool.getConnection();
+                Statement stmt = connection.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COALESCE(SUM(v), 0) FROM " + TABLE)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static ModeResult runMode(JdbcConnectionPool pool, Options options, KeyChooser keys, String mode)
+            throws InterruptedException {
+        ModeResult result = new ModeResult();
+        result.mode = mode;
+        // Short backoff: the transactions are short, and the budget keeps retries from snowballing
+        HotRowWriteCombiner combiner = null;
+        if (mode.equals("combined")) {
+            combiner = new HotRowWriteCombiner(pool, TABLE, "id", "v", null, options.flushMillis,
+                    options.maxDirtyKeys);
+            result.executor = combiner.getRetryExecutor();
+        } else {
+            result.executor = new TransactionRetryExecutor(options.maxAttempts, 1, 100, 10_000, options.retryRatio,
+                    100);
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        List<Session> sessions = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.sessions; i++) {
+            Session session = new Session(pool, result.executor, combiner, keys, options, mode, deadline);
+            Thread thread = new Thread(session, mode + "-session-" + i);
+            sessions.add(session);
+            threads.add(thread);
+            thread.start();
+        }
+        for (int i = 0; i < options.sessions; i++) {
+            threads.get(i).join();
+            Session session = sessions.get(i);
+            result.txnLatency.add(session.txnLatency);
+            result.writeLatency.add(session.writeLatency);
+            result.failed += session.failed;
+            result.lockWaitTimeouts += session.lockWaitTimeouts;
+            result.committedIncrements += session.committedIncrements;
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        result.committed = result.txnLatency.count();
+        if (combiner != null) {
+            // Writes what is still buffered, so the counters can be checked
+            combiner.close();
+            combiner.printStats();
+        }
+        return result;
+    }
+
+    private static void printReport(List<ModeResult> results) {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-12s %9s %8s %8s %8s %8s %10s %10s %10s %10s %10s",
+                "mode", "tps", "aborts", "retries", "failed", "lockwait", "txn p50", "txn p99", "txn p99.9",
+                "write p50", "write p99"));
+        for (ModeResult r : results) {
+            long attempts = r.executor.attempts();
+            System.out.println(String.format(Locale.ROOT,
+                    "%-12s %9.1f %7.2f%% %8.3f %8d %7.1fms %8.2fms %8.2fms %8.2fms %8.2fms %8.2fms", r.mode,
+                    r.committed / r.seconds,
+                    attempts == 0 ? 0 : 100.0 * r.executor.conflicts() / attempts,
+                    r.committed == 0 ? 0 : (double) r.executor.retries() / r.committed, r.failed,
+                    r.committed == 0 ? 0 : r.writeLatency.totalNanos() / 1e6 / r.committed,
+                    r.txnLatency.percentileMillis(50), r.txnLatency.percentileMillis(99),
+                    r.txnLatency.percentileMillis(99.9), r.writeLatency.percentileMillis(50),
+                    r.writeLatency.percentileMillis(99)));
+        }
+        System.out.println();
+        System.out.println("tps: committed transactions per second; aborts: attempts that hit a write conflict or");
+        System.out.println("deadlock; retries: re-runs per committed transaction; failed: transactions given up");
+        System.out.println("(including lock wait timeouts); lockwait: time in UPDATE statements per committed");
+        System.out.println("transaction, which in pessimistic mode is mostly waiting for row locks; txn latency");
+        System.out.println("includes retries and backoff. In combined mode, tps counts acknowledged transactions and");
+        System.out.println("aborts and retries are the combiner's flush transactions.");
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java DemoJdbcLockContention [options]");
+        System.out.println("  --sessions N        Concurrent sessions, one connection each (default: 32)");
+        System.out.println("  --rows N            Rows in " + TABLE + " (default: 1000)");
+        System.out.println("  --distribution D    uniform, zipfian or hotspot (default: zipfian)");
+        System.out.println("  --theta T           Zipfian skew, > 0 and < 1 (default: 0.99)");
+        System.out.println("  --hot-rows-pct P    Hotspot: share of rows that are hot (default: 1)");
+        System.out.println("  --hot-ops-pct P     Hotspot: share of operations on the hot rows (default: 90)");
+        System.out.println("  --read-pct P        Percentage of reads, the rest are increments (default: 50)");
+        System.out.println("  --ops-per-txn N     Point operations per transaction (default: 4)");
+        System.out.println("  --think-ms N        Sleep before each commit, holding the locks (default: 0)");
+        System.out.println("  --duration S        Seconds per mode (default: 10)");
+        System.out.println("  --modes M1,M2       optimistic, pessimistic and/or combined (default: optimistic,pessimistic)");
+        System.out.println("  --max-attempts N    Attempts per transaction before giving up (default: 10)");
+        System.out.println("  --retry-ratio R     Retries allowed per transaction under sustained conflicts (default: 1)");
+        System.out.println("  --lock-wait-timeout S  innodb_lock_wait_timeout for pessimistic locks (default: server's)");
+        System.out.println("  --flush-ms N        Combined: durability window, the longest an increment waits (default: 10)");
+        System.out.println("  --max-dirty-keys N  Combined: flush early once this many rows have pending increments (default: 1000)");
+        System.out.println();
+        System.out.println("Example:");
+        System.out.println("  java DemoJdbcLockContention --sessions 64 --rows 100 --distribution hotspot --duration 30");
+        System.out.println("  java DemoJdbcLockContention --distribution uniform --rows 1000000 --read-pct 90");
+        System.out.println("  java DemoJdbcLockContention --rows 10 --read-pct 0 --modes optimistic,pessimistic,combined");
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            if ("--sessions".equals(args[i]) && i + 1 < args.length) {
+                options.sessions = Integer.parseInt(args[++i]);
+            } else if ("--rows".equals(args[i]) && i + 1 < args.length) {
+                options.rows = Long.parseLong(args[++i]);
+            } else if ("--distribution".equals(args[i]) && i + 1 < args.length) {
+                options.distribution = args[++i];
+            } else if ("--theta".equals(args[i]) && i + 1 < args.length) {
+                options.theta = Double.parseDouble(args[++i]);
+            } else if ("--hot-rows-pct".equals(args[i]) && i + 1 < args.length) {
+                options.hotFraction = Double.parseDouble(args[++i]) / 100;
+            } else if ("--hot-ops-pct".equals(args[i]) && i + 1 < args.length) {
+                options.hotOpsFraction = Double.parseDouble(args[++i]) / 100;
+            } else if ("--read-pct".equals(args[i]) && i + 1 < args.length) {
+                options.readPercent = Integer.parseInt(args[++i]);
+            } else if ("--ops-per-txn".equals(args[i]) && i + 1 < args.length) {
+                options.opsPerTxn = Integer.parseInt(args[++i]);
+            } else if ("--think-ms".equals(args[i]) && i + 1 < args.length) {
+                options.thinkMillis = Long.parseLong(args[++i]);
+            } else if ("--duration".equals(args[i]) && i + 1 < args.length) {
+                options.durationSeconds = Long.parseLong(args[++i]);
+            } else if ("--modes".equals(args[i]) && i + 1 < args.length) {
+                options.modes = Arrays.asList(args[++i].split(","));
+            } else if ("--max-attempts".equals(args[i]) && i + 1 < args.length) {
+                options.maxAttempts = Integer.parseInt(args[++i]);
+            } else if ("--retry-ratio".equals(args[i]) && i + 1 < args.length) {
+                options.retryRatio = Double.parseDouble(args[++i]);
+            } else if ("--lock-wait-timeout".equals(args[i]) && i + 1 < args.length) {
+                options.lockWaitTimeout = Integer.parseInt(args[++i]);
+            } else if ("--flush-ms".equals(args[i]) && i + 1 < args.length) {
+                options.flushMillis = Long.parseLong(args[++i]);
+            } else if ("--max-dirty-keys".equals(args[i]) && i + 1 < args.length) {
+                options.maxDirtyKeys = Integer.parseInt(args[++i]);
+            } else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+        for (String mode : options.modes) {
+            if (!mode.equals("optimistic") && !mode.equals("pessimistic") && !mode.equals("combined")) {
+                printUsage();
+                System.exit(1);
+            }
+        }
+
+        JdbcConnectionPool pool = null;
+        try {
+            KeyChooser keys = options.keyChooser();
+            // One more than the sessions, for the combiner's flushes
+            pool = JdbcConnectionPool.fromEnv("&cachePrepStmts=true&useServerPrepStmts=true", options.sessions,
+                    options.sessions + 1);
+            setupTable(pool, options.rows);
+            System.out.println(">>> " + options.sessions + " sessions, " + options.rows + " rows, keys " + keys + ", "
+                    + options.opsPerTxn + " ops per transaction, " + options.readPercent + "% reads, "
+                    + options.durationSeconds + " s per mode");
+            List<ModeResult> results = new ArrayList<>();
+            long expectedSum = 0;
+            for (String mode : options.modes) {
+                System.out.println(">>> " + mode);
+                ModeResult result = runMode(pool, options, keys, mode);
+                if (!mode.equals("combined")) {
+                    result.executor.printStats();
+                }
+                results.add(result);
+                expectedSum += result.committedIncrements;
+            }
+            printReport(results);
+            long sum = sumOfCounters(pool);
+            System.out.println();
+            System.out.println(sum == expectedSum ? "Check passed: counters add up to the " + sum
+                    + " committed increments" : "Check FAILED: counters add up to " + sum + ", expected " + expectedSum);
+        } catch (SQLException | InterruptedException | IllegalArgumentException e) {
+            System.out.println("Error: " + e);
+            System.exit(1);
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+}
@@ -1,33 +1,34 @@
 import java.sql.*;
-// import java.util.concurrent.TimeUnit;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class DemoJdbcOnlineDDL {
     
+    private static JdbcConnectionPool pool;
+    
     private static Connection getConnection() throws SQLException {
-        String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-        int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-        String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-        String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-        String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-        
-        // TiDB Cloud requires SSL connections
-        String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
-        
-        System.out.println("Connecting to: " + tidbHost + ":" + tidbPort + " with database: " + tidbDatabase);
+        String connectionUrl = JdbcConnectionPool.connectionUrl("");
+        System.out.println("Connecting to: " + connectionUrl.substring(0, connectionUrl.indexOf('?')));
         
         try {
-            Connection conn = DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword);
-            System.out.println("Connection successful!");
-            
-            // Test the connection with a simple query
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery("SELECT 1")) {
-                if (rs.next()) {
-                    System.out.println("Database connection test passed!");
-                }
+            if (pool == null) {
+                // One connection for the job, one for the DDL progress monitor
+                pool = JdbcConnectionPool.fromEnv("", 1, 2);
             }
-            
+            Connection conn = pool.getConnection();
+            System.out.println("Connection successful!");
             return conn;
         } catch (SQLException e) {
             System.err.println("Error: " + e.getMessage());
@@ -178,7 +179,20 @@ public class DemoJdbcOnlineDDL {
         }
     }
     
-    private static void runAlterTable(String tableName) {
+    /** Runs the ALTER; with monitored, a DdlProgressMonitor reports its progress meanwhile. */
+    private static void runAlterTable(String tableName, boolean monitored) {
+        try {
+            alterTable(tableName, monitored);
+        } catch (SQLException err) {
+            System.out.println("Error executing ALTER TABLE: " + err.getMessage());
+            System.out.println("Error code: " + err.getErrorCode());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void alterTable(String tableName, boolean monitored) throws SQLException, InterruptedException {
         try (Connection connection = getConnection()) {
             connection.setAutoCommit(true);
             
@@ -200,12 +214,25 @@ public class DemoJdbcOnlineDDL {
                 String alterStmt = "ALTER TABLE " + tableName + " ADD COLUMN ed VARCHAR(10) DEFAULT 'N/A'";
                 System.out.println("Executing: " + alterStmt);
                 
+                DdlProgressMonitor monitor = null;
+                Thread monitorThread = null;
+                if (monitored) {
+                    monitor = new DdlProgressMonitor(pool, tableName, 500, true);
+                    monitorThread = monitor.start();
+                }
+
                 long startTime = System.currentTimeMillis();
                 
                 // Execute the DDL statement
                 stmt.execute(alterStmt);
                 
                 long endTime = System.currentTimeMillis();
+
+                if (monitor != null) {
+                    monitor.stop();
+                    monitorThread.join();
+                    monitor.printSummary();
+                }
                 
                 System.out.println("ALTER TABLE completed successfully in " + 
                                  (endTime - startTime) / 1000.0 + " seconds");
@@ -218,31 +245,380 @@ public class DemoJdbcOnlineDDL {
                     }
                 }
             }
-            
+        }
+    }
+
+    /** Follows DDL jobs on the table, from any session, until interrupted. */
+    private static void runMonitor(String tableName) {
+        try {
+            pool = JdbcConnectionPool.fromEnv("", 1, 1);
+            System.out.println("Watching DDL jobs on " + tableName + ", Ctrl-C to stop");
+            new DdlProgressMonitor(pool, tableName, 500, true).run();
         } catch (SQLException err) {
-            System.out.println("Error executing ALTER TABLE: " + err.getMessage());
-            System.out.println("Error code: " + err.getErrorCode());
+            System.out.println("Error: " + err);
             System.exit(1);
         }
     }
     
+    /**
+     * Open-loop load on the sbtest-shaped table: operation i is due at start + i / rate,
+     * whether or not the earlier ones have finished, and runs on whichever connection is
+     * free first. Its latency is measured from that due time, not from when a connection
+     * got to it, so time spent queued behind a stalled statement (e.g. while a DDL blocks
+     * writes) counts against the operations that waited. A closed loop that measures from
+     * the actual start sends less load exactly when the database is slow and reports a
+     * handful of slow calls instead of the thousands that were held up ("coordinated
+     * omission"); the service time, from the actual start, is kept alongside for comparison.
+     */
+    static class LoadGenerator {
+        private final String tableName;
+        private final double nanosPerOp;
+        private final int insertWeight;
+        private final int selectWeight;
+        private final int totalWeight;
+        private final int keyRange;
+        private final long startNanos;
+        private final long endNanos;
+        private final AtomicLong tickets = new AtomicLong();
+
+        // Swapped out once a second by the reporter; an operation finishing during the
+        // swap may land in the second it was read from, which only shifts it by one line
+        private final AtomicReference<LatencyHistogram> second = new AtomicReference<>(new LatencyHistogram());
+        private final LatencyHistogram responseTime = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+        private final LongAdder errorsInSecond = new LongAdder();
+        private final Map<Integer, LongAdder> errorCodes = new ConcurrentHashMap<>();
+
+        // Whether an ALTER started with --alter-after was running at any time in the current second
+        private volatile boolean ddlRunning;
+        private final AtomicBoolean ddlInSecond = new AtomicBoolean();
+
+        LoadGenerator(String tableName, double rate, int insertWeight, int selectWeight, int updateWeight,
+                int keyRange, long durationSeconds) {
+            this.tableName = tableName;
+            this.nanosPerOp = 1e9 / rate;
+            this.insertWeight = insertWeight;
+            this.selectWeight = selectWeight;
+            this.totalWeight = insertWeight + selectWeight + updateWeight;
+            this.keyRange = Math.max(1, keyRange);
+            this.startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            this.endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        }
+
+        /** One connection's loop: take the next due operation, wait for its time, run it. */
+        void runWorker(JdbcConnectionPool pool) {
+            try (Connection connection = pool.getConnection();
+                    PreparedStatement insert = connection.prepareStatement(
+                            "INSERT INTO " + tableName + " (k, c, pad) VALUES (?, ?, ?)");
+                    PreparedStatement select = connection.prepareStatement(
+                            "SELECT c FROM " + tableName + " WHERE id = ?");
+                    PreparedStatement update = connection.prepareStatement(
+                            "UPDATE " + tableName + " SET k = k + 1 WHERE id = ?")) {
+                connection.setAutoCommit(true);
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (true) {
+                    long intended = startNanos + (long) (tickets.getAndIncrement() * nanosPerOp);
+                    if (intended - endNanos >= 0) {
+                        break;
+                    }
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    int op = random.nextInt(totalWeight);
+                    long begin = System.nanoTime();
+                    try {
+                        if (op < insertWeight) {
+                            insert.setInt(1, random.nextInt(keyRange) + 1);
+                            insert.setString(2, sbtestString(random, 10));
+                            insert.setString(3, sbtestString(random, 5));
+                            insert.executeUpdate();
+                        } else if (op < insertWeight + selectWeight) {
+                            select.setInt(1, random.nextInt(keyRange) + 1);
+                            try (ResultSet rs = select.executeQuery()) {
+                                while (rs.next()) {
+                                    rs.getString(1);
+                                }
+                            }
+                        } else {
+                            update.setInt(1, random.nextInt(keyRange) + 1);
+                            update.executeUpdate();
+                        }
+                    } catch (SQLException e) {
+                        errorsInSecond.increment();
+                        errorCodes.computeIfAbsent(e.getErrorCode(), code -> new LongAdder()).increment();
+                    }
+                    long end = System.nanoTime();
+                    serviceTime.record(end - begin);
+                    responseTime.record(end - intended);
+                    second.get().record(end - intended);
+                }
+            } catch (SQLException e) {
+                System.out.println("Error: " + e);
+            }
+        }
+
+        /** Runs alter after the given delay, marking the timeline while it runs. */
+        Thread startAlter(long afterSeconds, Runnable alter) {
+            Thread thread = new Thread(() -> {
+                long at = startNanos + TimeUnit.SECONDS.toNanos(afterSeconds);
+                long wait;
+                while ((wait = at - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                ddlRunning = true;
+                ddlInSecond.set(true);
+                try {
+                    alter.run();
+                } finally {
+                    ddlRunning = false;
+                }
+            }, "alter");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+
+        /**
+         * Prints one timeline line per second until all workers have finished, preceded by
+         * the DDL state changes the monitor saw during that second.
+         */
+        void report(Thread[] workers, DdlProgressMonitor monitor) throws InterruptedException {
+            DateTimeFormatter clock = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+            System.out.println(String.format(Locale.ROOT, "%-12s %7s %8s %9s %9s %9s %7s %8s  %s", "time", "elapsed",
+                    "ops/s", "p50 ms", "p99 ms", "max ms", "errors", "behind", "ddl"));
+            long totalTickets = (long) Math.ceil((endNanos - startNanos) / nanosPerOp);
+            for (int s = 1; ; s++) {
+                long at = startNanos + TimeUnit.SECONDS.toNanos(s);
+                long wait;
+                while ((wait = at - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                LatencyHistogram h = second.getAndSet(new LatencyHistogram());
+                for (String transition; (transition = monitor.pollTransition()) != null; ) {
+                    System.out.println(transition);
+                }
+                // Operations already due that no connection has picked up yet
+                long due = Math.min(totalTickets, (long) ((System.nanoTime() - startNanos) / nanosPerOp) + 1);
+                long behind = Math.max(0, due - tickets.get());
+                System.out.println(String.format(Locale.ROOT, "%-12s %6ds %8d %9.3f %9.3f %9.1f %7d %8d  %s%s",
+                        LocalTime.now().format(clock), s, h.count(), h.percentileMillis(50),
+                        h.percentileMillis(99), h.maxNanos() / 1e6, errorsInSecond.sumThenReset(), behind,
+                        ddlInSecond.getAndSet(ddlRunning) ? "* " : "", monitor.status()));
+                boolean done = true;
+                for (Thread worker : workers) {
+                    done &= !worker.isAlive();
+                }
+                if (done) {
+                    return;
+                }
+            }
+        }
+
+        void printSummary() {
+            double seconds = (endNanos - startNanos) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "%d operations in %.0f s (%.0f ops/s, target %.0f)",
+                    responseTime.count(), seconds, responseTime.count() / seconds, 1e9 / nanosPerOp));
+            System.out.println(String.format(Locale.ROOT,
+                    "  response time (from due time): p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.1f ms",
+                    responseTime.percentileMillis(50), responseTime.percentileMillis(99),
+                    responseTime.percentileMillis(99.9), responseTime.maxNanos() / 1e6));
+            System.out.println(String.format(Locale.ROOT,
+                    "  service time (from send):      p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.1f ms",
+                    serviceTime.percentileMillis(50), serviceTime.percentileMillis(99),
+                    serviceTime.percentileMillis(99.9), serviceTime.maxNanos() / 1e6));
+            if (!errorCodes.isEmpty()) {
+                Map<Integer, Long> sorted = new TreeMap<>();
+                errorCodes.forEach((code, n) -> sorted.put(code, n.sum()));
+                System.out.println("  errors by code: " + sorted);
+            }
+        }
+    }
+
+    /** Random digits in groups of 11 separated by '-', like sysbench's c and pad columns. */
+    private static String sbtestString(ThreadLocalRandom random, int groups) {
+        char[] chars = new char[groups * 12 - 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = i % 12 == 11 ? '-' : (char) ('0' + random.nextInt(10));
+        }
+        return new String(chars);
+    }
+
+    /** Loads rows 1..rows in multi-row inserts of 500 rows. */
+    private static void preload(Connection connection, String tableName, int rows) throws SQLException {
+        long start = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (Statement stmt = connection.createStatement()) {
+            MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert(tableName, new String[] { "id", "k", "c", "pad" },
+                    1 << 20, 500, (sql, n) -> stmt.executeUpdate(sql));
+            for (int id = 1; id <= rows; id++) {
+                encoder.beginRow();
+                encoder.value(id);
+                encoder.value(random.nextInt(rows) + 1);
+                encoder.value(sbtestString(random, 10));
+                encoder.value(sbtestString(random, 5));
+                encoder.endRow();
+            }
+            encoder.flush();
+        }
+        System.out.println(String.format(Locale.ROOT, "Loaded %d rows in %.1f s", rows,
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    private static void runLoadTest(String[] args) {
+        String tableName = "online_ddl_test";
+        double rate = 2000;
+        int connections = 32;
+        int[] mix = { 20, 60, 20 };
+        long duration = 60;
+        int rows = 100_000;
+        boolean setup = true;
+        long alterAfter = -1;
+        for (int i = 0; i < args.length; i++) {
+            if ("--load".equals(args[i])) {
+                // Selects this mode
+            } else if ("--rate".equals(args[i]) && i + 1 < args.length) {
+                rate = Double.parseDouble(args[++i]);
+            } else if ("--connections".equals(args[i]) && i + 1 < args.length) {
+                connections = Integer.parseInt(args[++i]);
+            } else if ("--mix".equals(args[i]) && i + 1 < args.length) {
+                String[] parts = args[++i].split(":");
+                if (parts.length != 3) {
+                    printLoadUsage();
+                    System.exit(1);
+                }
+                for (int j = 0; j < 3; j++) {
+                    mix[j] = Integer.parseInt(parts[j]);
+                }
+            } else if ("--duration".equals(args[i]) && i + 1 < args.length) {
+                duration = Long.parseLong(args[++i]);
+            } else if ("--rows".equals(args[i]) && i + 1 < args.length) {
+                rows = Integer.parseInt(args[++i]);
+            } else if ("--no-setup".equals(args[i])) {
+                setup = false;
+            } else if ("--alter-after".equals(args[i]) && i + 1 < args.length) {
+                alterAfter = Long.parseLong(args[++i]);
+            } else if (!args[i].startsWith("--")) {
+                tableName = args[i];
+            } else {
+                printLoadUsage();
+                System.exit(1);
+            }
+        }
+        if (alterAfter >= duration) {
+            System.out.println("Error: --alter-after must be less than --duration, or the ALTER runs after the load");
+            printLoadUsage();
+            System.exit(1);
+        }
+        if (rate <= 0 || connections <= 0 || duration <= 0 || mix[0] < 0 || mix[1] < 0 || mix[2] < 0
+                || mix[0] + mix[1] + mix[2] == 0) {
+            printLoadUsage();
+            System.exit(1);
+        }
+
+        try {
+            // One connection per worker plus one for the ALTER and one for the DDL monitor
+            pool = JdbcConnectionPool.fromEnv("", Math.min(connections, 16), connections + 2);
+            try (Connection connection = pool.getConnection()) {
+                connection.setAutoCommit(true);
+                if (setup) {
+                    setupTable(connection, tableName);
+                    preload(connection, tableName, rows);
+                } else {
+                    try (Statement stmt = connection.createStatement();
+                            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + tableName)) {
+                        rs.next();
+                        rows = rs.getInt(1);
+                    }
+                }
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    ">>> %.0f ops/s open loop on %d connections for %d s, insert:select:update %d:%d:%d, keys 1..%d",
+                    rate, connections, duration, mix[0], mix[1], mix[2], rows));
+
+            // Follows any DDL on the table, from --alter-after or another session
+            DdlProgressMonitor monitor = new DdlProgressMonitor(pool, tableName, 500, false);
+            Thread monitorThread = monitor.start();
+            LoadGenerator generator = new LoadGenerator(tableName, rate, mix[0], mix[1], mix[2], rows, duration);
+            Thread[] workers = new Thread[connections];
+            for (int i = 0; i < connections; i++) {
+                workers[i] = new Thread(() -> generator.runWorker(pool), "load-" + i);
+                workers[i].start();
+            }
+            Thread alter = null;
+            if (alterAfter >= 0) {
+                String table = tableName;
+                alter = generator.startAlter(alterAfter, () -> {
+                    try {
+                        alterTable(table, false);
+                    } catch (SQLException err) {
+                        // A failed ALTER is part of what the run shows; the load and its summary go on
+                        System.out.println("Error executing ALTER TABLE: " + err.getMessage() + " (error code "
+                                + err.getErrorCode() + "), load continues");
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            generator.report(workers, monitor);
+            if (alter != null && alter.isAlive()) {
+                System.out.println("Waiting for the ALTER TABLE to finish...");
+                alter.join();
+            }
+            monitor.stop();
+            monitorThread.join();
+            generator.printSummary();
+            monitor.printSummary();
+            pool.close();
+        } catch (SQLException e) {
+            System.out.println("Error: " + e);
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("\nLoad test stopped by user");
+        }
+    }
+
+    private static void printLoadUsage() {
+        System.out.println("Usage: java DemoJdbcOnlineDDL --load [options] [table_name]");
+        System.out.println("  --rate N          Operations started per second, whatever the latency (default: 2000)");
+        System.out.println("  --connections N   Connections running operations (default: 32)");
+        System.out.println("  --mix I:S:U       Weights of insert, point select and update (default: 20:60:20)");
+        System.out.println("  --duration S      Seconds to run (default: 60)");
+        System.out.println("  --rows N          Rows to load before the run; selects and updates pick ids 1..N (default: 100000)");
+        System.out.println("  --no-setup        Keep the existing table and its rows");
+        System.out.println("  --alter-after S   Run the ALTER TABLE of --alter S seconds into the run (less than --duration)");
+        System.out.println();
+        System.out.println("Prints one line per second: operations completed, their p50/p99/max latency from the");
+        System.out.println("time each one was due, errors, operations due but not yet started, and the state of any");
+        System.out.println("DDL job on the table (* while the --alter-after ALTER runs); DDL state changes get their own line.");
+    }
+
     private static void printUsage() {
-        System.out.println("Usage: java DemoJdbcOnlineDDL [--insert|--alter] [table_name]");
+        System.out.println("Usage: java DemoJdbcOnlineDDL [--insert|--alter|--monitor|--load] [table_name]");
         System.out.println("  --insert    Run the insert job");
-        System.out.println("  --alter     Execute the ALTER TABLE command");
+        System.out.println("  --alter     Execute the ALTER TABLE command, reporting the DDL job's progress");
+        System.out.println("  --monitor   Report the progress of DDL jobs on the table, from any session");
+        System.out.println("  --load      Run a rate-controlled load test (see --load --help)");
         System.out.println("  table_name  Name of the table to use (default: online_ddl_test)");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  java DemoJdbcOnlineDDL --insert");
         System.out.println("  java DemoJdbcOnlineDDL --alter online_ddl_test");
+        System.out.println("  java DemoJdbcOnlineDDL --monitor online_ddl_test");
+        System.out.println("  java DemoJdbcOnlineDDL --load --rate 5000 --alter-after 20");
     }
-    
+
     public static void main(String[] args) {
         if (args.length == 0) {
             printUsage();
             System.exit(1);
         }
-        
+        if (Arrays.asList(args).contains("--load")) {
+            runLoadTest(args);
+            return;
+        }
+
         String operation = null;
         String tableName = "online_ddl_test";
         
@@ -252,6 +628,8 @@ public class DemoJdbcOnlineDDL {
                 operation = "insert";
             } else if ("--alter".equals(args[i])) {
                 operation = "alter";
+            } else if ("--monitor".equals(args[i])) {
+                operation = "monitor";
             } else if (!args[i].startsWith("--")) {
                 // Assume it's the table name
                 tableName = args[i];
@@ -259,7 +637,7 @@ public class DemoJdbcOnlineDDL {
         }
         
         if (operation == null) {
-            System.out.println("Error: Must specify either --insert or --alter");
+            System.out.println("Error: Must specify one of --insert, --alter, --monitor or --load");
             printUsage();
             System.exit(1);
         }
@@ -271,7 +649,9 @@ public class DemoJdbcOnlineDDL {
             runInsertJob(tableName);
         } else if ("alter".equals(operation)) {
             System.out.println("Executing ALTER TABLE on " + tableName);
-            runAlterTable(tableName);
+            runAlterTable(tableName, true);
+        } else if ("monitor".equals(operation)) {
+            runMonitor(tableName);
         }
     }
 }
\ No newline at end of file
@@ -1,6 +1,5 @@
 import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -13,42 +12,21 @@ public class DemoJdbcOptimisticLock {
     public static List<Connection> connections = new ArrayList<Connection>();
     public static BigDecimal id = null;
 
-    public static void printResultSetStringString(String stmtText, Connection connection) {
-        int count = 0;
-        System.out.println("\n/* Executing query: " + stmtText + "; */");
-        try {
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery(stmtText);
-            System.out.println("\tRow#, " + resultSet.getMetaData().getColumnName(1) + ", "
-                    + resultSet.getMetaData().getColumnName(2));
-            while (resultSet.next()) {
-                System.out.println("\t" + (++count) + ") " + resultSet.getString(1) + ", " + resultSet.getString(2));
-            }
-            resultSet.close();
-            statement.close();
-            System.out.println();
-        } catch (SQLException e) {
-            System.out.println("Error: " + e);
-        }
-    }
-
     static class RowUpdater implements Runnable {
 
         private int connectionNo;
         private BigDecimal rowid;
-        private boolean retryCommit;
+        private TransactionRetryExecutor executor;
         private int wait;
         private int waitBefore1stCommit;
-        private int waitBefore2ndCommit;
 
-        public RowUpdater(int connectionNo, BigDecimal rowid, boolean retryCommit, int wait, int waitBefore1stCommit,
-                int waitBefore2ndCommit) {
+        public RowUpdater(int connectionNo, BigDecimal rowid, TransactionRetryExecutor executor, int wait,
+                int waitBefore1stCommit) {
             this.connectionNo = connectionNo;
             this.rowid = rowid;
-            this.retryCommit = retryCommit;
+            this.executor = executor;
             this.wait = wait;
             this.waitBefore1stCommit = waitBefore1stCommit;
-            this.waitBefore2ndCommit = waitBefore2ndCommit;
         }
 
         @Override
@@ -56,27 +34,38 @@ public class DemoJdbcOptimisticLock {
             System.out.println(connectionTags[this.connectionNo] + " session started");
             Connection c = connections.get(this.connectionNo);
             try {
-                Statement s = c.createStatement();
                 try {
                     Thread.sleep(wait);
                 } catch (InterruptedException e2) {
                     e2.printStackTrace();
                 }
-                System.out.println(connectionTags[this.connectionNo] + " session: " + "BEGIN OPTIMISTIC");
-                s.executeUpdate("BEGIN OPTIMISTIC");
-                System.out.println(connectionTags[this.connectionNo] + " session: "
-                        + "UPDATE test_tx_optimistic SET name = '" + connectionTags[this.connectionNo]
-                        + "' WHERE id = " + rowid);
-                s.executeUpdate("UPDATE test_tx_optimistic SET name = '" + connectionTags[this.connectionNo]
-                        + "' WHERE id = " + rowid);
-                try {
-                    Thread.sleep(this.waitBefore1stCommit);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                System.out.println(connectionTags[this.connectionNo] + " session: " + "Commit");
-                c.commit();
-
+                int[] attempt = { 0 };
+                // A retry re-runs the whole transaction, so the UPDATE sees the other session's commit
+                executor.execute(c, conn -> {
+                    attempt[0]++;
+                    if (attempt[0] > 1) {
+                        System.out.println("< Session in " + connectionTags[this.connectionNo]
+                                + " raised the exception !!!".toUpperCase() + " retrying, attempt " + attempt[0] + " >");
+                    }
+                    try (Statement s = conn.createStatement()) {
+                        System.out.println(connectionTags[this.connectionNo] + " session: " + "BEGIN OPTIMISTIC");
+                        s.executeUpdate("BEGIN OPTIMISTIC");
+                        System.out.println(connectionTags[this.connectionNo] + " session: "
+                                + "UPDATE test_tx_optimistic SET name = '" + connectionTags[this.connectionNo]
+                                + "' WHERE id = " + rowid);
+                        s.executeUpdate("UPDATE test_tx_optimistic SET name = '" + connectionTags[this.connectionNo]
+                                + "' WHERE id = " + rowid);
+                    }
+                    if (attempt[0] == 1) {
+                        try {
+                            Thread.sleep(this.waitBefore1stCommit);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    System.out.println(connectionTags[this.connectionNo] + " session: " + "Commit");
+                    return null;
+                });
             } catch (SQLException e) {
                 System.out.println(connectionTags[this.connectionNo] + " ErrorCode: " + e.getErrorCode());
                 System.out.println(connectionTags[this.connectionNo] + " SQLState: " + e.getSQLState());
@@ -84,26 +73,10 @@ public class DemoJdbcOptimisticLock {
                 if (e.getErrorCode() == 9007) {
                     System.out.println("< Session in " + connectionTags[this.connectionNo]
                             + " raised the exception !!!".toUpperCase() + " >");
-                    if (this.retryCommit) {
-                        try {
-                            Thread.sleep(this.waitBefore2ndCommit);
-                        } catch (InterruptedException ie) {
-                            ie.printStackTrace();
-                        }
-                        try {
-                            System.out.println(connectionTags[this.connectionNo] + " session: " + "Commit");
-                            Statement s = c.createStatement();
-                            s.executeUpdate("UPDATE test_tx_optimistic SET name = '" + connectionTags[this.connectionNo]
-                                    + "' WHERE id = " + rowid);
-                            c.commit();
-                        } catch (SQLException e1) {
-                            e1.printStackTrace();
-                        }
-                    }
                 }
             } finally {
                 System.out.println(connectionTags[this.connectionNo] + " session: " + "Checking result");
-                printResultSetStringString("select id, name from test_tx_optimistic", c);
+                JdbcResultPrinter.printQuery("select id, name from test_tx_optimistic", c);
             }
         }
     }
@@ -114,19 +87,14 @@ public class DemoJdbcOptimisticLock {
             return;
         }
 
-        String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-        int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-        String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-        String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-        String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-        String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
         System.out.println("Connection established.");
 
         boolean retryCommit = args[0].equalsIgnoreCase("retry") ? true : false;
         try {
+            // Both sessions keep their connection until the demo ends
+            JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("", 2, 2);
             for (int i = 0; i < 2; i++) {
-                connections.add(DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword));
+                connections.add(pool.getConnection());
             }
             System.out.println("Connection established.");
             Statement s = connections.get(0).createStatement();
@@ -143,9 +111,19 @@ public class DemoJdbcOptimisticLock {
                 c.setAutoCommit(false);
             }
 
-            new Thread(new DemoJdbcOptimisticLock.RowUpdater(0, id, retryCommit, 1, 6000, 1000)).start();
-            new Thread(new DemoJdbcOptimisticLock.RowUpdater(1, id, retryCommit, 1000, 2000, 9000)).start();
+            // Without retry a conflict is thrown at once; with it, up to 5 attempts with 0.5-4 s jittered backoff
+            TransactionRetryExecutor executor = retryCommit ? new TransactionRetryExecutor(5, 500, 4000, 30_000, 1, 2)
+                    : new TransactionRetryExecutor(1, 0, 0, 0, 0, 0);
+            Thread a = new Thread(new DemoJdbcOptimisticLock.RowUpdater(0, id, executor, 1, 6000));
+            Thread b = new Thread(new DemoJdbcOptimisticLock.RowUpdater(1, id, executor, 1000, 2000));
+            a.start();
+            b.start();
+            a.join();
+            b.join();
+            executor.printStats();
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (SQLException e) {
             e.printStackTrace();
             System.out.println("Main Block ErrorCode: " + e.getErrorCode());
@@ -1,11 +1,15 @@
 import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Version: 0.1.0
@@ -16,25 +20,6 @@ public class DemoJdbcPessimisticLock {
     public static List<Connection> connections = new ArrayList<Connection>();
     public static BigDecimal id = null;
 
-    public static void printResultSetStringString(String stmtText, Connection connection) {
-        int count = 0;
-        System.out.println("\n/* Executing query: " + stmtText + "; */");
-        try {
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery(stmtText);
-            System.out.println("\tRow#, " + resultSet.getMetaData().getColumnName(1) + ", "
-                    + resultSet.getMetaData().getColumnName(2));
-            while (resultSet.next()) {
-                System.out.println("\t" + (++count) + ") " + resultSet.getString(1) + ", " + resultSet.getString(2));
-            }
-            resultSet.close();
-            statement.close();
-            System.out.println();
-        } catch (SQLException e) {
-            System.out.println("Error: " + e);
-        }
-    }
-
     static class RowUpdater implements Runnable {
 
         private int connectionNo;
@@ -81,25 +66,348 @@ public class DemoJdbcPessimisticLock {
                 System.out.println(connectionTags[this.connectionNo] + " Error: " + e);
             } finally {
                 System.out.println(connectionTags[this.connectionNo] + " session: " + "Checking result");
-                printResultSetStringString("select id, name from test_tx_pessimistic", c);
+                JdbcResultPrinter.printQuery("select id, name from test_tx_pessimistic", c);
+            }
+        }
+    }
+
+    private static final String QUEUE_TABLE = "test_job_queue";
+
+    private static void printQueueUsage() {
+        System.out.println("Usage: java DemoJdbcPessimisticLock --queue [options]");
+        System.out.println("  --queue             Benchmark job queue consumers that claim jobs with FOR UPDATE");
+        System.out.println("  --jobs N            Jobs enqueued before each run (default: 20000)");
+        System.out.println("  --consumers N1,N2   Consumer counts to run (default: 1,2,4,8,16,32,64)");
+        System.out.println("  --claim M1,M2       blocking (plain FOR UPDATE on the queue head), nowait (FOR UPDATE");
+        System.out.println("                      NOWAIT on the head) and/or partitioned (NOWAIT per partition)");
+        System.out.println("                      (default: blocking,nowait,partitioned)");
+        System.out.println("  --partitions N      Partitions of the queue for partitioned claiming (default: 64)");
+        System.out.println("  --batch N           Jobs per claim (default: 16)");
+        System.out.println("  --ack-batch N       Jobs acknowledged per DELETE (default: 64)");
+        System.out.println("  --work-us N         Simulated handling time per job (default: 200)");
+        System.out.println();
+        System.out.println("Example:");
+        System.out.println("  java DemoJdbcPessimisticLock --queue --jobs 100000 --consumers 8,64 --claim blocking,partitioned");
+    }
+
+    private static void queueMain(String[] args) throws SQLException, InterruptedException {
+        int jobs = 20_000;
+        int[] consumerCounts = { 1, 2, 4, 8, 16, 32, 64 };
+        List<String> claimModes = Arrays.asList("blocking", "nowait", "partitioned");
+        int partitions = 64;
+        int batch = 16;
+        int ackBatch = 64;
+        long workMicros = 200;
+        for (int i = 0; i < args.length; i++) {
+            if ("--queue".equals(args[i])) {
+                // Selects this mode
+            } else if ("--jobs".equals(args[i]) && i + 1 < args.length) {
+                jobs = Integer.parseInt(args[++i]);
+            } else if ("--consumers".equals(args[i]) && i + 1 < args.length) {
+                consumerCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if ("--claim".equals(args[i]) && i + 1 < args.length) {
+                claimModes = Arrays.asList(args[++i].split(","));
+            } else if ("--partitions".equals(args[i]) && i + 1 < args.length) {
+                partitions = Integer.parseInt(args[++i]);
+            } else if ("--batch".equals(args[i]) && i + 1 < args.length) {
+                batch = Integer.parseInt(args[++i]);
+            } else if ("--ack-batch".equals(args[i]) && i + 1 < args.length) {
+                ackBatch = Integer.parseInt(args[++i]);
+            } else if ("--work-us".equals(args[i]) && i + 1 < args.length) {
+                workMicros = Long.parseLong(args[++i]);
+            } else {
+                printQueueUsage();
+                System.exit(1);
+            }
+        }
+        for (String mode : claimModes) {
+            if (!mode.equals("blocking") && !mode.equals("nowait") && !mode.equals("partitioned")) {
+                printQueueUsage();
+                System.exit(1);
+            }
+        }
+        int maxConsumers = Arrays.stream(consumerCounts).max().orElse(1);
+
+        JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("", Math.min(maxConsumers, 16), maxConsumers + 1);
+        try {
+            System.out.println(">>> " + jobs + " jobs per run, " + batch + " per claim, " + ackBatch + " per ack, "
+                    + workMicros + " us of work per job");
+            System.out.println(String.format(Locale.ROOT, "%-12s %9s %10s %10s %12s %12s %12s %10s", "claim",
+                    "consumers", "jobs/s", "claims", "rejections", "wait p50", "wait p99", "wait/job"));
+            long work = TimeUnit.MICROSECONDS.toNanos(workMicros);
+            JobQueueConsumer.JobHandler handler = (id, payload) -> {
+                long until = System.nanoTime() + work;
+                while (System.nanoTime() < until) {
+                    Thread.onSpinWait();
+                }
+            };
+            for (String mode : claimModes) {
+                for (int consumers : consumerCounts) {
+                    fillQueue(pool, jobs, partitions);
+                    JobQueueConsumer.Stats stats = new JobQueueConsumer.Stats();
+                    List<Thread> threads = new ArrayList<>();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < consumers; i++) {
+                        JobQueueConsumer consumer = new JobQueueConsumer(pool, QUEUE_TABLE,
+                                mode.equals("partitioned") ? partitions : 0, i, consumers, batch, ackBatch,
+                                !mode.equals("blocking"), handler, stats);
+                        Thread thread = new Thread(consumer, "consumer-" + i);
+                        threads.add(thread);
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    LatencyHistogram wait = stats.getLockWait();
+                    long acked = stats.jobsAcked();
+                    System.out.println(String.format(Locale.ROOT, "%-12s %9d %10.0f %10d %12d %10.3fms %10.3fms %8.3fms",
+                            mode, consumers, acked / seconds, wait.count(), stats.nowaitRejections(),
+                            wait.percentileMillis(50), wait.percentileMillis(99),
+                            acked == 0 ? 0 : wait.totalNanos() / 1e6 / acked));
+                    if (acked != jobs) {
+                        System.out.println("Error: " + acked + " of " + jobs + " jobs acknowledged. " + stats);
+                    }
+                }
+            }
+            System.out.println();
+            System.out.println("claims: locking SELECTs run; rejections: claims refused by NOWAIT; wait: time in the");
+            System.out.println("locking SELECT, which for blocking claims is mostly waiting for other consumers' locks.");
+        } finally {
+            pool.close();
+        }
+    }
+
+    /** Recreates the queue with jobs spread over the partitions by a hash of their number. */
+    private static void fillQueue(JdbcConnectionPool pool, int jobs, int partitions) throws SQLException {
+        try (Connection connection = pool.getConnection(); Statement stmt = connection.createStatement()) {
+            JobQueueConsumer.createTable(connection, QUEUE_TABLE);
+            MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert(QUEUE_TABLE,
+                    new String[] { "part", "payload" }, 1 << 20, 5000, (sql, rows) -> stmt.executeUpdate(sql));
+            for (int i = 0; i < jobs; i++) {
+                encoder.beginRow();
+                encoder.value(JobQueueConsumer.partitionOf(i, partitions));
+                encoder.value("job-" + i);
+                encoder.endRow();
+            }
+            encoder.flush();
+        }
+    }
+
+    /** One session of the deadlock benchmark: locks random rows of test_tx_pessimistic until the deadline. */
+    static class MultiRowUpdater implements Runnable {
+        private final JdbcConnectionPool pool;
+        private final TransactionRetryExecutor executor;
+        private final OrderedRowLocker locker;
+        private final long[] ids;
+        private final int rowsPerTxn;
+        private final int lockWaitTimeout;
+        private final long deadlineNanos;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long lockWaitTimeouts;
+        long failed;
+
+        /** locker null locks the rows one UPDATE at a time, in the order they were picked. */
+        MultiRowUpdater(JdbcConnectionPool pool, TransactionRetryExecutor executor, OrderedRowLocker locker,
+                long[] ids, int rowsPerTxn, int lockWaitTimeout, long deadlineNanos) {
+            this.pool = pool;
+            this.executor = executor;
+            this.locker = locker;
+            this.ids = ids;
+            this.rowsPerTxn = rowsPerTxn;
+            this.lockWaitTimeout = lockWaitTimeout;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String name = Thread.currentThread().getName();
+            String updateSql = "UPDATE test_tx_pessimistic SET name = ? WHERE id = ?";
+            try (Connection connection = pool.getConnection();
+                    Statement stmt = connection.createStatement();
+                    PreparedStatement update = connection.prepareStatement(updateSql)) {
+                stmt.execute("SET SESSION innodb_lock_wait_timeout = " + lockWaitTimeout);
+                while (System.nanoTime() < deadlineNanos) {
+                    List<Long> keys = new ArrayList<>(rowsPerTxn);
+                    for (int i = 0; i < rowsPerTxn; i++) {
+                        keys.add(ids[random.nextInt(ids.length)]);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        if (locker != null) {
+                            locker.lockAndUpdate(connection, keys, updateSql, (ps, key) -> {
+                                ps.setString(1, name);
+                                ps.setLong(2, key);
+                            });
+                        } else {
+                            executor.execute(connection, conn -> {
+                                stmt.execute("BEGIN PESSIMISTIC");
+                                for (long key : keys) {
+                                    update.setString(1, name);
+                                    update.setLong(2, key);
+                                    update.executeUpdate();
+                                }
+                                return null;
+                            });
+                        }
+                        latency.recordSince(start);
+                    } catch (SQLException e) {
+                        if (e.getErrorCode() == 1205) {
+                            lockWaitTimeouts++;
+                        }
+                        if (failed++ == 0) {
+                            System.out.println("Error: " + e);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error: " + e);
+            }
+        }
+    }
+
+    private static void printDeadlockUsage() {
+        System.out.println("Usage: java DemoJdbcPessimisticLock --deadlock [options]");
+        System.out.println("  --deadlock          Compare unordered per-row locking with OrderedRowLocker");
+        System.out.println("  --sessions N        Concurrent sessions (default: 16)");
+        System.out.println("  --rows N            Rows in test_tx_pessimistic to pick from (default: 100)");
+        System.out.println("  --rows-per-txn N    Rows locked and updated per transaction (default: 8)");
+        System.out.println("  --chunk N           Keys per locking SELECT for ordered locking (default: 64)");
+        System.out.println("  --duration S        Seconds per mode (default: 10)");
+        System.out.println("  --lock-wait-timeout S  innodb_lock_wait_timeout of the sessions (default: 5)");
+        System.out.println();
+        System.out.println("Example:");
+        System.out.println("  java DemoJdbcPessimisticLock --deadlock --sessions 64 --rows 50 --rows-per-txn 16 --duration 30");
+    }
+
+    private static void deadlockMain(String[] args) throws SQLException, InterruptedException {
+        int sessions = 16;
+        int rows = 100;
+        int rowsPerTxn = 8;
+        int chunk = 64;
+        long durationSeconds = 10;
+        int lockWaitTimeout = 5;
+        for (int i = 0; i < args.length; i++) {
+            if ("--deadlock".equals(args[i])) {
+                // Selects this mode
+            } else if ("--sessions".equals(args[i]) && i + 1 < args.length) {
+                sessions = Integer.parseInt(args[++i]);
+            } else if ("--rows".equals(args[i]) && i + 1 < args.length) {
+                rows = Integer.parseInt(args[++i]);
+            } else if ("--rows-per-txn".equals(args[i]) && i + 1 < args.length) {
+                rowsPerTxn = Integer.parseInt(args[++i]);
+            } else if ("--chunk".equals(args[i]) && i + 1 < args.length) {
+                chunk = Integer.parseInt(args[++i]);
+            } else if ("--duration".equals(args[i]) && i + 1 < args.length) {
+                durationSeconds = Long.parseLong(args[++i]);
+            } else if ("--lock-wait-timeout".equals(args[i]) && i + 1 < args.length) {
+                lockWaitTimeout = Integer.parseInt(args[++i]);
+            } else {
+                printDeadlockUsage();
+                System.exit(1);
+            }
+        }
+
+        JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("&cachePrepStmts=true&useServerPrepStmts=true", sessions,
+                sessions);
+        try {
+            long[] ids;
+            try (Connection connection = pool.getConnection(); Statement s = connection.createStatement()) {
+                s.executeUpdate("DROP TABLE IF EXISTS test_tx_pessimistic");
+                s.executeUpdate("CREATE TABLE test_tx_pessimistic (id BIGINT PRIMARY KEY AUTO_RANDOM, name char(20))");
+                MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert("test_tx_pessimistic",
+                        new String[] { "name" }, 1 << 20, 5000, (sql, n) -> s.executeUpdate(sql));
+                for (int i = 0; i < rows; i++) {
+                    encoder.beginRow();
+                    encoder.value("INIT");
+                    encoder.endRow();
+                }
+                encoder.flush();
+                List<Long> inserted = new ArrayList<>();
+                try (ResultSet rs = s.executeQuery("SELECT id FROM test_tx_pessimistic")) {
+                    while (rs.next()) {
+                        inserted.add(rs.getLong(1));
+                    }
+                }
+                ids = inserted.stream().mapToLong(Long::longValue).toArray();
+            }
+            System.out.println(">>> " + sessions + " sessions, " + rowsPerTxn + " of " + rows + " rows per transaction, "
+                    + durationSeconds + " s per mode");
+            String[] modes = { "unordered", "ordered" };
+            String[] lines = new String[modes.length];
+            for (int m = 0; m < modes.length; m++) {
+                System.out.println(">>> " + modes[m]);
+                // Deadlocks are retried, so both modes do the same work and the difference shows in throughput
+                TransactionRetryExecutor executor = new TransactionRetryExecutor(10, 1, 100, 30_000, 1, 100);
+                OrderedRowLocker locker = modes[m].equals("ordered")
+                        ? new OrderedRowLocker("test_tx_pessimistic", "id", chunk, executor)
+                        : null;
+                long start = System.nanoTime();
+                long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+                List<MultiRowUpdater> workers = new ArrayList<>();
+                List<Thread> threads = new ArrayList<>();
+                for (int i = 0; i < sessions; i++) {
+                    MultiRowUpdater worker = new MultiRowUpdater(pool, executor, locker, ids, rowsPerTxn,
+                            lockWaitTimeout, deadline);
+                    Thread thread = new Thread(worker, "Session " + i);
+                    workers.add(worker);
+                    threads.add(thread);
+                    thread.start();
+                }
+                LatencyHistogram latency = new LatencyHistogram();
+                long timeouts = 0;
+                long failed = 0;
+                for (int i = 0; i < sessions; i++) {
+                    threads.get(i).join();
+                    latency.add(workers.get(i).latency);
+                    timeouts += workers.get(i).lockWaitTimeouts;
+                    failed += workers.get(i).failed;
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                executor.printStats();
+                lines[m] = String.format(Locale.ROOT, "%-10s %9.1f %10d %10.2f %9d %8d %8.2fms %8.2fms", modes[m],
+                        latency.count() / seconds, executor.conflicts(),
+                        latency.count() == 0 ? 0 : 1000.0 * executor.conflicts() / latency.count(), timeouts, failed,
+                        latency.percentileMillis(50), latency.percentileMillis(99));
             }
+            System.out.println();
+            System.out.println(String.format(Locale.ROOT, "%-10s %9s %10s %10s %9s %8s %10s %10s", "locking", "txn/s",
+                    "deadlocks", "per 1000", "timeouts", "failed", "p50", "p99"));
+            for (String line : lines) {
+                System.out.println(line);
+            }
+            System.out.println();
+            System.out.println("deadlocks: retryable errors, 1213 in pessimistic mode, each retried; per 1000: per");
+            System.out.println("1000 committed transactions; timeouts: transactions that hit innodb_lock_wait_timeout;");
+            System.out.println("latency includes retries.");
+        } finally {
+            pool.close();
         }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            try {
+                if (Arrays.asList(args).contains("--deadlock")) {
+                    deadlockMain(args);
+                    return;
+                }
+                queueMain(args);
+            } catch (SQLException | InterruptedException e) {
+                System.out.println("Error: " + e);
+                System.exit(1);
+            }
+            return;
+        }
 
-        String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-        int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-        String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-        String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-        String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-        String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
         System.out.println("Connection established.");
 
         try {
+            // Both sessions keep their connection until the demo ends
+            JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("", 2, 2);
             for (int i = 0; i < 2; i++) {
-                connections.add(DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword));
+                connections.add(pool.getConnection());
             }
             System.out.println("Connection established.");
             
@@ -1,42 +1,433 @@
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class DemoJdbcPreparedStatement {
 
-    public static void printResultSetStringString(String stmtText, Connection connection) {
-        int count = 0;
-        System.out.println("\nExecuting query: " + stmtText);
+    private static final String BENCH_TABLE = "bench_ps";
+
+    /**
+     * One prepared-statement benchmark. Every op updates one row of BENCH_TABLE, cycling
+     * through distinctSql different statement texts so that prepStmtCacheSize has a working
+     * set to hold (or not), with each text padded to sqlLength characters so that
+     * prepStmtCacheSqlLimit decides whether it is cached at all.
+     *
+     *   statement      Statement.executeUpdate with the value inlined into the SQL
+     *   reuse          one PreparedStatement per text, prepared once
+     *   reprepare      prepareStatement, execute, close on every op
+     *
+     * With appCacheSize > 0 the connection is a StatementCachingConnection of that size.
+     */
+    static class PsBenchmark implements MicroBenchmark.Benchmark {
+        private final JdbcConnectionPool pool;
+        private final Connection connection;
+        private final String[] sqls;
+        private final String[] values = new String[64];
+        private PreparedStatement[] reused;
+        private Statement statement;
+        private int next;
+
+        PsBenchmark(String mode, String urlParams, int distinctSql, int sqlLength) throws SQLException {
+            this(mode, urlParams, distinctSql, sqlLength, 0);
+        }
+
+        PsBenchmark(String mode, String urlParams, int distinctSql, int sqlLength, int appCacheSize)
+                throws SQLException {
+            this.sqls = new String[distinctSql];
+            for (int i = 0; i < distinctSql; i++) {
+                StringBuilder sql = new StringBuilder("UPDATE " + BENCH_TABLE + " SET name = ? WHERE id = " + i);
+                if (sql.length() + 6 <= sqlLength) {
+                    sql.append(" /* ");
+                    while (sql.length() < sqlLength - 3) {
+                        sql.append('x');
+                    }
+                    sql.append(" */");
+                }
+                sqls[i] = sql.toString();
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] = "v" + i;
+            }
+            this.pool = JdbcConnectionPool.fromEnv(urlParams, 1, 1);
+            this.connection = appCacheSize > 0
+                    ? new StatementCachingConnection(pool.getConnection(), appCacheSize)
+                    : pool.getConnection();
+            if ("reuse".equals(mode)) {
+                reused = new PreparedStatement[distinctSql];
+                for (int i = 0; i < distinctSql; i++) {
+                    reused[i] = connection.prepareStatement(sqls[i]);
+                }
+            } else if ("statement".equals(mode)) {
+                statement = connection.createStatement();
+                for (int i = 0; i < distinctSql; i++) {
+                    // The literal goes where the placeholder was
+                    sqls[i] = sqls[i].replace("?", "'%s'");
+                }
+            }
+        }
+
+        @Override
+        public void op() throws SQLException {
+            int i = next++ % sqls.length;
+            String value = values[next & (values.length - 1)];
+            if (reused != null) {
+                reused[i].setString(1, value);
+                reused[i].executeUpdate();
+            } else if (statement != null) {
+                statement.executeUpdate(String.format(sqls[i], value));
+            } else {
+                try (PreparedStatement ps = connection.prepareStatement(sqls[i])) {
+                    ps.setString(1, value);
+                    ps.executeUpdate();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (reused != null) {
+                    for (PreparedStatement ps : reused) {
+                        ps.close();
+                    }
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                connection.close();
+            } finally {
+                pool.close();
+            }
+        }
+
+        /**
+         * Creates the benchmark of the given name: statement, ps-reuse, ps-reprepare, the
+         * same two with a -server suffix for useServerPrepStmts=true, and
+         * ps-cached[-server]-SIZE-LIMIT for re-prepare with cachePrepStmts=true and
+         * ps-app-cache[-server]-SIZE for re-prepare through a StatementCachingConnection.
+         */
+        static PsBenchmark named(String name, int distinctSql, int sqlLength) throws SQLException {
+            String[] parts = name.split("-");
+            boolean server = name.contains("-server");
+            String prep = "&useServerPrepStmts=" + server;
+            if ("statement".equals(name)) {
+                return new PsBenchmark("statement", "&cachePrepStmts=false", distinctSql, sqlLength);
+            } else if (name.startsWith("ps-reuse")) {
+                return new PsBenchmark("reuse", prep + "&cachePrepStmts=false", distinctSql, sqlLength);
+            } else if (name.startsWith("ps-reprepare")) {
+                return new PsBenchmark("reprepare", prep + "&cachePrepStmts=false", distinctSql, sqlLength);
+            } else if (name.startsWith("ps-cached") && parts.length >= 4) {
+                return new PsBenchmark("reprepare", prep + "&cachePrepStmts=true&prepStmtCacheSize="
+                        + parts[parts.length - 2] + "&prepStmtCacheSqlLimit=" + parts[parts.length - 1], distinctSql,
+                        sqlLength);
+            } else if (name.startsWith("ps-app-cache") && parts.length >= 4) {
+                return new PsBenchmark("reprepare", prep + "&cachePrepStmts=false", distinctSql, sqlLength,
+                        Integer.parseInt(parts[parts.length - 1]));
+            }
+            throw new IllegalArgumentException("Unknown benchmark: " + name);
+        }
+    }
+
+    private static void printBenchUsage() {
+        System.out.println("Usage: java DemoJdbcPreparedStatement [--bench] [options]");
+        System.out.println("  --bench               Benchmark statement reuse, re-prepare, client caching and server prepare");
+        System.out.println("  --benchmarks A,B,...  Only run these benchmarks (default: all of them)");
+        System.out.println("  --cache-sizes N,...   Cache sizes for the ps-cached and ps-app-cache benchmarks (default: 25,250)");
+        System.out.println("  --sql-limits N,...    prepStmtCacheSqlLimit values for the ps-cached benchmarks (default: 256,2048)");
+        System.out.println("  --distinct-sql N      Different statement texts cycled through (default: 100)");
+        System.out.println("  --sql-length N        Pad each statement text to N characters (default: 300)");
+        System.out.println("  --forks N             Fresh JVMs per benchmark, 0 to run in this one (default: 2)");
+        System.out.println("  --warmup N            Discarded warm-up iterations per fork (default: 5)");
+        System.out.println("  --iterations N        Measured iterations per fork (default: 5)");
+        System.out.println("  --iteration-ms N      Length of one iteration (default: 1000)");
+        System.out.println();
+        System.out.println("Run it next to a local stand-in so that network jitter does not drown the client cost, e.g.");
+        System.out.println("  tiup playground --mode tidb        (or: docker run -d -p 4000:4000 pingcap/tidb)");
+        System.out.println("  TIDB_HOST=127.0.0.1 TIDB_PORT=4000 USE_SSL=false java DemoJdbcPreparedStatement --bench");
+        System.out.println("  java DemoJdbcPreparedStatement --bench --benchmarks ps-reuse,ps-cached-250-2048 --forks 3");
+    }
+
+    /** Runs the benchmarks (or, in a fork, the one named after --bench-fork) and prints the results. */
+    private static void benchMain(String[] args) throws Exception {
+        boolean fork = MicroBenchmark.FORK_FLAG.equals(args[0]);
+        MicroBenchmark.Options options = new MicroBenchmark.Options();
+        String benchmarks = null;
+        String cacheSizes = "25,250";
+        String sqlLimits = "256,2048";
+        int distinctSql = 100;
+        int sqlLength = 300;
+        for (int i = fork ? 2 : 0; i < args.length; i++) {
+            int consumed = options.parse(args, i);
+            if (consumed > 0) {
+                i += consumed - 1;
+            } else if ("--bench".equals(args[i])) {
+                // Implied by any option
+            } else if ("--benchmarks".equals(args[i]) && i + 1 < args.length) {
+                benchmarks = args[++i];
+            } else if ("--cache-sizes".equals(args[i]) && i + 1 < args.length) {
+                cacheSizes = args[++i];
+            } else if ("--sql-limits".equals(args[i]) && i + 1 < args.length) {
+                sqlLimits = args[++i];
+            } else if ("--distinct-sql".equals(args[i]) && i + 1 < args.length) {
+                distinctSql = Integer.parseInt(args[++i]);
+            } else if ("--sql-length".equals(args[i]) && i + 1 < args.length) {
+                sqlLength = Integer.parseInt(args[++i]);
+            } else {
+                printBenchUsage();
+                System.exit(1);
+            }
+        }
+        final int texts = distinctSql;
+        final int length = sqlLength;
+        if (fork) {
+            String name = args[1];
+            MicroBenchmark.runFork(() -> PsBenchmark.named(name, texts, length), options);
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        if (benchmarks != null) {
+            names.addAll(Arrays.asList(benchmarks.split(",")));
+        } else {
+            names.addAll(Arrays.asList("statement", "ps-reuse", "ps-reuse-server", "ps-reprepare",
+                    "ps-reprepare-server"));
+            for (String server : new String[] { "", "-server" }) {
+                for (String size : cacheSizes.split(",")) {
+                    for (String limit : sqlLimits.split(",")) {
+                        names.add("ps-cached" + server + "-" + size.trim() + "-" + limit.trim());
+                    }
+                }
+                for (String size : cacheSizes.split(",")) {
+                    names.add("ps-app-cache" + server + "-" + size.trim());
+                }
+            }
+        }
+
+        JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("", 1, 1);
+        try (Connection connection = pool.getConnection(); Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + BENCH_TABLE);
+            stmt.execute("CREATE TABLE " + BENCH_TABLE + " (id int primary key, name char(30))");
+            StringBuilder insert = new StringBuilder("INSERT INTO " + BENCH_TABLE + " (id, name) VALUES ");
+            for (int i = 0; i < distinctSql; i++) {
+                insert.append(i == 0 ? "" : ", ").append('(').append(i).append(", 'ABC')");
+            }
+            stmt.executeUpdate(insert.toString());
+        } finally {
+            pool.close();
+        }
+
+        System.out.println(">>> " + names.size() + " benchmarks, " + options.forks + " forks x ("
+                + options.warmupIterations + " warm-up + " + options.measurementIterations + " measured) x "
+                + options.iterationMillis + " ms, " + distinctSql + " statement texts of " + sqlLength + " chars");
+        List<MicroBenchmark.Result> results = new ArrayList<>();
+        for (String name : names) {
+            System.out.println(">>> " + name);
+            results.add(MicroBenchmark.run("DemoJdbcPreparedStatement", name, args,
+                    () -> PsBenchmark.named(name, texts, length), options));
+        }
+        System.out.println();
+        MicroBenchmark.printResults(results);
+    }
+
+    private static final String POINT_TABLE = "bench_point";
+
+    /** One caller thread of the coalescing benchmark: point reads and writes on random keys until the deadline. */
+    static class PointCaller implements Runnable {
+        private final JdbcConnectionPool pool;
+        private final PointRequestCoalescer coalescer;
+        private final int keys;
+        private final int readPercent;
+        private final long deadlineNanos;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long errors;
+
+        PointCaller(JdbcConnectionPool pool, PointRequestCoalescer coalescer, int keys, int readPercent,
+                long deadlineNanos) {
+            this.pool = pool;
+            this.coalescer = coalescer;
+            this.keys = keys;
+            this.readPercent = readPercent;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadlineNanos) {
+                long key = random.nextInt(keys);
+                boolean read = random.nextInt(100) < readPercent;
+                long start = System.nanoTime();
+                try {
+                    if (coalescer != null) {
+                        if (read) {
+                            coalescer.get(key).get();
+                        } else {
+                            coalescer.update(key, Long.toString(start)).get();
+                        }
+                    } else {
+                        try (Connection connection = pool.getConnection()) {
+                            runDirect(connection, key, read, Long.toString(start));
+                        }
+                    }
+                    latency.recordSince(start);
+                } catch (Exception e) {
+                    if (errors++ == 0) {
+                        System.out.println("Error: " + e);
+                    }
+                }
+            }
+        }
+
+        private static void runDirect(Connection connection, long key, boolean read, String value)
+                throws SQLException {
+            if (read) {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT name FROM " + POINT_TABLE + " WHERE id = ?")) {
+                    ps.setLong(1, key);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                    }
+                }
+            } else {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "UPDATE " + POINT_TABLE + " SET name = ? WHERE id = ?")) {
+                    ps.setString(1, value);
+                    ps.setLong(2, key);
+                    ps.executeUpdate();
+                }
+            }
+        }
+    }
+
+    private static void printCoalesceUsage() {
+        System.out.println("Usage: java DemoJdbcPreparedStatement --coalesce [options]");
+        System.out.println("  --coalesce          Compare one statement per point request with a PointRequestCoalescer");
+        System.out.println("  --callers N         Concurrent caller threads (default: 256)");
+        System.out.println("  --keys N            Rows in the table, keys are picked uniformly (default: 100000)");
+        System.out.println("  --read-pct P        Percentage of point reads, the rest are point updates (default: 50)");
+        System.out.println("  --duration S        Seconds per mode (default: 10)");
+        System.out.println("  --lanes N           Coalescer lanes, and pooled connections for both modes (default: 8)");
+        System.out.println("  --max-batch N       Requests per coalesced batch at most (default: 256)");
+        System.out.println("  --max-delay-us N    How long a lane waits to fill a batch, 0 for no wait (default: 200)");
+        System.out.println();
+        System.out.println("Example:");
+        System.out.println("  java DemoJdbcPreparedStatement --coalesce --callers 1000 --read-pct 80 --duration 30");
+    }
+
+    private static void coalesceMain(String[] args) throws Exception {
+        int callers = 256;
+        int keys = 100_000;
+        int readPercent = 50;
+        long durationSeconds = 10;
+        int lanes = 8;
+        int maxBatch = 256;
+        long maxDelayMicros = 200;
+        for (int i = 0; i < args.length; i++) {
+            if ("--coalesce".equals(args[i])) {
+                // Selects this mode
+            } else if ("--callers".equals(args[i]) && i + 1 < args.length) {
+                callers = Integer.parseInt(args[++i]);
+            } else if ("--keys".equals(args[i]) && i + 1 < args.length) {
+                keys = Integer.parseInt(args[++i]);
+            } else if ("--read-pct".equals(args[i]) && i + 1 < args.length) {
+                readPercent = Integer.parseInt(args[++i]);
+            } else if ("--duration".equals(args[i]) && i + 1 < args.length) {
+                durationSeconds = Long.parseLong(args[++i]);
+            } else if ("--lanes".equals(args[i]) && i + 1 < args.length) {
+                lanes = Integer.parseInt(args[++i]);
+            } else if ("--max-batch".equals(args[i]) && i + 1 < args.length) {
+                maxBatch = Integer.parseInt(args[++i]);
+            } else if ("--max-delay-us".equals(args[i]) && i + 1 < args.length) {
+                maxDelayMicros = Long.parseLong(args[++i]);
+            } else {
+                printCoalesceUsage();
+                System.exit(1);
+            }
+        }
+
+        JdbcConnectionPool pool = JdbcConnectionPool.fromEnv("&cachePrepStmts=true&useServerPrepStmts=true", lanes,
+                lanes);
         try {
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery(stmtText);
-            System.out.println("\tRow#, " + resultSet.getMetaData().getColumnName(1) + ", "
-                    + resultSet.getMetaData().getColumnName(2));
-            while (resultSet.next()) {
-                System.out.println("\t" + (++count) + ") " + resultSet.getString(1) + ", " + resultSet.getString(2));
-            }
-            resultSet.close();
-            statement.close();
-        } catch (SQLException e) {
-            System.out.println("Error: " + e);
+            try (Connection connection = pool.getConnection(); Statement stmt = connection.createStatement()) {
+                stmt.execute("DROP TABLE IF EXISTS " + POINT_TABLE);
+                stmt.execute("CREATE TABLE " + POINT_TABLE + " (id bigint primary key, name char(30))");
+                MultiRowInsertEncoder encoder = MultiRowInsertEncoder.insert(POINT_TABLE, new String[] { "id", "name" },
+                        1 << 20, 5000, (sql, rows) -> stmt.executeUpdate(sql));
+                for (int id = 0; id < keys; id++) {
+                    encoder.beginRow();
+                    encoder.value(id);
+                    encoder.value("ABC");
+                    encoder.endRow();
+                }
+                encoder.flush();
+            }
+            System.out.println(">>> " + callers + " callers, " + keys + " keys, " + readPercent + "% reads, " + lanes
+                    + " connections, " + durationSeconds + " s per mode");
+            runPointCallers("direct", pool, null, callers, keys, readPercent, durationSeconds);
+            try (PointRequestCoalescer coalescer = new PointRequestCoalescer(pool, POINT_TABLE, "id",
+                    new String[] { "name" }, lanes, maxBatch, maxDelayMicros)) {
+                runPointCallers("coalesced", pool, coalescer, callers, keys, readPercent, durationSeconds);
+                coalescer.printStats();
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static void runPointCallers(String mode, JdbcConnectionPool pool, PointRequestCoalescer coalescer,
+            int callers, int keys, int readPercent, long durationSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<PointCaller> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            PointCaller worker = new PointCaller(pool, coalescer, keys, readPercent, deadline);
+            Thread thread = new Thread(worker, "caller-" + i);
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+        LatencyHistogram latency = new LatencyHistogram();
+        long errors = 0;
+        for (int i = 0; i < callers; i++) {
+            threads.get(i).join();
+            latency.add(workers.get(i).latency);
+            errors += workers.get(i).errors;
         }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                ">>> %-9s %10.0f requests/s, latency p50 %.3f ms, p99 %.3f ms, max %.3f ms, %d errors", mode,
+                latency.count() / seconds, latency.percentileMillis(50), latency.percentileMillis(99),
+                latency.maxNanos() / 1e6, errors));
     }
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            try {
+                if (Arrays.asList(args).contains("--coalesce")) {
+                    coalesceMain(args);
+                    return;
+                }
+                benchMain(args);
+            } catch (Exception e) {
+                System.out.println("Error: " + e);
+                System.exit(1);
+            }
+            return;
+        }
+        JdbcConnectionPool pool = null;
         Connection connection = null;
         try {
-            String tidbHost = System.getenv().getOrDefault("TIDB_HOST", "localhost");
-            int tidbPort = Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
-            String tidbUser = System.getenv().getOrDefault("TIDB_USER", "root");
-            String tidbPassword = System.getenv().getOrDefault("TIDB_PASSWORD", "");
-            String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE", "test");
-            String connectionUrl = "jdbc:mysql://" + tidbHost + ":" + tidbPort + "/" + tidbDatabase + 
-                    "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3";
-
-            connection = DriverManager.getConnection(connectionUrl, tidbUser, tidbPassword);
+            pool = JdbcConnectionPool.fromEnv("", 1, 1);
+            connection = pool.getConnection();
             System.out.println("Connection established.");
             // Do something in the connection
             String offAutoCommit = "SET @@autocommit = 0";
@@ -86,6 +477,25 @@ public class DemoJdbcPreparedStatement {
             }
             System.out.println(
                     ">>> End repeating update, elapsed: " + Long.toString(System.currentTimeMillis() - s2) + "(ms).");
+
+            /**
+             * Same loop through an application-level statement cache: close() parks the
+             * statement and the next prepareStatement() gets it back without a round trip.
+             */
+            StatementCachingConnection cachingConnection = new StatementCachingConnection(connection, 16);
+            System.out.println(">>> Cached PS Begin repeating update.");
+            long s3 = System.currentTimeMillis();
+            for (int i = 0; i < 200; i++) {
+                try (PreparedStatement ps = cachingConnection.prepareStatement("UPDATE test.t1 SET name = ? WHERE id = 1")) {
+                    ps.setString(1, Integer.toString(i));
+                    ps.executeUpdate();
+                }
+            }
+            System.out.println(
+                    ">>> End repeating update, elapsed: " + Long.toString(System.currentTimeMillis() - s3) + "(ms).");
+            System.out.println(cachingConnection.getStats());
+            // Close the cached statements but keep the connection itself open
+            cachingConnection.clear();
         } catch (SQLException e) {
             System.out.println("Error: " + e);
             // Try something
@@ -101,7 +511,7 @@ public class DemoJdbcPreparedStatement {
             if (connection != null) {
                 try {
                     // Check the battle field
-                    printResultSetStringString("select * from test.t1", connection);
+                    JdbcResultPrinter.printQuery("select * from test.t1", connection);
                     // Turn on autocommit
                     connection.setAutoCommit(true);
                     System.out.println("Turn on autocommit.");
@@ -113,6 +523,9 @@ public class DemoJdbcPreparedStatement {
             } else {
                 System.out.println("Already disconnected.");
             }
+            if (pool != null) {
+                pool.close();
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,445 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Absorbs many small updates to a few hot rows in memory and writes each row once per
+ * flush, so that thousands of transactions fighting over one counter or balance become
+ * one UPDATE per row per flush:
+ *
+ *   add(key, delta)   counterColumn = counterColumn + (sum of the deltas)
+ *   set(key, value)   valueColumn = (the last value set)
+ *
+ * Updates never block: each key has a striped set of counters (one per group of threads,
+ * each on its own cache line) and a last-value slot, all changed by CAS. A background
+ * thread flushes every durabilityWindowMillis, or as soon as maxDirtyKeys keys have
+ * pending updates; all dirty keys go out in key order, at most maxDirtyKeys rows per
+ * transaction, so two combiners on the same rows cannot deadlock. If a flush fails, its
+ * deltas are put back and its values too unless a newer one was set, and the next flush
+ * tries again. Updates to keys without a row are counted and dropped.
+ *
+ * An acknowledged update is only durable after the flush that picked it up; until then it
+ * is lost if the process dies, so the window bounds how much can be lost. flush() writes
+ * everything pending before it returns, for callers that need it now. close() flushes and
+ * stops; a shutdown hook does the same if the JVM exits without close().
+ */
+public class HotRowWriteCombiner implements AutoCloseable {
+
+    /** A retired stripe: the key's entry is being removed, writers must use a new one. */
+    private static final long RETIRED = Long.MIN_VALUE;
+    private static final Object EMPTY = new Object();
+    private static final Object RETIRED_VALUE = new Object();
+    private static final Object NULL_VALUE = new Object();
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+    // Longs per stripe, so that stripes do not share a 64-byte cache line
+    private static final int STRIDE = STRIPES == 1 ? 1 : 8;
+    /** Entries idle for this many flushes are removed, so the map only holds recently updated keys. */
+    private static final int IDLE_FLUSHES_BEFORE_REMOVAL = 64;
+
+    private final JdbcConnectionPool pool;
+    private final String table;
+    private final String keyColumn;
+    private final String counterColumn;
+    private final String valueColumn;
+    private final long windowNanos;
+    private final int maxDirtyKeys;
+    private final String updateSql;
+    private final TransactionRetryExecutor executor;
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> dirty = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger dirtyKeys = new AtomicInteger();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Thread flusher;
+    private final Thread shutdownHook;
+    private volatile boolean closed;
+    private long flushNo;
+
+    // Metrics
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder failedTransactions = new LongAdder();
+    private final LongAdder missingRows = new LongAdder();
+    private final LongAdder removedEntries = new LongAdder();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    /**
+     * @param counterColumn column that add() changes, or null
+     * @param valueColumn   column that set() overwrites, or null
+     */
+    public HotRowWriteCombiner(JdbcConnectionPool pool, String table, String keyColumn, String counterColumn,
+            String valueColumn, long durabilityWindowMillis, int maxDirtyKeys) {
+        if (counterColumn == null && valueColumn == null) {
+            throw new IllegalArgumentException("Need a counter column, a value column or both");
+        }
+        this.pool = pool;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.counterColumn = counterColumn;
+        this.valueColumn = valueColumn;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(durabilityWindowMillis);
+        this.maxDirtyKeys = Math.max(1, maxDirtyKeys);
+        // One statement shape for every row, so a flush is one batch in key order
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        if (counterColumn != null) {
+            sql.append(counterColumn).append(" = ").append(counterColumn).append(" + ?");
+        }
+        if (valueColumn != null) {
+            sql.append(counterColumn != null ? ", " : "").append(valueColumn).append(" = CASE WHEN ? THEN ? ELSE ")
+                    .append(valueColumn).append(" END");
+        }
+        this.updateSql = sql.append(" WHERE ").append(keyColumn).append(" = ?").toString();
+        // The combiner is usually the rows' only writer, so conflicts are rare; retry them without a budget
+        this.executor = new TransactionRetryExecutor(5, 5, 500, 30_000, 1, Integer.MAX_VALUE / 1000);
+        this.flusher = new Thread(this::flushLoop, "combiner-" + table);
+        flusher.setDaemon(true);
+        flusher.start();
+        this.shutdownHook = new Thread(this::close, "combiner-" + table + "-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /** Adds delta to the key's counter column. */
+    public void add(long key, long delta) {
+        checkOpen();
+        int stripe = stripe();
+        while (true) {
+            Entry e = entries.computeIfAbsent(key, Entry::new);
+            if (e.add(stripe, delta)) {
+                markDirty(e);
+                break;
+            }
+            // Being removed by the flusher; it takes the entry out of the map right away
+            Thread.onSpinWait();
+        }
+        updates.increment();
+        flushIfClosing();
+    }
+
+    /** Sets the key's value column; the last value set before a flush is written. */
+    public void set(long key, Object value) {
+        checkOpen();
+        Object v = value == null ? NULL_VALUE : value;
+        while (true) {
+            Entry e = entries.computeIfAbsent(key, Entry::new);
+            if (e.set(v)) {
+                markDirty(e);
+                break;
+            }
+            Thread.onSpinWait();
+        }
+        updates.increment();
+        flushIfClosing();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Combiner is closed");
+        }
+    }
+
+    /** An update that raced with close() may have missed its final flush, so it writes itself. */
+    private void flushIfClosing() {
+        if (closed) {
+            flushQuietly();
+        }
+    }
+
+    private static int stripe() {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    private void markDirty(Entry e) {
+        if (!e.dirty.get() && e.dirty.compareAndSet(false, true)) {
+            dirty.add(e);
+            if (dirtyKeys.incrementAndGet() == maxDirtyKeys) {
+                LockSupport.unpark(flusher);
+            }
+        }
+    }
+
+    /** Pending updates of one key. */
+    private static final class Entry {
+        final long key;
+        final AtomicLongArray deltas = new AtomicLongArray(STRIPES * STRIDE);
+        final AtomicReference<Object> value = new AtomicReference<>(EMPTY);
+        final AtomicBoolean dirty = new AtomicBoolean();
+        // Flusher only
+        long lastFlushed;
+
+        Entry(long key) {
+            this.key = key;
+        }
+
+        boolean add(int stripe, long delta) {
+            int i = stripe * STRIDE;
+            while (true) {
+                long current = deltas.get(i);
+                if (current == RETIRED) {
+                    return false;
+                }
+                if (deltas.compareAndSet(i, current, current + delta)) {
+                    return true;
+                }
+            }
+        }
+
+        boolean set(Object v) {
+            while (true) {
+                Object current = value.get();
+                if (current == RETIRED_VALUE) {
+                    return false;
+                }
+                if (value.compareAndSet(current, v)) {
+                    return true;
+                }
+            }
+        }
+
+        long drainDeltas() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES * STRIDE; i += STRIDE) {
+                sum += deltas.getAndSet(i, 0);
+            }
+            return sum;
+        }
+
+        /** Marks the entry retired if nothing is pending; writers then go to a new entry. */
+        boolean retire() {
+            for (int i = 0; i < STRIPES * STRIDE; i += STRIDE) {
+                if (!deltas.compareAndSet(i, 0, RETIRED)) {
+                    unretire(i);
+                    return false;
+                }
+            }
+            if (!value.compareAndSet(EMPTY, RETIRED_VALUE)) {
+                unretire(STRIPES * STRIDE);
+                return false;
+            }
+            return true;
+        }
+
+        private void unretire(int end) {
+            for (int i = 0; i < end; i += STRIDE) {
+                deltas.set(i, 0);
+            }
+        }
+    }
+
+    /** One row's merged update. */
+    private static final class Pending {
+        final long key;
+        final long delta;
+        final Object value;
+
+        Pending(long key, long delta, Object value) {
+            this.key = key;
+            this.delta = delta;
+            this.value = value;
+        }
+    }
+
+    private void flushLoop() {
+        long next = System.nanoTime() + windowNanos;
+        while (!closed) {
+            long wait = next - System.nanoTime();
+            if (wait > 0 && dirtyKeys.get() < maxDirtyKeys) {
+                LockSupport.parkNanos(this, wait);
+                // Woken early only by the size trigger, close() or spuriously
+                if (!closed && System.nanoTime() < next && dirtyKeys.get() < maxDirtyKeys) {
+                    continue;
+                }
+            }
+            next = System.nanoTime() + windowNanos;
+            if (!closed) {
+                flushQuietly();
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException | RuntimeException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    /**
+     * Writes every update made before this call. If a transaction fails, its updates are
+     * put back for the next flush and the error is thrown.
+     */
+    public void flush() throws SQLException {
+        flushLock.lock();
+        try {
+            long start = System.nanoTime();
+            flushNo++;
+            List<Pending> pending = new ArrayList<>();
+            Entry e;
+            while ((e = dirty.poll()) != null) {
+                dirtyKeys.decrementAndGet();
+                // Clear first: an update racing with the drain marks the entry dirty again
+                e.dirty.set(false);
+                long delta = e.drainDeltas();
+                Object value = e.value.getAndSet(EMPTY);
+                if (delta != 0 || value != EMPTY) {
+                    pending.add(new Pending(e.key, delta, value));
+                    e.lastFlushed = flushNo;
+                }
+            }
+            if (flushNo % IDLE_FLUSHES_BEFORE_REMOVAL == 0) {
+                removeIdleEntries();
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            flushes.increment();
+            pending.sort(Comparator.comparingLong(p -> p.key));
+            SQLException failure = null;
+            for (int from = 0; from < pending.size(); from += maxDirtyKeys) {
+                List<Pending> chunk = pending.subList(from, Math.min(pending.size(), from + maxDirtyKeys));
+                if (failure == null) {
+                    try {
+                        write(chunk);
+                        continue;
+                    } catch (SQLException ex) {
+                        failure = ex;
+                        failedTransactions.increment();
+                    }
+                }
+                putBack(chunk);
+            }
+            flushLatency.recordSince(start);
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void write(List<Pending> chunk) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            int[] counts = executor.execute(connection, conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+                    for (Pending p : chunk) {
+                        int i = 1;
+                        if (counterColumn != null) {
+                            ps.setLong(i++, p.delta);
+                        }
+                        if (valueColumn != null) {
+                            ps.setBoolean(i++, p.value != EMPTY);
+                            ps.setObject(i++, p.value == EMPTY || p.value == NULL_VALUE ? null : p.value);
+                        }
+                        ps.setLong(i, p.key);
+                        ps.addBatch();
+                    }
+                    return ps.executeBatch();
+                }
+            });
+            transactions.increment();
+            rowsWritten.add(chunk.size());
+            for (int count : counts) {
+                if (count == 0) {
+                    missingRows.increment();
+                }
+            }
+        }
+    }
+
+    /** Returns a failed chunk's updates to the buffer; a value set since then is newer and wins. */
+    private void putBack(List<Pending> chunk) {
+        int stripe = stripe();
+        for (Pending p : chunk) {
+            // Entries are only retired under flushLock, which this thread holds
+            Entry e = entries.computeIfAbsent(p.key, Entry::new);
+            if (p.delta != 0) {
+                e.add(stripe, p.delta);
+            }
+            if (p.value != EMPTY) {
+                e.value.compareAndSet(EMPTY, p.value);
+            }
+            markDirty(e);
+        }
+    }
+
+    private void removeIdleEntries() {
+        for (Entry e : entries.values()) {
+            if (!e.dirty.get() && flushNo - e.lastFlushed >= IDLE_FLUSHES_BEFORE_REMOVAL && e.retire()) {
+                entries.remove(e.key, e);
+                removedEntries.increment();
+            }
+        }
+    }
+
+    /** Keys with updates waiting for the next flush. */
+    public int dirtyKeys() {
+        return dirtyKeys.get();
+    }
+
+    /** Updates accepted per row written: how many statements the combiner saved. */
+    public double combiningRatio() {
+        long rows = rowsWritten.sum();
+        return rows == 0 ? 0 : (double) updates.sum() / rows;
+    }
+
+    /** The executor that runs the flush transactions, for its conflict and retry counts. */
+    public TransactionRetryExecutor getRetryExecutor() {
+        return executor;
+    }
+
+    public LatencyHistogram getFlushLatency() {
+        return flushLatency;
+    }
+
+    public void printStats() {
+        System.out.println(String.format(Locale.ROOT,
+                "Combiner stats: %d updates, %d flushes, %d rows written in %d transactions (%.1f updates per row), "
+                        + "%d failed transactions, %d updates to missing rows, %d keys buffered (%d idle ones dropped)",
+                updates.sum(), flushes.sum(), rowsWritten.sum(), transactions.sum(), combiningRatio(),
+                failedTransactions.sum(), missingRows.sum(), entries.size(), removedEntries.sum()));
+        System.out.println(String.format(Locale.ROOT, "                flush latency p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                flushLatency.percentileMillis(50), flushLatency.percentileMillis(99), flushLatency.maxNanos() / 1e6));
+        executor.printStats();
+    }
+
+    /** Stops the flusher and writes what is left. Later updates throw IllegalStateException. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Updates that finish after this drain see closed and flush themselves
+        flushQuietly();
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Connection whose statements, commits and rollbacks are recorded in a JdbcMetrics.
+ * Prepared statements look up their stats once, at prepare time.
+ */
+public class InstrumentedConnection extends DelegatingConnection {
+
+    private final JdbcMetrics metrics;
+
+    public InstrumentedConnection(Connection delegate, JdbcMetrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new InstrumentedStatement(delegate.createStatement(), this, metrics);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new InstrumentedStatement(delegate.createStatement(resultSetType, resultSetConcurrency), this, metrics);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return new InstrumentedStatement(
+                delegate.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), this, metrics);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return instrument(delegate.prepareStatement(sql), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return instrument(delegate.prepareStatement(sql, columnNames), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return instrument(delegate.prepareStatement(sql, autoGeneratedKeys), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return instrument(delegate.prepareStatement(sql, columnIndexes), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        return instrument(delegate.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+            int resultSetHoldability) throws SQLException {
+        return instrument(delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
+                sql);
+    }
+
+    private PreparedStatement instrument(PreparedStatement statement, String sql) {
+        return new InstrumentedPreparedStatement(statement, this, metrics.statsFor(sql));
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            delegate.commit();
+        } catch (SQLException e) {
+            metrics.commits().recordError(start);
+            throw e;
+        }
+        metrics.commits().recordExecution(start, 0);
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            delegate.rollback();
+        } catch (SQLException e) {
+            metrics.rollbacks().recordError(start);
+            throw e;
+        }
+        metrics.rollbacks().recordExecution(start, 0);
+    }
+}
@@ -0,0 +1,147 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * PreparedStatement that records each execution under the stats looked up at prepare time,
+ * so executing it costs no map lookup at all.
+ */
+public class InstrumentedPreparedStatement extends DelegatingPreparedStatement {
+
+    private final Connection connection;
+    private final JdbcMetrics.StatementStats stats;
+    private InstrumentedResultSet currentResultSet;
+
+    public InstrumentedPreparedStatement(PreparedStatement delegate, Connection connection,
+            JdbcMetrics.StatementStats stats) {
+        super(delegate);
+        this.connection = connection;
+        this.stats = stats;
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        long start = System.nanoTime();
+        ResultSet rs;
+        try {
+            rs = delegate.executeQuery();
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+        stats.recordExecution(start, 0);
+        return wrap(rs);
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int count = delegate.executeUpdate();
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            long count = delegate.executeLargeUpdate();
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean hasResultSet = delegate.execute();
+            stats.recordExecution(start, hasResultSet ? 0 : delegate.getUpdateCount());
+            return hasResultSet;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int[] counts = delegate.executeBatch();
+            stats.recordExecution(start, sum(counts));
+            return counts;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            long[] counts = delegate.executeLargeBatch();
+            stats.recordExecution(start, sum(counts));
+            return counts;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    /** Rows affected by a batch; SUCCESS_NO_INFO and EXECUTE_FAILED (negative) count as none. */
+    static long sum(int[] counts) {
+        long rows = 0;
+        for (int count : counts) {
+            rows += Math.max(count, 0);
+        }
+        return rows;
+    }
+
+    static long sum(long[] counts) {
+        long rows = 0;
+        for (long count : counts) {
+            rows += Math.max(count, 0);
+        }
+        return rows;
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return wrap(delegate.getResultSet());
+    }
+
+    private ResultSet wrap(ResultSet rs) {
+        if (currentResultSet != null && currentResultSet.getDelegate() == rs) {
+            return currentResultSet;
+        }
+        if (currentResultSet != null) {
+            currentResultSet.recordRead();
+        }
+        currentResultSet = rs == null ? null : new InstrumentedResultSet(rs, this, stats);
+        return currentResultSet;
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (currentResultSet != null) {
+            currentResultSet.recordRead();
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,171 @@
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * ResultSet that counts the rows and (approximate) bytes read through it and adds
+ * them to the statement's stats once, when it is exhausted or closed.
+ *
+ * Bytes are the length of strings and byte arrays, and the binary width of numbers
+ * and temporals, as returned by the getters; values never fetched are not counted.
+ */
+public class InstrumentedResultSet extends DelegatingResultSet {
+
+    private final Statement statement;
+    private final JdbcMetrics.StatementStats stats;
+    private long rows;
+    private long bytes;
+    private boolean recorded;
+
+    public InstrumentedResultSet(ResultSet delegate, Statement statement, JdbcMetrics.StatementStats stats) {
+        super(delegate);
+        this.statement = statement;
+        this.stats = stats;
+    }
+
+    /** Adds the rows and bytes read so far to the stats; later calls do nothing. */
+    void recordRead() {
+        if (!recorded) {
+            recorded = true;
+            stats.recordRead(rows, bytes);
+        }
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        if (delegate.next()) {
+            rows++;
+            return true;
+        }
+        recordRead();
+        return false;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        recordRead();
+        delegate.close();
+    }
+
+    @Override
+    public Statement getStatement() {
+        return statement;
+    }
+
+    @Override
+    public String getString(int columnIndex) throws SQLException {
+        String value = delegate.getString(columnIndex);
+        bytes += value == null ? 0 : value.length();
+        return value;
+    }
+
+    @Override
+    public String getString(String columnLabel) throws SQLException {
+        String value = delegate.getString(columnLabel);
+        bytes += value == null ? 0 : value.length();
+        return value;
+    }
+
+    @Override
+    public byte[] getBytes(int columnIndex) throws SQLException {
+        byte[] value = delegate.getBytes(columnIndex);
+        bytes += value == null ? 0 : value.length;
+        return value;
+    }
+
+    @Override
+    public byte[] getBytes(String columnLabel) throws SQLException {
+        byte[] value = delegate.getBytes(columnLabel);
+        bytes += value == null ? 0 : value.length;
+        return value;
+    }
+
+    @Override
+    public int getInt(int columnIndex) throws SQLException {
+        bytes += Integer.BYTES;
+        return delegate.getInt(columnIndex);
+    }
+
+    @Override
+    public int getInt(String columnLabel) throws SQLException {
+        bytes += Integer.BYTES;
+        return delegate.getInt(columnLabel);
+    }
+
+    @Override
+    public long getLong(int columnIndex) throws SQLException {
+        bytes += Long.BYTES;
+        return delegate.getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(String columnLabel) throws SQLException {
+        bytes += Long.BYTES;
+        return delegate.getLong(columnLabel);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) throws SQLException {
+        bytes += Double.BYTES;
+        return delegate.getDouble(columnIndex);
+    }
+
+    @Override
+    public double getDouble(String columnLabel) throws SQLException {
+        bytes += Double.BYTES;
+        return delegate.getDouble(columnLabel);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int columnIndex) throws SQLException {
+        BigDecimal value = delegate.getBigDecimal(columnIndex);
+        bytes += value == null ? 0 : value.precision() / 2 + 1;
+        return value;
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String columnLabel) throws SQLException {
+        BigDecimal value = delegate.getBigDecimal(columnLabel);
+        bytes += value == null ? 0 : value.precision() / 2 + 1;
+        return value;
+    }
+
+    @Override
+    public Timestamp getTimestamp(int columnIndex) throws SQLException {
+        bytes += Long.BYTES;
+        return delegate.getTimestamp(columnIndex);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String columnLabel) throws SQLException {
+        bytes += Long.BYTES;
+        return delegate.getTimestamp(columnLabel);
+    }
+
+    @Override
+    public Object getObject(int columnIndex) throws SQLException {
+        Object value = delegate.getObject(columnIndex);
+        bytes += sizeOf(value);
+        return value;
+    }
+
+    @Override
+    public Object getObject(String columnLabel) throws SQLException {
+        Object value = delegate.getObject(columnLabel);
+        bytes += sizeOf(value);
+        return value;
+    }
+
+    private static long sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return Long.BYTES;
+    }
+}
@@ -0,0 +1,249 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Statement that records each execution under its normalized SQL.
+ * A batch of different statements is recorded under the first one added.
+ */
+public class InstrumentedStatement extends DelegatingStatement {
+
+    private final Connection connection;
+    private final JdbcMetrics metrics;
+    private JdbcMetrics.StatementStats lastStats;
+    private JdbcMetrics.StatementStats batchStats;
+    private InstrumentedResultSet currentResultSet;
+
+    public InstrumentedStatement(Statement delegate, Connection connection, JdbcMetrics metrics) {
+        super(delegate);
+        this.connection = connection;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        ResultSet rs;
+        try {
+            rs = delegate.executeQuery(sql);
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+        stats.recordExecution(start, 0);
+        return wrap(rs, stats);
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            int count = delegate.executeUpdate(sql);
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            int count = delegate.executeUpdate(sql, autoGeneratedKeys);
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            int count = delegate.executeUpdate(sql, columnIndexes);
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            int count = delegate.executeUpdate(sql, columnNames);
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            long count = delegate.executeLargeUpdate(sql);
+            stats.recordExecution(start, count);
+            return count;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            boolean hasResultSet = delegate.execute(sql);
+            executed(stats, start, hasResultSet);
+            return hasResultSet;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            boolean hasResultSet = delegate.execute(sql, autoGeneratedKeys);
+            executed(stats, start, hasResultSet);
+            return hasResultSet;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            boolean hasResultSet = delegate.execute(sql, columnIndexes);
+            executed(stats, start, hasResultSet);
+            return hasResultSet;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        JdbcMetrics.StatementStats stats = metrics.statsFor(sql);
+        long start = System.nanoTime();
+        try {
+            boolean hasResultSet = delegate.execute(sql, columnNames);
+            executed(stats, start, hasResultSet);
+            return hasResultSet;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    private void executed(JdbcMetrics.StatementStats stats, long start, boolean hasResultSet) throws SQLException {
+        stats.recordExecution(start, hasResultSet ? 0 : delegate.getUpdateCount());
+        lastStats = stats;
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet rs = delegate.getResultSet();
+        return lastStats == null ? rs : wrap(rs, lastStats);
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        delegate.addBatch(sql);
+        if (batchStats == null) {
+            batchStats = metrics.statsFor(sql);
+        }
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        delegate.clearBatch();
+        batchStats = null;
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        JdbcMetrics.StatementStats stats = batchStats;
+        batchStats = null;
+        if (stats == null) {
+            return delegate.executeBatch();
+        }
+        long start = System.nanoTime();
+        try {
+            int[] counts = delegate.executeBatch();
+            stats.recordExecution(start, InstrumentedPreparedStatement.sum(counts));
+            return counts;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        JdbcMetrics.StatementStats stats = batchStats;
+        batchStats = null;
+        if (stats == null) {
+            return delegate.executeLargeBatch();
+        }
+        long start = System.nanoTime();
+        try {
+            long[] counts = delegate.executeLargeBatch();
+            stats.recordExecution(start, InstrumentedPreparedStatement.sum(counts));
+            return counts;
+        } catch (SQLException e) {
+            stats.recordError(start);
+            throw e;
+        }
+    }
+
+    private ResultSet wrap(ResultSet rs, JdbcMetrics.StatementStats stats) {
+        if (currentResultSet != null && currentResultSet.getDelegate() == rs) {
+            return currentResultSet;
+        }
+        if (currentResultSet != null) {
+            currentResultSet.recordRead();
+        }
+        currentResultSet = rs == null ? null : new InstrumentedResultSet(rs, this, stats);
+        return currentResultSet;
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (currentResultSet != null) {
+            currentResultSet.recordRead();
+        }
+        delegate.close();
+    }
+}
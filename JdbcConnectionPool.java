@@ -0,0 +1,432 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of physical connections, shared by all the demos.
+ *
+ * At most maxSize connections exist at once; getConnection() waits up to
+ * borrowTimeoutMillis for one to come back. close() on a borrowed connection
+ * hands it back to the pool instead of closing the socket, so callers keep the
+ * usual try-with-resources pattern.
+ *
+ * Connections are only validated (Connection.isValid, a protocol-level ping) when
+ * they sat idle longer than validateAfterIdleMillis, so a busy pool never pays an
+ * extra round trip per borrow. Connections older than maxLifetimeMillis (with a
+ * little jitter, so they do not all expire together) are closed and replaced.
+ * Whenever one is discarded, a background thread opens new ones until minSize exist
+ * again, so the warm minimum holds for the whole run and not just after warmUp().
+ *
+ * With JDBC_METRICS=true every borrowed connection is instrumented, see JdbcMetrics.
+ * With JDBC_STMT_CACHE_SIZE=N every physical connection keeps up to N closed prepared
+ * statements for reuse across borrows, see StatementCachingConnection.
+ */
+public class JdbcConnectionPool implements AutoCloseable {
+
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30_000;
+    public static final long DEFAULT_VALIDATE_AFTER_IDLE_MILLIS = 30_000;
+    public static final long DEFAULT_MAX_LIFETIME_MILLIS = 30 * 60_000;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterIdleNanos;
+    private final long maxLifetimeNanos;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PhysicalConnection> idle = new LinkedBlockingDeque<>();
+    private volatile boolean closed;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final JdbcMetrics metrics = JdbcMetrics.enabled() ? JdbcMetrics.global() : null;
+    private final int statementCacheSize = statementCacheSize();
+    private final StatementCachingConnection.Stats statementCacheStats = new StatementCachingConnection.Stats();
+
+    // Metrics
+    private final LatencyHistogram waitHistogram = new LatencyHistogram();
+    private final LatencyHistogram connectHistogram = new LatencyHistogram();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong validations = new AtomicLong();
+    private final AtomicLong discardedInvalid = new AtomicLong();
+    private final AtomicLong discardedExpired = new AtomicLong();
+    private final AtomicLong discardedBroken = new AtomicLong();
+    private final AtomicLong refilled = new AtomicLong();
+
+    public JdbcConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis) {
+        this(url, user, password, 0, maxSize, borrowTimeoutMillis, DEFAULT_VALIDATE_AFTER_IDLE_MILLIS,
+                DEFAULT_MAX_LIFETIME_MILLIS);
+    }
+
+    public JdbcConnectionPool(String url, String user, String password, int minSize, int maxSize,
+            long borrowTimeoutMillis, long validateAfterIdleMillis, long maxLifetimeMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = Math.min(minSize, maxSize);
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterIdleMillis);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Builds the JDBC URL from TIDB_HOST, TIDB_PORT, TIDB_DATABASE (or TIDB_DB_NAME, as
+     * in env.sh) and USE_SSL. TiDB Cloud requires TLS; USE_SSL=false is for a local
+     * TiDB or MySQL stand-in. extraParams are appended as-is, e.g. "&cachePrepStmts=true".
+     */
+    public static String connectionUrl(String extraParams) {
+        return connectionUrl(host(), port(), extraParams);
+    }
+
+    /** Same as connectionUrl(extraParams), for another address, e.g. a local proxy in front of the cluster. */
+    public static String connectionUrl(String host, int port, String extraParams) {
+        String tidbDatabase = System.getenv().getOrDefault("TIDB_DATABASE",
+                System.getenv().getOrDefault("TIDB_DB_NAME", "test"));
+
+        String connectionUrl = "jdbc:mysql://" + host + ":" + port + "/" + tidbDatabase +
+                (useSsl() ? "?sslMode=VERIFY_IDENTITY&enabledTLSProtocols=TLSv1.2,TLSv1.3" : "?sslMode=DISABLED");
+        return connectionUrl + extraParams;
+    }
+
+    public static String host() {
+        return System.getenv().getOrDefault("TIDB_HOST", "localhost");
+    }
+
+    public static int port() {
+        return Integer.parseInt(System.getenv().getOrDefault("TIDB_PORT", "4000"));
+    }
+
+    public static boolean useSsl() {
+        return !"false".equalsIgnoreCase(System.getenv().getOrDefault("USE_SSL", "true"));
+    }
+
+    /** Prepared statements cached per physical connection, from JDBC_STMT_CACHE_SIZE; 0 turns it off. */
+    public static int statementCacheSize() {
+        return Integer.parseInt(System.getenv().getOrDefault("JDBC_STMT_CACHE_SIZE", "0"));
+    }
+
+    public static String user() {
+        return System.getenv().getOrDefault("TIDB_USER", "root");
+    }
+
+    public static String password() {
+        return System.getenv().getOrDefault("TIDB_PASSWORD", "");
+    }
+
+    /** A pool for the cluster in the TIDB_* environment variables, warmed up to minSize. */
+    public static JdbcConnectionPool fromEnv(String extraParams, int minSize, int maxSize) throws SQLException {
+        JdbcConnectionPool pool = new JdbcConnectionPool(connectionUrl(extraParams), user(), password(), minSize,
+                maxSize, DEFAULT_BORROW_TIMEOUT_MILLIS, DEFAULT_VALIDATE_AFTER_IDLE_MILLIS, DEFAULT_MAX_LIFETIME_MILLIS);
+        pool.warmUp(minSize);
+        return pool;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Time callers spent in getConnection(), including opening new connections. */
+    public LatencyHistogram getWaitHistogram() {
+        return waitHistogram;
+    }
+
+    /**
+     * Opens connections in parallel until count are idle, so the TCP+TLS handshakes
+     * happen before the timed part of a run and not one after another.
+     */
+    public void warmUp(int count) throws SQLException {
+        int missing = Math.min(count, maxSize) - idle.size();
+        if (missing <= 0) {
+            return;
+        }
+        ExecutorService opener = Executors.newFixedThreadPool(Math.min(missing, 16));
+        List<PhysicalConnection> ready = new ArrayList<>();
+        SQLException failure = null;
+        boolean interrupted = false;
+        try {
+            List<Future<PhysicalConnection>> opened = new ArrayList<>();
+            for (int i = 0; i < missing; i++) {
+                opened.add(opener.submit(this::open));
+            }
+            // Wait for every open, even after a failure, so none is left open outside the pool
+            for (Future<PhysicalConnection> f : opened) {
+                while (true) {
+                    try {
+                        ready.add(f.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        if (failure == null) {
+                            failure = new SQLException("Interrupted while warming up the pool", e);
+                        }
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (failure == null) {
+                            failure = cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+                        }
+                        break;
+                    }
+                }
+            }
+        } finally {
+            opener.shutdown();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            for (PhysicalConnection physical : ready) {
+                closeQuietly(physical.connection);
+            }
+            throw failure;
+        }
+        for (PhysicalConnection physical : ready) {
+            idle.offerLast(physical);
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a pooled connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        }
+        try {
+            PhysicalConnection physical = takeIdle();
+            if (physical == null) {
+                physical = open();
+            }
+            waitHistogram.recordSince(start);
+            Connection pooled = new PooledConnection(physical);
+            return metrics == null ? pooled : metrics.instrument(pooled);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** Next usable idle connection, skipping (and closing) expired or dead ones. */
+    private PhysicalConnection takeIdle() {
+        PhysicalConnection physical;
+        while ((physical = idle.pollFirst()) != null) {
+            long now = System.nanoTime();
+            if (now - physical.expiresAtNanos >= 0) {
+                discardedExpired.incrementAndGet();
+                closeQuietly(physical.connection);
+                refillLater();
+                continue;
+            }
+            if (now - physical.lastUsedNanos >= validateAfterIdleNanos) {
+                validations.incrementAndGet();
+                if (!isValid(physical.connection)) {
+                    discardedInvalid.incrementAndGet();
+                    closeQuietly(physical.connection);
+                    refillLater();
+                    continue;
+                }
+            }
+            return physical;
+        }
+        return null;
+    }
+
+    /**
+     * Starts a thread that opens connections until minSize exist again, unless one is
+     * already running. Each open holds a permit like a borrow, so the pool never has
+     * more than maxSize connections, and gives up when none is free: then at least
+     * that many are in use anyway.
+     */
+    private void refillLater() {
+        if (minSize == 0 || closed || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        Thread refiller = new Thread(() -> {
+            try {
+                while (!closed && (maxSize - permits.availablePermits()) + idle.size() < minSize
+                        && permits.tryAcquire()) {
+                    PhysicalConnection physical = null;
+                    try {
+                        physical = open();
+                        refilled.incrementAndGet();
+                    } finally {
+                        if (physical != null) {
+                            release(physical, false);
+                        } else {
+                            permits.release();
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error refilling the pool: " + e);
+            } finally {
+                refilling.set(false);
+            }
+        }, "pool-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PhysicalConnection open() throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = DriverManager.getConnection(url, user, password);
+        if (statementCacheSize > 0) {
+            connection = new StatementCachingConnection(connection, statementCacheSize, statementCacheStats);
+        }
+        connectHistogram.recordSince(start);
+        long jitter = maxLifetimeNanos / 40 == 0 ? 0 : ThreadLocalRandom.current().nextLong(maxLifetimeNanos / 40);
+        return new PhysicalConnection(connection, start + maxLifetimeNanos - jitter);
+    }
+
+    private void release(PhysicalConnection physical, boolean broken) {
+        boolean discarded = false;
+        try {
+            if (broken) {
+                discardedBroken.incrementAndGet();
+            }
+            if (closed || broken) {
+                closeQuietly(physical.connection);
+                discarded = true;
+            } else if (System.nanoTime() - physical.expiresAtNanos >= 0) {
+                discardedExpired.incrementAndGet();
+                closeQuietly(physical.connection);
+                discarded = true;
+            } else {
+                physical.lastUsedNanos = System.nanoTime();
+                // Most recently used first, so idle connections beyond the working set age out together
+                idle.offerFirst(physical);
+            }
+        } finally {
+            permits.release();
+        }
+        if (discarded) {
+            refillLater();
+        }
+    }
+
+    private static void closeQuietly(Connection physical) {
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            System.out.println("Error disconnecting: " + e);
+        }
+    }
+
+    public void printStats() {
+        System.out.println(String.format(Locale.ROOT,
+                "Pool stats: %d borrows, wait p50 %.3f ms, p99 %.3f ms, max %.3f ms, %d timeouts",
+                waitHistogram.count(), waitHistogram.percentileMillis(50), waitHistogram.percentileMillis(99),
+                waitHistogram.maxNanos() / 1e6, timeouts.get()));
+        System.out.println(String.format(Locale.ROOT,
+                "            %d connections opened, connect p50 %.3f ms, max %.3f ms; %d idle validations; "
+                        + "discarded %d invalid, %d expired, %d broken; %d reopened to keep %d warm",
+                connectHistogram.count(), connectHistogram.percentileMillis(50), connectHistogram.maxNanos() / 1e6,
+                validations.get(), discardedInvalid.get(), discardedExpired.get(), discardedBroken.get(),
+                refilled.get(), minSize));
+        if (statementCacheSize > 0) {
+            System.out.println("            " + statementCacheStats);
+        }
+    }
+
+    /** Hits, misses and evictions of the statement caches of all connections, see JDBC_STMT_CACHE_SIZE. */
+    public StatementCachingConnection.Stats getStatementCacheStats() {
+        return statementCacheStats;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PhysicalConnection physical;
+        while ((physical = idle.pollFirst()) != null) {
+            closeQuietly(physical.connection);
+        }
+    }
+
+    private static final class PhysicalConnection {
+        final Connection connection;
+        final long expiresAtNanos;
+        long lastUsedNanos = System.nanoTime();
+
+        PhysicalConnection(Connection connection, long expiresAtNanos) {
+            this.connection = connection;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final class PooledConnection extends DelegatingConnection {
+        private final PhysicalConnection physical;
+        private boolean returned;
+
+        PooledConnection(PhysicalConnection physical) {
+            super(physical.connection);
+            this.physical = physical;
+        }
+
+        /** After close() the physical connection may already be lent to someone else. */
+        @Override
+        protected Connection delegate() throws SQLException {
+            if (returned) {
+                throw new SQLException("Connection is closed");
+            }
+            return delegate;
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return returned || delegate.isClosed();
+        }
+
+        /** Rolls back anything left open and returns the physical connection to the pool. */
+        @Override
+        public void close() throws SQLException {
+            if (returned) {
+                return;
+            }
+            returned = true;
+            boolean broken = false;
+            try {
+                if (!delegate.getAutoCommit()) {
+                    delegate.rollback();
+                    delegate.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                broken = true;
+            }
+            release(physical, broken);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Per-statement execution metrics, keyed by normalized SQL (literals replaced by ?).
+ *
+ * Switched on for every connection handed out by JdbcConnectionPool with
+ * JDBC_METRICS=true in the environment or -Djdbc.metrics=true; the snapshot is
+ * printed when the JVM exits and can be printed at any time with printSnapshot().
+ *
+ * The hot path is one ConcurrentHashMap lookup by the raw SQL string (whose hash
+ * is cached by String itself), then a histogram record and a few LongAdder adds.
+ * SQL is only normalized the first time a raw string is seen.
+ */
+public class JdbcMetrics {
+
+    /** Raw SQL strings remembered; statements with inlined literals beyond this are normalized on every call. */
+    private static final int MAX_RAW_SQL = 10_000;
+
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern REPEATED_TUPLES = Pattern.compile("\\(\\.\\.\\.\\)(\\s*,\\s*\\(\\.\\.\\.\\))+");
+
+    private static JdbcMetrics global;
+
+    private final ConcurrentHashMap<String, StatementStats> byRawSql = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StatementStats> byNormalizedSql = new ConcurrentHashMap<>();
+    private final StatementStats commits = statsFor("COMMIT");
+    private final StatementStats rollbacks = statsFor("ROLLBACK");
+
+    public static boolean enabled() {
+        String value = System.getProperty("jdbc.metrics", System.getenv().getOrDefault("JDBC_METRICS", "false"));
+        return "true".equalsIgnoreCase(value);
+    }
+
+    /** The process-wide registry, which prints its snapshot at exit. */
+    public static synchronized JdbcMetrics global() {
+        if (global == null) {
+            JdbcMetrics metrics = new JdbcMetrics();
+            Runtime.getRuntime().addShutdownHook(new Thread(metrics::printSnapshot, "jdbc-metrics-dump"));
+            global = metrics;
+        }
+        return global;
+    }
+
+    /** Wraps the connection so that everything executed through it is recorded here. */
+    public Connection instrument(Connection connection) {
+        return new InstrumentedConnection(connection, this);
+    }
+
+    public StatementStats statsFor(String sql) {
+        StatementStats stats = byRawSql.get(sql);
+        if (stats != null) {
+            return stats;
+        }
+        stats = byNormalizedSql.computeIfAbsent(normalize(sql), StatementStats::new);
+        if (byRawSql.size() < MAX_RAW_SQL) {
+            byRawSql.putIfAbsent(sql, stats);
+        }
+        return stats;
+    }
+
+    public StatementStats commits() {
+        return commits;
+    }
+
+    public StatementStats rollbacks() {
+        return rollbacks;
+    }
+
+    /**
+     * Replaces string and numeric literals with ?, collapses whitespace, and folds
+     * parameter lists so that IN (1, 2, 3) and multi-row VALUES of any length
+     * end up as the same statement.
+     */
+    public static String normalize(String sql) {
+        StringBuilder out = new StringBuilder(sql.length());
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i, c);
+                out.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (out.length() > 0 && i < n) {
+                    out.append(' ');
+                }
+            } else if (Character.isDigit(c) && !isIdentifierPart(out)) {
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                out.append('?');
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        String normalized = PARAMETER_LIST.matcher(out).replaceAll("(...)");
+        return REPEATED_TUPLES.matcher(normalized).replaceAll("(...), ...");
+    }
+
+    private static int skipQuoted(String sql, int start, char quote) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierPart(StringBuilder out) {
+        if (out.length() == 0) {
+            return false;
+        }
+        char prev = out.charAt(out.length() - 1);
+        return Character.isLetterOrDigit(prev) || prev == '_' || prev == '`' || prev == '$';
+    }
+
+    /** Every statement seen so far, most total time first. */
+    public List<StatementStats> snapshot() {
+        List<StatementStats> stats = new ArrayList<>();
+        for (StatementStats s : byNormalizedSql.values()) {
+            if (s.executions() > 0 || s.errors() > 0) {
+                stats.add(s);
+            }
+        }
+        stats.sort(Comparator.comparingLong(StatementStats::totalNanos).reversed());
+        return stats;
+    }
+
+    public void printSnapshot() {
+        List<StatementStats> stats = snapshot();
+        if (stats.isEmpty()) {
+            return;
+        }
+        System.out.println("JDBC metrics (latency in ms):");
+        System.out.println(String.format(Locale.ROOT, "%10s %8s %10s %10s %10s %10s %12s %12s  %s",
+                "count", "errors", "total", "p50", "p99", "max", "rows", "bytes read", "statement"));
+        for (StatementStats s : stats) {
+            LatencyHistogram latency = s.latency();
+            System.out.println(String.format(Locale.ROOT, "%10d %8d %10.1f %10.3f %10.3f %10.3f %12d %12d  %s",
+                    s.executions(), s.errors(), s.totalNanos() / 1e6, latency.percentileMillis(50),
+                    latency.percentileMillis(99), latency.maxNanos() / 1e6, s.rows(), s.bytesRead(),
+                    abbreviate(s.sql(), 120)));
+        }
+    }
+
+    private static String abbreviate(String sql, int maxLength) {
+        return sql.length() <= maxLength ? sql : sql.substring(0, maxLength - 3) + "...";
+    }
+
+    /** Counters for one normalized statement. Safe to update from any thread. */
+    public static final class StatementStats {
+        private final String sql;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+
+        StatementStats(String sql) {
+            this.sql = sql;
+        }
+
+        /** Records one successful execution that started at startNanos (a System.nanoTime() reading). */
+        public void recordExecution(long startNanos, long rows) {
+            latency.recordSince(startNanos);
+            if (rows > 0) {
+                this.rows.add(rows);
+            }
+        }
+
+        public void recordError(long startNanos) {
+            latency.recordSince(startNanos);
+            errors.increment();
+        }
+
+        /** Rows and bytes fetched through a result set, added when it is closed or exhausted. */
+        public void recordRead(long rows, long bytes) {
+            this.rows.add(rows);
+            this.bytesRead.add(bytes);
+        }
+
+        public String sql() {
+            return sql;
+        }
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+
+        public long executions() {
+            return latency.count() - errors.sum();
+        }
+
+        public long errors() {
+            return errors.sum();
+        }
+
+        public long totalNanos() {
+            return latency.totalNanos();
+        }
+
+        public long rows() {
+            return rows.sum();
+        }
+
+        public long bytesRead() {
+            return bytesRead.sum();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Prints every result of a statement, all columns, one row at a time.
+ *
+ * Rows are streamed instead of buffered: the default fetch size Integer.MIN_VALUE
+ * makes Connector/J read rows off the socket as next() is called, and a positive
+ * fetch size uses a server-side cursor when the URL has useCursorFetch=true.
+ * Output goes through one large buffered writer that is flushed per statement,
+ * so printing millions of rows costs no per-row string concatenation or println.
+ *
+ * The fetch size can be set with JDBC_FETCH_SIZE in the environment.
+ */
+public class JdbcResultPrinter {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    private static JdbcResultPrinter stdout;
+
+    private final Writer out;
+    private final int fetchSize;
+    private final char[] digits = new char[20];
+
+    public JdbcResultPrinter(Writer out, int fetchSize) {
+        this.out = out;
+        this.fetchSize = fetchSize;
+    }
+
+    /** A printer on System.out with the fetch size from JDBC_FETCH_SIZE, streaming by default. */
+    public static synchronized JdbcResultPrinter stdout() {
+        if (stdout == null) {
+            int fetchSize = Integer.parseInt(System.getenv().getOrDefault("JDBC_FETCH_SIZE",
+                    String.valueOf(Integer.MIN_VALUE)));
+            stdout = new JdbcResultPrinter(new BufferedWriter(
+                    new OutputStreamWriter(System.out, Charset.defaultCharset()), DEFAULT_BUFFER_SIZE), fetchSize);
+        }
+        return stdout;
+    }
+
+    /** Executes stmtText on System.out's printer, reporting any failure as an error line. */
+    public static void printQuery(String stmtText, Connection connection) {
+        try {
+            stdout().print(stmtText, connection);
+        } catch (SQLException | IOException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    /**
+     * Executes sql (which may hold several statements) and prints each result set,
+     * or the update count for statements without one. Returns the rows printed.
+     */
+    public synchronized long print(String sql, Connection connection) throws SQLException, IOException {
+        long rows = 0;
+        out.write("\n/* Executing: ");
+        out.write(sql);
+        out.write("; */\n");
+        try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(fetchSize);
+            boolean isResultSet = statement.execute(sql);
+            while (true) {
+                if (isResultSet) {
+                    try (ResultSet resultSet = statement.getResultSet()) {
+                        rows += print(resultSet);
+                    }
+                } else {
+                    int updateCount = statement.getUpdateCount();
+                    if (updateCount == -1) {
+                        break;
+                    }
+                    out.write('\t');
+                    writeLong(updateCount);
+                    out.write(" row(s) affected\n");
+                }
+                isResultSet = statement.getMoreResults();
+            }
+        } finally {
+            out.flush();
+        }
+        return rows;
+    }
+
+    /** Prints the remaining rows of resultSet with a header line, and returns how many there were. */
+    public synchronized long print(ResultSet resultSet) throws SQLException, IOException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columns = metaData.getColumnCount();
+        out.write("\tRow#");
+        for (int i = 1; i <= columns; i++) {
+            out.write(", ");
+            out.write(metaData.getColumnLabel(i));
+        }
+        out.write('\n');
+
+        long count = 0;
+        while (resultSet.next()) {
+            out.write('\t');
+            writeLong(++count);
+            out.write(')');
+            for (int i = 1; i <= columns; i++) {
+                out.write(i == 1 ? " " : ", ");
+                String value = resultSet.getString(i);
+                out.write(value == null ? "null" : value);
+            }
+            out.write('\n');
+        }
+        return count;
+    }
+
+    /** Writes a decimal number without going through Long.toString. */
+    private void writeLong(long value) throws IOException {
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.write(digits, pos, digits.length - pos);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,296 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One consumer of a job queue kept in a TiDB table, claiming jobs in batches with
+ * pessimistic row locks.
+ *
+ * A claim is a short transaction: BEGIN PESSIMISTIC, SELECT the first batchSize pending
+ * jobs FOR UPDATE, mark them claimed, COMMIT. Jobs are then handled outside any
+ * transaction and acknowledged in batches by deleting them, ackBatchSize at a time.
+ *
+ * With plain FOR UPDATE (nowait false, no partitions) every consumer asks for the same
+ * head of the queue and waits for the one holding it: a lock convoy. With nowait, a claim
+ * that meets a locked row fails at once (error 3572) and the consumer tries elsewhere.
+ * With partitioned claiming, each job has a partition (part column, e.g. hash of its key
+ * or its key range) and consumer i of n claims from the partitions p with p % n == i,
+ * then steals from the other partitions once its own are empty, so consumers rarely
+ * collide at all. A failed handler puts its job back as pending.
+ *
+ * The consumer stops when a full pass over the partitions finds nothing to claim, or
+ * when stop() is called. Claimed jobs whose consumer died stay claimed until
+ * requeueExpired() puts them back.
+ */
+public class JobQueueConsumer implements Runnable {
+
+    private static final int ER_LOCK_NOWAIT = 3572;
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+
+    /** Handles one job; an exception puts the job back in the queue. */
+    public interface JobHandler {
+        void handle(long id, String payload) throws Exception;
+    }
+
+    /** Counters shared by all consumers of a run. */
+    public static final class Stats {
+        private final LongAdder claims = new LongAdder();
+        private final LongAdder emptyClaims = new LongAdder();
+        private final LongAdder nowaitRejections = new LongAdder();
+        private final LongAdder lockWaitTimeouts = new LongAdder();
+        private final LongAdder jobsClaimed = new LongAdder();
+        private final LongAdder jobsAcked = new LongAdder();
+        private final LongAdder jobsFailed = new LongAdder();
+        private final LongAdder acks = new LongAdder();
+        // Time in the locking SELECT of each claim, which is where a consumer waits for row locks
+        private final LatencyHistogram lockWait = new LatencyHistogram();
+
+        public long jobsAcked() {
+            return jobsAcked.sum();
+        }
+
+        public long nowaitRejections() {
+            return nowaitRejections.sum();
+        }
+
+        public LatencyHistogram getLockWait() {
+            return lockWait;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "Queue stats: %d claims (%d empty), %d jobs claimed, %d acked in %d acks, %d failed, "
+                            + "%d NOWAIT rejections, %d lock wait timeouts; lock wait p50 %.3f ms, p99 %.3f ms, "
+                            + "total %.1f ms",
+                    claims.sum(), emptyClaims.sum(), jobsClaimed.sum(), jobsAcked.sum(), acks.sum(), jobsFailed.sum(),
+                    nowaitRejections.sum(), lockWaitTimeouts.sum(), lockWait.percentileMillis(50),
+                    lockWait.percentileMillis(99), lockWait.totalNanos() / 1e6);
+        }
+    }
+
+    private final JdbcConnectionPool pool;
+    private final String table;
+    private final int partitions;
+    private final int consumerIndex;
+    private final int consumerCount;
+    private final int batchSize;
+    private final int ackBatchSize;
+    private final boolean nowait;
+    private final JobHandler handler;
+    private final Stats stats;
+    private volatile boolean stopped;
+
+    /**
+     * @param partitions    partitions to claim from, 0 to claim from the whole queue
+     * @param consumerIndex this consumer's number in [0, consumerCount), which picks its own partitions
+     * @param nowait        claim with FOR UPDATE NOWAIT instead of waiting for locked rows
+     */
+    public JobQueueConsumer(JdbcConnectionPool pool, String table, int partitions, int consumerIndex,
+            int consumerCount, int batchSize, int ackBatchSize, boolean nowait, JobHandler handler, Stats stats) {
+        this.pool = pool;
+        this.table = table;
+        this.partitions = partitions;
+        this.consumerIndex = consumerIndex;
+        this.consumerCount = consumerCount;
+        this.batchSize = batchSize;
+        this.ackBatchSize = ackBatchSize;
+        this.nowait = nowait;
+        this.handler = handler;
+        this.stats = stats;
+    }
+
+    /** Creates the queue table, with an index to claim the oldest pending jobs of a partition. */
+    public static void createTable(Connection connection, String table) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + table);
+            stmt.execute("CREATE TABLE " + table + " (id bigint PRIMARY KEY AUTO_INCREMENT, part int NOT NULL, "
+                    + "state tinyint NOT NULL DEFAULT 0, payload varchar(255), owner int, claimed_at datetime, "
+                    + "attempts int NOT NULL DEFAULT 0, KEY idx_claim (part, state, id), KEY idx_state (state, id))");
+        }
+    }
+
+    /** The partition of a job, from a hash of its key. */
+    public static int partitionOf(long jobKey, int partitions) {
+        return Math.floorMod(Long.hashCode(jobKey * 0x9E3779B97F4A7C15L), partitions);
+    }
+
+    /** Puts jobs claimed more than leaseSeconds ago back in the queue; returns how many. */
+    public static int requeueExpired(Connection connection, String table, int leaseSeconds) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("UPDATE " + table
+                + " SET state = 0, owner = NULL WHERE state = 1 AND claimed_at < NOW() - INTERVAL ? SECOND")) {
+            ps.setInt(1, leaseSeconds);
+            return ps.executeUpdate();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        List<Long> acks = new ArrayList<>(ackBatchSize);
+        List<Long> failed = new ArrayList<>();
+        try (Connection connection = pool.getConnection()) {
+            String claimSql = "SELECT id, payload FROM " + table + " WHERE "
+                    + (partitions > 0 ? "part = ? AND " : "") + "state = 0 ORDER BY id LIMIT " + batchSize
+                    + " FOR UPDATE" + (nowait ? " NOWAIT" : "");
+            try (Statement stmt = connection.createStatement();
+                    PreparedStatement claim = connection.prepareStatement(claimSql)) {
+                int start = partitions > 0 ? ThreadLocalRandom.current().nextInt(partitions) : 0;
+                // Position in the claim order of the last own partition that had jobs, where the next claim starts
+                int cursor = 0;
+                while (!stopped) {
+                    List<Long> jobs = new ArrayList<>();
+                    List<String> payloads = new ArrayList<>();
+                    // Own partitions first, then the others; a pass that claims nothing and is never rejected ends the run
+                    boolean rejected = false;
+                    int passes = partitions > 0 ? ownPartitions() + partitions : 1;
+                    for (int k = 0; k < passes && jobs.isEmpty() && !stopped; k++) {
+                        int i = (cursor + k) % passes;
+                        int part = partitions > 0 ? nextPartition(i, start) : -1;
+                        int result = claim(connection, stmt, claim, part, jobs, payloads);
+                        rejected |= result < 0;
+                        if (result > 0) {
+                            // After stealing, go back to the own partitions rather than keep colliding with their owner
+                            cursor = i < ownPartitions() ? i : 0;
+                        }
+                    }
+                    if (jobs.isEmpty()) {
+                        if (!rejected) {
+                            break;
+                        }
+                        // Everything claimable was locked by others: back off briefly instead of spinning
+                        TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextInt(100, 1000));
+                        continue;
+                    }
+                    for (int i = 0; i < jobs.size(); i++) {
+                        long id = jobs.get(i);
+                        try {
+                            handler.handle(id, payloads.get(i));
+                            acks.add(id);
+                        } catch (Exception e) {
+                            failed.add(id);
+                        }
+                    }
+                    if (acks.size() >= ackBatchSize) {
+                        ack(connection, acks);
+                    }
+                    if (!failed.isEmpty()) {
+                        release(connection, failed);
+                    }
+                }
+                ack(connection, acks);
+            }
+        } catch (SQLException e) {
+            System.out.println("Error: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The i-th partition to try: this consumer's own ones first, then all of them from start. */
+    private int nextPartition(int i, int start) {
+        int own = ownPartitions();
+        if (i < own) {
+            return consumerIndex + i * consumerCount;
+        }
+        return (start + i - own) % partitions;
+    }
+
+    /** Partitions p with p % consumerCount == consumerIndex. */
+    private int ownPartitions() {
+        return consumerIndex < partitions ? (partitions - 1 - consumerIndex) / consumerCount + 1 : 0;
+    }
+
+    /** Claims up to batchSize jobs of a partition (-1 for all); returns how many, or -1 if NOWAIT hit a lock. */
+    private int claim(Connection connection, Statement stmt, PreparedStatement claim, int part, List<Long> jobs,
+            List<String> payloads) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            stmt.execute("BEGIN PESSIMISTIC");
+            if (part >= 0) {
+                claim.setInt(1, part);
+            }
+            stats.claims.increment();
+            long start = System.nanoTime();
+            try (ResultSet rs = claim.executeQuery()) {
+                while (rs.next()) {
+                    jobs.add(rs.getLong(1));
+                    payloads.add(rs.getString(2));
+                }
+            } finally {
+                stats.lockWait.recordSince(start);
+            }
+            if (jobs.isEmpty()) {
+                stats.emptyClaims.increment();
+                connection.commit();
+                return 0;
+            }
+            StringBuilder sql = new StringBuilder("UPDATE ").append(table)
+                    .append(" SET state = 1, owner = ?, claimed_at = NOW() WHERE id IN (");
+            try (PreparedStatement mark = connection.prepareStatement(sql.append(joinIds(jobs)).append(')').toString())) {
+                mark.setInt(1, consumerIndex);
+                mark.executeUpdate();
+            }
+            connection.commit();
+            stats.jobsClaimed.add(jobs.size());
+            return jobs.size();
+        } catch (SQLException e) {
+            jobs.clear();
+            payloads.clear();
+            connection.rollback();
+            if (e.getErrorCode() == ER_LOCK_NOWAIT) {
+                stats.nowaitRejections.increment();
+                return -1;
+            }
+            if (e.getErrorCode() == ER_LOCK_WAIT_TIMEOUT) {
+                stats.lockWaitTimeouts.increment();
+                return -1;
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /** Deletes the handled jobs in one statement. */
+    private void ack(Connection connection, List<Long> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("DELETE FROM " + table + " WHERE id IN (" + joinIds(ids) + ")");
+        }
+        stats.acks.increment();
+        stats.jobsAcked.add(ids.size());
+        ids.clear();
+    }
+
+    /** Puts failed jobs back as pending. */
+    private void release(Connection connection, List<Long> ids) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("UPDATE " + table + " SET state = 0, owner = NULL, attempts = attempts + 1 WHERE id IN ("
+                    + joinIds(ids) + ")");
+        }
+        stats.jobsFailed.add(ids.size());
+        ids.clear();
+    }
+
+    private static String joinIds(List<Long> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (Long id : ids) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(id);
+        }
+        return sb.toString();
+    }
+}
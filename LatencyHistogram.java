@@ -0,0 +1,119 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram (nanoseconds).
+ *
+ * Values below 128ns get their own bucket; above that every power of two is split
+ * into 64 sub-buckets, so any reported percentile is within ~1.6% of the real value.
+ * Values above ~18 minutes are clamped into the last bucket.
+ * Recording is a single atomic increment plus an occasional CAS on max, and never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int MAX_SHIFT = 34;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private static int bucketIndex(long nanos) {
+        if (nanos < LINEAR_BUCKETS) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(nanos)) - 6;
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((nanos >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long bucketMidpoint(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int k = index - LINEAR_BUCKETS;
+        int shift = k / SUB_BUCKETS + 1;
+        long low = (long) (k % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return low + ((1L << shift) >>> 1);
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(nanos));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /** Records the time elapsed since startNanos (a System.nanoTime() reading) and returns it. */
+    public long recordSince(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        record(elapsed);
+        return elapsed;
+    }
+
+    /** Adds every sample of the other histogram to this one. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        long otherMax = other.maxNanos.get();
+        long max = maxNanos.get();
+        while (otherMax > max && !maxNanos.compareAndSet(max, otherMax)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long count() {
+        return totalCount.get();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    public long totalNanos() {
+        return totalNanos.get();
+    }
+
+    public double meanNanos() {
+        long n = totalCount.get();
+        return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    /** Returns the value at the given percentile (0-100), in nanoseconds. */
+    public long percentileNanos(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketMidpoint(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    public double percentileMillis(double percentile) {
+        return percentileNanos(percentile) / 1_000_000.0;
+    }
+}
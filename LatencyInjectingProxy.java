@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local TCP proxy that adds a fixed delay in each direction, to see how client code
+ * behaves at a given network round-trip time against a local TiDB or MySQL.
+ *
+ * Point the JDBC URL at 127.0.0.1:getPort() and every byte reaches the server
+ * rttMicros / 2 later, and every reply comes back rttMicros / 2 later, while bandwidth
+ * is unchanged: reading never waits for the delayed write, so many packets can be in
+ * flight at once as on a real long link. TLS passes through untouched, but a URL with
+ * sslMode=VERIFY_IDENTITY will not accept 127.0.0.1 for the server's name.
+ */
+public class LatencyInjectingProxy implements AutoCloseable {
+
+    private final ServerSocket server;
+    private final String targetHost;
+    private final int targetPort;
+    private final long oneWayNanos;
+    private final Thread acceptor;
+
+    public LatencyInjectingProxy(String targetHost, int targetPort, long rttMicros) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.oneWayNanos = TimeUnit.MICROSECONDS.toNanos(rttMicros) / 2;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::acceptLoop, "latency-proxy-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                Socket upstream = new Socket();
+                upstream.connect(new InetSocketAddress(targetHost, targetPort), 10_000);
+                client.setTcpNoDelay(true);
+                upstream.setTcpNoDelay(true);
+                pipe(client, upstream, "up");
+                pipe(upstream, client, "down");
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.out.println("Error: " + e);
+                }
+            }
+        }
+    }
+
+    /** One direction: a reader that timestamps chunks, a writer that sends each when it is due. */
+    private void pipe(Socket from, Socket to, String direction) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        LinkedBlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            byte[] buf = new byte[1 << 16];
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    chunks.add(new Chunk(System.nanoTime() + oneWayNanos, Arrays.copyOf(buf, n)));
+                }
+            } catch (IOException e) {
+                // Closed by the other side
+            }
+            chunks.add(new Chunk(System.nanoTime() + oneWayNanos, null));
+        }, "latency-proxy-" + direction + "-read");
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = chunks.take();
+                    long wait = chunk.dueNanos - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (chunk.data == null) {
+                        break;
+                    }
+                    out.write(chunk.data);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection gone
+            }
+            closeQuietly(from);
+            closeQuietly(to);
+        }, "latency-proxy-" + direction + "-write");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /** Bytes read at one moment, to be written oneWayNanos later; null data marks end of stream. */
+    private static final class Chunk {
+        final long dueNanos;
+        final byte[] data;
+
+        Chunk(long dueNanos, byte[] data) {
+            this.dueNanos = dueNanos;
+            this.data = data;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+
+/**
+ * Bulk loader that streams rows into LOAD DATA LOCAL INFILE without staging a file.
+ *
+ * Rows come from a RowProducer and are encoded on the fly (tab- or comma-separated,
+ * backslash-escaped UTF-8, \N for NULL) into a small reusable buffer that Connector/J
+ * reads through its local-infile InputStream hook, so memory stays bounded whatever the
+ * size of the load. The rows are split into chunks of at most chunkRows rows or about
+ * chunkBytes bytes, one LOAD DATA statement (and one transaction) each, to stay under
+ * TiDB's transaction size limit.
+ *
+ * The connection URL needs allowLoadLocalInfile=true.
+ */
+public class LocalInfileLoader {
+
+    public static final int DEFAULT_CHUNK_ROWS = 100_000;
+    public static final long DEFAULT_CHUNK_BYTES = 32L << 20;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Writes the fields of the next row and returns true, or returns false when there are no more rows. */
+    public interface RowProducer {
+        boolean nextRow(RowWriter row) throws SQLException;
+    }
+
+    /** Receives the fields of one row, in column order. */
+    public interface RowWriter {
+        void field(long value);
+
+        void field(CharSequence value);
+
+        void nullField();
+    }
+
+    private final char delimiter;
+    private final int chunkRows;
+    private final long chunkBytes;
+
+    public LocalInfileLoader(char delimiter, int chunkRows, long chunkBytes) {
+        if (delimiter == '\\' || delimiter == '\n') {
+            throw new IllegalArgumentException("Unusable field delimiter: " + delimiter);
+        }
+        this.delimiter = delimiter;
+        this.chunkRows = chunkRows;
+        this.chunkBytes = chunkBytes;
+    }
+
+    public static LocalInfileLoader tsv(int chunkRows, long chunkBytes) {
+        return new LocalInfileLoader('\t', chunkRows, chunkBytes);
+    }
+
+    public static LocalInfileLoader csv(int chunkRows, long chunkBytes) {
+        return new LocalInfileLoader(',', chunkRows, chunkBytes);
+    }
+
+    public String loadStatement(String tableName, String... columns) {
+        String delimiterLiteral = delimiter == '\t' ? "\\t" : delimiter == '\'' ? "\\'" : String.valueOf(delimiter);
+        return "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + tableName + " CHARACTER SET utf8mb4"
+                + " FIELDS TERMINATED BY '" + delimiterLiteral + "' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n'"
+                + " (" + String.join(", ", columns) + ")";
+    }
+
+    public long load(Connection connection, String tableName, String[] columns, RowProducer producer)
+            throws SQLException {
+        return load(connection, tableName, columns, producer, null);
+    }
+
+    /**
+     * Loads every row of producer, one LOAD DATA per chunk, and returns the rows the server
+     * reports as loaded. Without autocommit, each chunk is committed on its own.
+     * chunkLatency, if given, records the time of each LOAD DATA including its commit.
+     */
+    public long load(Connection connection, String tableName, String[] columns, RowProducer producer,
+            LatencyHistogram chunkLatency) throws SQLException {
+        String sql = loadStatement(tableName, columns);
+        ChunkStream stream = new ChunkStream(producer);
+        boolean autoCommit = connection.getAutoCommit();
+        long loaded = 0;
+        try (Statement stmt = connection.createStatement()) {
+            JdbcStatement mysqlStatement = stmt.unwrap(JdbcStatement.class);
+            while (stream.startChunk()) {
+                long start = System.nanoTime();
+                // The driver closes the stream after each statement, so it has to be set every time
+                mysqlStatement.setLocalInfileInputStream(stream);
+                loaded += stmt.executeUpdate(sql);
+                if (!autoCommit) {
+                    connection.commit();
+                }
+                if (chunkLatency != null) {
+                    chunkLatency.recordSince(start);
+                }
+            }
+        } catch (SQLException e) {
+            if (stream.producerFailure != null) {
+                throw stream.producerFailure;
+            }
+            throw e;
+        }
+        return loaded;
+    }
+
+    /**
+     * The rows of the current chunk as bytes. read() encodes further rows only once the
+     * previous ones are consumed, and returns end of stream at the chunk boundary.
+     */
+    private final class ChunkStream extends InputStream implements RowWriter {
+        private final RowProducer producer;
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private int readPos;
+        private int writePos;
+        private boolean firstField;
+        private boolean exhausted;
+        private boolean chunkDone;
+        private int rowsInChunk;
+        private long bytesInChunk;
+        SQLException producerFailure;
+
+        ChunkStream(RowProducer producer) {
+            this.producer = producer;
+        }
+
+        /** Encodes the first row of the next chunk; false once the producer has no more rows. */
+        boolean startChunk() throws SQLException {
+            readPos = 0;
+            writePos = 0;
+            rowsInChunk = 0;
+            bytesInChunk = 0;
+            chunkDone = false;
+            return !exhausted && encodeRow();
+        }
+
+        private boolean encodeRow() throws SQLException {
+            int rowStart = writePos;
+            firstField = true;
+            if (!producer.nextRow(this)) {
+                exhausted = true;
+                chunkDone = true;
+                writePos = rowStart;
+                return false;
+            }
+            put((byte) '\n');
+            rowsInChunk++;
+            bytesInChunk += writePos - rowStart;
+            if (rowsInChunk >= chunkRows || bytesInChunk >= chunkBytes) {
+                chunkDone = true;
+            }
+            return true;
+        }
+
+        private boolean refill() throws IOException {
+            readPos = 0;
+            writePos = 0;
+            try {
+                while (!chunkDone && writePos < BUFFER_SIZE / 2) {
+                    encodeRow();
+                }
+            } catch (SQLException e) {
+                producerFailure = e;
+                throw new IOException(e);
+            }
+            return writePos > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (readPos == writePos && (chunkDone || !refill())) {
+                return -1;
+            }
+            return buf[readPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (readPos == writePos && (chunkDone || !refill())) {
+                return -1;
+            }
+            int n = Math.min(len, writePos - readPos);
+            System.arraycopy(buf, readPos, b, off, n);
+            readPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return writePos - readPos;
+        }
+
+        /** Kept open across chunks; there is nothing to release. */
+        @Override
+        public void close() {
+        }
+
+        private void put(byte b) {
+            if (writePos == buf.length) {
+                grow(1);
+            }
+            buf[writePos++] = b;
+        }
+
+        private void grow(int needed) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, writePos + needed)];
+            System.arraycopy(buf, 0, bigger, 0, writePos);
+            buf = bigger;
+        }
+
+        private void startField() {
+            if (!firstField) {
+                put((byte) delimiter);
+            }
+            firstField = false;
+        }
+
+        @Override
+        public void field(long value) {
+            startField();
+            if (writePos + 20 > buf.length) {
+                grow(20);
+            }
+            if (value < 0) {
+                buf[writePos++] = '-';
+            } else {
+                value = -value;
+            }
+            // Work on the negative value so that Long.MIN_VALUE needs no special case
+            int end = writePos;
+            do {
+                buf[end++] = (byte) ('0' - value % 10);
+                value /= 10;
+            } while (value != 0);
+            for (int i = writePos, j = end - 1; i < j; i++, j--) {
+                byte t = buf[i];
+                buf[i] = buf[j];
+                buf[j] = t;
+            }
+            writePos = end;
+        }
+
+        @Override
+        public void field(CharSequence value) {
+            if (value == null) {
+                nullField();
+                return;
+            }
+            startField();
+            int n = value.length();
+            for (int i = 0; i < n; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c == '\\' || c == delimiter) {
+                        put((byte) '\\');
+                        put((byte) c);
+                    } else if (c == '\n') {
+                        put((byte) '\\');
+                        put((byte) 'n');
+                    } else if (c == '\r') {
+                        put((byte) '\\');
+                        put((byte) 'r');
+                    } else if (c == 0) {
+                        put((byte) '\\');
+                        put((byte) '0');
+                    } else {
+                        put((byte) c);
+                    }
+                } else if (c < 0x800) {
+                    put((byte) (0xc0 | (c >> 6)));
+                    put((byte) (0x80 | (c & 0x3f)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    put((byte) (0xf0 | (cp >> 18)));
+                    put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                    put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                    put((byte) (0x80 | (cp & 0x3f)));
+                } else if (Character.isSurrogate(c)) {
+                    put((byte) '?');
+                } else {
+                    put((byte) (0xe0 | (c >> 12)));
+                    put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        @Override
+        public void nullField() {
+            startField();
+            put((byte) '\\');
+            put((byte) 'N');
+        }
+    }
+}
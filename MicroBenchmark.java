@@ -0,0 +1,217 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Small JMH-style harness for benchmarks that need a database and therefore cannot be
+ * plain unit-sized loops.
+ *
+ * Each benchmark runs in forks fresh JVMs (so JIT decisions and driver caches of one
+ * benchmark cannot leak into the next), does warm-up iterations that are thrown away,
+ * then measurement iterations of iterationMillis each. The score is the mean time per
+ * operation over all measured iterations of all forks, with a 99.9% confidence interval
+ * as JMH reports it, plus the bytes allocated per operation by the benchmark thread
+ * (what JMH's -prof gc calls gc.alloc.rate.norm).
+ *
+ * A fork is the same main class started again with "--bench-fork NAME" in front of the
+ * original arguments; it must call runFork() with the benchmark of that name.
+ */
+public class MicroBenchmark {
+
+    public static final String FORK_FLAG = "--bench-fork";
+    private static final String ITERATION_PREFIX = "# iteration ";
+
+    /** One benchmark instance: set up in its factory, closed after the last iteration. */
+    public interface Benchmark extends AutoCloseable {
+        void op() throws Exception;
+
+        @Override
+        void close() throws SQLException;
+    }
+
+    public static final class Options {
+        public int forks = 2;
+        public int warmupIterations = 5;
+        public int measurementIterations = 5;
+        public long iterationMillis = 1000;
+
+        /** Parses --forks, --warmup, --iterations and --iteration-ms at args[i]; returns the args consumed. */
+        public int parse(String[] args, int i) {
+            if (i + 1 >= args.length) {
+                return 0;
+            }
+            if ("--forks".equals(args[i])) {
+                forks = Integer.parseInt(args[i + 1]);
+            } else if ("--warmup".equals(args[i])) {
+                warmupIterations = Integer.parseInt(args[i + 1]);
+            } else if ("--iterations".equals(args[i])) {
+                measurementIterations = Integer.parseInt(args[i + 1]);
+            } else if ("--iteration-ms".equals(args[i])) {
+                iterationMillis = Long.parseLong(args[i + 1]);
+            } else {
+                return 0;
+            }
+            return 2;
+        }
+    }
+
+    public static final class Result {
+        public final String name;
+        public final int samples;
+        public final double meanNanos;
+        public final double errorNanos;
+        public final double allocatedBytesPerOp;
+        public final long ops;
+
+        Result(String name, int samples, double meanNanos, double errorNanos, double allocatedBytesPerOp, long ops) {
+            this.name = name;
+            this.samples = samples;
+            this.meanNanos = meanNanos;
+            this.errorNanos = errorNanos;
+            this.allocatedBytesPerOp = allocatedBytesPerOp;
+            this.ops = ops;
+        }
+    }
+
+    /**
+     * Runs the named benchmark in options.forks child JVMs of mainClass, or in this JVM
+     * with forks = 0, and aggregates the measured iterations.
+     */
+    public static Result run(String mainClass, String name, String[] args, Callable<Benchmark> factory,
+            Options options) throws Exception {
+        List<double[]> iterations = new ArrayList<>();
+        if (options.forks <= 0) {
+            iterations.addAll(measure(factory, options, false));
+        }
+        for (int fork = 0; fork < options.forks; fork++) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(mainClass);
+            command.add(FORK_FLAG);
+            command.add(name);
+            for (String arg : args) {
+                command.add(arg);
+            }
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (BufferedReader out = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith(ITERATION_PREFIX)) {
+                        String[] parts = line.substring(ITERATION_PREFIX.length()).trim().split(" ");
+                        iterations.add(new double[] { Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+                                Double.parseDouble(parts[2]) });
+                    } else {
+                        System.out.println(line);
+                    }
+                }
+            }
+            int exit = process.waitFor();
+            if (exit != 0) {
+                throw new IOException("Fork " + (fork + 1) + " of " + name + " exited with " + exit);
+            }
+        }
+        return aggregate(name, iterations);
+    }
+
+    /** Body of a fork: runs the benchmark and reports each measured iteration on stdout. */
+    public static void runFork(Callable<Benchmark> factory, Options options) throws Exception {
+        measure(factory, options, true);
+    }
+
+    private static List<double[]> measure(Callable<Benchmark> factory, Options options, boolean report)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        List<double[]> measured = new ArrayList<>();
+        try (Benchmark benchmark = factory.call()) {
+            for (int i = -options.warmupIterations; i < options.measurementIterations; i++) {
+                long deadline = System.nanoTime() + options.iterationMillis * 1_000_000;
+                long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                long ops = 0;
+                long now;
+                do {
+                    benchmark.op();
+                    ops++;
+                    now = System.nanoTime();
+                } while (now < deadline);
+                long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                if (i < 0) {
+                    continue;
+                }
+                double[] sample = { (double) (now - start) / ops, (double) allocated / ops, ops };
+                measured.add(sample);
+                if (report) {
+                    System.out.println(String.format(Locale.ROOT, "%s%.3f %.1f %d", ITERATION_PREFIX, sample[0],
+                            sample[1], ops));
+                }
+            }
+        }
+        return measured;
+    }
+
+    private static Result aggregate(String name, List<double[]> iterations) {
+        int n = iterations.size();
+        double sum = 0;
+        double allocated = 0;
+        long ops = 0;
+        for (double[] it : iterations) {
+            sum += it[0];
+            allocated += it[1];
+            ops += (long) it[2];
+        }
+        double mean = n == 0 ? 0 : sum / n;
+        double variance = 0;
+        for (double[] it : iterations) {
+            variance += (it[0] - mean) * (it[0] - mean);
+        }
+        double error = n < 2 ? Double.NaN : studentT999(n - 1) * Math.sqrt(variance / (n - 1)) / Math.sqrt(n);
+        return new Result(name, n, mean, error, n == 0 ? 0 : allocated / n, ops);
+    }
+
+    private static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+            4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768,
+            3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+    // Past the table: the quantile at 30, 40, 60, 120 and infinitely many degrees of freedom
+    private static final double[] T_999_INVERSE_DF = { 1 / 30.0, 1 / 40.0, 1 / 60.0, 1 / 120.0, 0 };
+    private static final double[] T_999_TAIL = { 3.646, 3.551, 3.460, 3.373, 3.291 };
+
+    /** Two-sided 99.9% quantile of Student's t distribution, interpolated in 1/df past 30 degrees of freedom. */
+    private static double studentT999(int degreesOfFreedom) {
+        if (degreesOfFreedom <= T_999.length) {
+            return T_999[degreesOfFreedom - 1];
+        }
+        double x = 1.0 / degreesOfFreedom;
+        int i = 1;
+        while (x < T_999_INVERSE_DF[i]) {
+            i++;
+        }
+        double x0 = T_999_INVERSE_DF[i - 1];
+        double x1 = T_999_INVERSE_DF[i];
+        return T_999_TAIL[i - 1] + (T_999_TAIL[i] - T_999_TAIL[i - 1]) * (x0 - x) / (x0 - x1);
+    }
+
+    public static void printResults(List<Result> results) {
+        System.out.println(String.format("%-36s %5s %14s %12s %14s %12s", "Benchmark", "Cnt", "Score (us/op)",
+                "Error (us)", "Alloc (B/op)", "Ops"));
+        for (Result r : results) {
+            System.out.println(String.format(Locale.ROOT, "%-36s %5d %14.3f %12s %14.1f %12d", r.name, r.samples,
+                    r.meanNanos / 1000, Double.isNaN(r.errorNanos) ? "n/a"
+                            : String.format(Locale.ROOT, "+- %.3f", r.errorNanos / 1000),
+                    r.allocatedBytesPerOp, r.ops));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Builds multi-row INSERT (or INSERT ... ON DUPLICATE KEY UPDATE) statements in a
+ * reusable UTF-8 byte buffer and hands each one to a StatementSink once it reaches the
+ * row or byte budget, so no statement ever exceeds max_allowed_packet and each one
+ * stays a predictable transaction size.
+ *
+ * Values are escaped for a MySQL string literal (\0 \n \r \Z \\ \' \") while encoding,
+ * which is correct for utf8/utf8mb4 connections without NO_BACKSLASH_ESCAPES, TiDB's
+ * default. Numbers and escaping go straight into the buffer; the only allocation per
+ * statement is the String that JDBC needs to execute it.
+ *
+ * Usage: beginRow(), one value(...) or nullValue() per column, endRow(); flush() at the end.
+ */
+public class MultiRowInsertEncoder {
+
+    /** Receives each finished statement and the number of rows in it. */
+    public interface StatementSink {
+        void accept(String sql, int rows) throws SQLException;
+    }
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final int columnCount;
+    private final int maxStatementBytes;
+    private final int maxRows;
+    private final StatementSink sink;
+
+    private byte[] buf = new byte[1 << 16];
+    private byte[] carry = new byte[1 << 10];
+    private int pos;
+    private int rowStart;
+    private int rowsInStatement;
+    private int fieldsInRow;
+
+    private long statements;
+    private long rows;
+    private long bytes;
+
+    /**
+     * @param updateColumns columns to overwrite on a duplicate key (ON DUPLICATE KEY UPDATE c = VALUES(c)),
+     *                      or null for a plain INSERT
+     */
+    public MultiRowInsertEncoder(String tableName, String[] columns, String[] updateColumns, int maxStatementBytes,
+            int maxRows, StatementSink sink) {
+        StringBuilder head = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        head.append(String.join(", ", columns)).append(") VALUES ");
+        this.prefix = head.toString().getBytes(StandardCharsets.UTF_8);
+        StringBuilder tail = new StringBuilder();
+        if (updateColumns != null && updateColumns.length > 0) {
+            tail.append(" ON DUPLICATE KEY UPDATE ");
+            for (int i = 0; i < updateColumns.length; i++) {
+                tail.append(i == 0 ? "" : ", ").append(updateColumns[i]).append(" = VALUES(")
+                        .append(updateColumns[i]).append(')');
+            }
+        }
+        this.suffix = tail.toString().getBytes(StandardCharsets.UTF_8);
+        this.columnCount = columns.length;
+        this.maxStatementBytes = maxStatementBytes;
+        this.maxRows = maxRows;
+        this.sink = sink;
+        reset();
+    }
+
+    public static MultiRowInsertEncoder insert(String tableName, String[] columns, int maxStatementBytes, int maxRows,
+            StatementSink sink) {
+        return new MultiRowInsertEncoder(tableName, columns, null, maxStatementBytes, maxRows, sink);
+    }
+
+    public static MultiRowInsertEncoder upsert(String tableName, String[] columns, String[] updateColumns,
+            int maxStatementBytes, int maxRows, StatementSink sink) {
+        return new MultiRowInsertEncoder(tableName, columns, updateColumns, maxStatementBytes, maxRows, sink);
+    }
+
+    private void reset() {
+        pos = 0;
+        ensure(prefix.length);
+        System.arraycopy(prefix, 0, buf, 0, prefix.length);
+        pos = prefix.length;
+        rowsInStatement = 0;
+    }
+
+    public void beginRow() {
+        rowStart = pos;
+        fieldsInRow = 0;
+        ensure(2);
+        if (rowsInStatement > 0) {
+            buf[pos++] = ',';
+        }
+        buf[pos++] = '(';
+    }
+
+    /**
+     * Closes the row. If it pushed the statement over the byte budget, the statement
+     * without it goes to the sink first; a full statement (by rows) goes right away.
+     * A single row larger than the budget is sent in a statement of its own.
+     */
+    public void endRow() throws SQLException {
+        if (fieldsInRow != columnCount) {
+            throw new IllegalStateException("Row has " + fieldsInRow + " values for " + columnCount + " columns");
+        }
+        ensure(1);
+        buf[pos++] = ')';
+        if (rowsInStatement > 0 && pos + suffix.length > maxStatementBytes) {
+            // Move this row (without its leading comma) aside, send the rest, start over with it
+            int rowLength = pos - rowStart - 1;
+            if (carry.length < rowLength) {
+                carry = new byte[Math.max(carry.length * 2, rowLength)];
+            }
+            System.arraycopy(buf, rowStart + 1, carry, 0, rowLength);
+            pos = rowStart;
+            emit();
+            ensure(rowLength);
+            System.arraycopy(carry, 0, buf, pos, rowLength);
+            pos += rowLength;
+        }
+        rowsInStatement++;
+        if (rowsInStatement >= maxRows) {
+            emit();
+        }
+    }
+
+    /** Sends the rows encoded so far, if any. */
+    public void flush() throws SQLException {
+        if (rowsInStatement > 0) {
+            emit();
+        }
+    }
+
+    private void emit() throws SQLException {
+        ensure(suffix.length);
+        System.arraycopy(suffix, 0, buf, pos, suffix.length);
+        pos += suffix.length;
+        String sql = new String(buf, 0, pos, StandardCharsets.UTF_8);
+        int count = rowsInStatement;
+        statements++;
+        rows += count;
+        bytes += pos;
+        reset();
+        sink.accept(sql, count);
+    }
+
+    private void startValue() {
+        ensure(1);
+        if (fieldsInRow++ > 0) {
+            buf[pos++] = ',';
+        }
+    }
+
+    public void nullValue() {
+        startValue();
+        ensure(4);
+        buf[pos++] = 'N';
+        buf[pos++] = 'U';
+        buf[pos++] = 'L';
+        buf[pos++] = 'L';
+    }
+
+    public void value(long value) {
+        startValue();
+        ensure(20);
+        if (value < 0) {
+            buf[pos++] = '-';
+        } else {
+            value = -value;
+        }
+        // Digits of the negative value, so that Long.MIN_VALUE needs no special case
+        int end = pos;
+        do {
+            buf[end++] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = pos, j = end - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+        pos = end;
+    }
+
+    public void value(CharSequence value) {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        startValue();
+        int n = value.length();
+        // Worst case: every char escaped or 3 bytes of UTF-8, plus the quotes
+        ensure(3 * n + 2);
+        byte[] b = buf;
+        int p = pos;
+        b[p++] = '\'';
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case 0:
+                        b[p++] = '\\';
+                        b[p++] = '0';
+                        break;
+                    case '\n':
+                        b[p++] = '\\';
+                        b[p++] = 'n';
+                        break;
+                    case '\r':
+                        b[p++] = '\\';
+                        b[p++] = 'r';
+                        break;
+                    case 0x1a:
+                        b[p++] = '\\';
+                        b[p++] = 'Z';
+                        break;
+                    case '\\':
+                    case '\'':
+                    case '"':
+                        b[p++] = '\\';
+                        b[p++] = (byte) c;
+                        break;
+                    default:
+                        b[p++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // Two chars become four bytes, within the 3 bytes per char reserved above
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                b[p++] = (byte) (0xf0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xe0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        b[p++] = '\'';
+        pos = p;
+    }
+
+    /** Binary value as a hex literal, X'...'. */
+    public void value(byte[] value) {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        startValue();
+        ensure(2 * value.length + 3);
+        buf[pos++] = 'X';
+        buf[pos++] = '\'';
+        for (byte v : value) {
+            buf[pos++] = HEX[(v >> 4) & 0xf];
+            buf[pos++] = HEX[v & 0xf];
+        }
+        buf[pos++] = '\'';
+    }
+
+    private void ensure(int extra) {
+        if (pos + extra > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, pos + extra)];
+            System.arraycopy(buf, 0, bigger, 0, pos);
+            buf = bigger;
+        }
+    }
+
+    public long statements() {
+        return statements;
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    /** Total bytes of all statements sent so far. */
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,122 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Locks a set of rows by primary key in one canonical order, so that transactions
+ * locking overlapping sets cannot deadlock on each other.
+ *
+ * Two transactions that lock rows one by one in request order deadlock as soon as one
+ * takes a, then b and the other b, then a (error 1213), or pile up until
+ * innodb_lock_wait_timeout (1205). lock() instead sorts and de-duplicates the keys and
+ * takes them with one SELECT ... WHERE id IN (...) ORDER BY id FOR UPDATE per chunk of
+ * chunkSize keys, in ascending order. A transaction waiting for a chunk then only holds
+ * keys below it, so no cycle of waits can form; within a chunk TiDB locks the keys as
+ * one request per region, and its deadlock detector settles the rare crossing. IN lists are
+ * padded to a power of two by repeating the last key, as in PointRequestCoalescer, so a
+ * table only needs a few statement texts.
+ *
+ * lockAndUpdate() runs a whole transaction: BEGIN PESSIMISTIC, lock(), then the caller's
+ * UPDATE once per locked key as one batch, in the same order, then commit, through a
+ * TransactionRetryExecutor in case other writers do not follow the same order.
+ */
+public class OrderedRowLocker {
+
+    /** Sets the parameters of the update for one key. */
+    public interface RowBinder {
+        void bind(PreparedStatement ps, long key) throws SQLException;
+    }
+
+    private final String table;
+    private final String keyColumn;
+    private final int chunkSize;
+    private final TransactionRetryExecutor executor;
+
+    public OrderedRowLocker(String table, String keyColumn, int chunkSize, TransactionRetryExecutor executor) {
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.executor = executor;
+    }
+
+    /** Sorted keys without duplicates. */
+    static long[] canonicalOrder(Collection<Long> keys) {
+        long[] sorted = new long[keys.size()];
+        int n = 0;
+        for (Long key : keys) {
+            sorted[n++] = key;
+        }
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+    /**
+     * Locks the rows with these keys in the caller's pessimistic transaction, in
+     * ascending key order. Returns the keys that have a row, ascending.
+     */
+    public long[] lock(Connection connection, Collection<Long> keys) throws SQLException {
+        return lockSorted(connection, canonicalOrder(keys));
+    }
+
+    private long[] lockSorted(Connection connection, long[] sorted) throws SQLException {
+        long[] found = new long[sorted.length];
+        int n = 0;
+        for (int from = 0; from < sorted.length; from += chunkSize) {
+            int count = Math.min(chunkSize, sorted.length - from);
+            int padded = PointRequestCoalescer.paddedSize(count);
+            StringBuilder sql = new StringBuilder("SELECT ").append(keyColumn).append(" FROM ").append(table)
+                    .append(" WHERE ").append(keyColumn).append(" IN (");
+            for (int i = 0; i < padded; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(") ORDER BY ").append(keyColumn).append(" FOR UPDATE");
+            try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+                for (int i = 0; i < padded; i++) {
+                    ps.setLong(i + 1, sorted[from + Math.min(i, count - 1)]);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        found[n++] = rs.getLong(1);
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * In one pessimistic transaction, locks the rows in key order and runs updateSql once
+     * per existing row, bound by binder, as one batch. Returns the batch's update counts,
+     * one per locked key in ascending key order.
+     */
+    public int[] lockAndUpdate(Connection connection, Collection<Long> keys, String updateSql, RowBinder binder)
+            throws SQLException {
+        long[] sorted = canonicalOrder(keys);
+        return executor.execute(connection, conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("BEGIN PESSIMISTIC");
+            }
+            long[] locked = lockSorted(conn, sorted);
+            if (locked.length == 0) {
+                return new int[0];
+            }
+            try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+                for (long key : locked) {
+                    binder.bind(ps, key);
+                    ps.addBatch();
+                }
+                return ps.executeBatch();
+            }
+        });
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads rows from one source through N writer connections, one transaction per chunk.
+ *
+ * The producer (the calling thread) cuts the source into segments of SEGMENT_ROWS rows
+ * and puts them on a bounded queue, so it blocks instead of buffering when the writers
+ * fall behind. Each writer takes segments until it has the current batch size, binds
+ * them into one executeBatch and commits.
+ *
+ * The batch size adapts (AIMD): it doubles while commits stay under the target latency,
+ * then grows by one segment at a time; a slow commit shrinks it to 3/4, and a
+ * "transaction too large" or "packet too large" error halves it, caps it below the
+ * failing size, and retries the failed rows in two halves.
+ *
+ * With a checkpoint file, the low watermark (every row before it is committed) is
+ * written about once a second. A rerun resumes from it instead of starting over;
+ * rows past the watermark may be written twice, so use INSERT IGNORE or
+ * ON DUPLICATE KEY UPDATE when resuming matters. The file is deleted after a
+ * complete load.
+ */
+public class ParallelChunkLoader<R> {
+
+    public static final int SEGMENT_ROWS = 64;
+    public static final long DEFAULT_TARGET_COMMIT_MILLIS = 250;
+    public static final int DEFAULT_MAX_BATCH_ROWS = 50_000;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_RETRIES = 5;
+
+    /** Rows in a stable order, so a resumed load can skip what is already committed. */
+    public interface RowSource<R> {
+        /** Positions the source so that the next row returned is the one at ordinal. */
+        void seek(long ordinal) throws SQLException;
+
+        /** The next row, or null at the end. */
+        R next() throws SQLException;
+    }
+
+    /** Binds one row to the parameters of the insert statement. */
+    public interface RowBinder<R> {
+        void bind(PreparedStatement ps, R row) throws SQLException;
+    }
+
+    private final JdbcConnectionPool pool;
+    private final String insertSql;
+    private final RowBinder<R> binder;
+    private final int writers;
+    private final AdaptiveBatchSize batchSize;
+    private final int queueSegments;
+    private Path checkpointFile;
+
+    public ParallelChunkLoader(JdbcConnectionPool pool, String insertSql, RowBinder<R> binder, int writers,
+            int initialBatchRows, long targetCommitMillis) {
+        this.pool = pool;
+        this.insertSql = insertSql;
+        this.binder = binder;
+        this.writers = writers;
+        this.batchSize = new AdaptiveBatchSize(initialBatchRows, DEFAULT_MAX_BATCH_ROWS,
+                TimeUnit.MILLISECONDS.toNanos(targetCommitMillis));
+        // Room for two full batches per writer
+        this.queueSegments = Math.max(writers * 2, 2 * writers * DEFAULT_MAX_BATCH_ROWS / SEGMENT_ROWS / 8);
+    }
+
+    public void setCheckpointFile(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public static long readCheckpoint(Path checkpointFile) throws IOException {
+        if (checkpointFile == null || !Files.exists(checkpointFile)) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim());
+    }
+
+    private static void writeCheckpoint(Path checkpointFile, long watermark) throws IOException {
+        Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(tmp, (watermark + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public LoadResult load(RowSource<R> source) throws SQLException, InterruptedException {
+        long startOrdinal;
+        try {
+            startOrdinal = readCheckpoint(checkpointFile);
+        } catch (IOException | NumberFormatException e) {
+            throw new SQLException("Unreadable checkpoint " + checkpointFile, e);
+        }
+        source.seek(startOrdinal);
+
+        Run run = new Run(startOrdinal);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < writers; i++) {
+                futures.add(executor.submit(() -> {
+                    run.write();
+                    return null;
+                }));
+            }
+            run.produce(source);
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            run.failed = true;
+            run.saveCheckpoint();
+            throw cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+        } catch (SQLException | InterruptedException e) {
+            run.failed = true;
+            run.saveCheckpoint();
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (checkpointFile != null) {
+            try {
+                Files.deleteIfExists(checkpointFile);
+            } catch (IOException e) {
+                System.out.println("Error: could not delete checkpoint " + checkpointFile + ": " + e);
+            }
+        }
+        return new LoadResult(startOrdinal, run.rowsCommitted.get(), run.commits.get(), run.commitLatency,
+                run.sizeErrors.get(), run.retries.get(), batchSize.current(), System.nanoTime() - start);
+    }
+
+    /** Segment of consecutive rows starting at ordinal start. */
+    private static final class Segment {
+        final long start;
+        final Object[] rows;
+        final int count;
+
+        Segment(long start, Object[] rows, int count) {
+            this.start = start;
+            this.rows = rows;
+            this.count = count;
+        }
+    }
+
+    private static final Segment END = new Segment(-1, new Object[0], 0);
+
+    /** State of one load() call, shared by the producer and the writers. */
+    private final class Run {
+        final BlockingQueue<Segment> queue = new ArrayBlockingQueue<>(queueSegments);
+        /** Segments produced but not committed yet, by start ordinal. */
+        final ConcurrentSkipListMap<Long, Segment> inFlight = new ConcurrentSkipListMap<>();
+        volatile long producedUpTo;
+        volatile boolean failed;
+        final AtomicLong lastCheckpointNanos = new AtomicLong(System.nanoTime());
+        final AtomicLong rowsCommitted = new AtomicLong();
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong sizeErrors = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final LatencyHistogram commitLatency = new LatencyHistogram();
+
+        Run(long startOrdinal) {
+            this.producedUpTo = startOrdinal;
+        }
+
+        void produce(RowSource<R> source) throws SQLException, InterruptedException {
+            long ordinal = producedUpTo;
+            boolean more = true;
+            while (more && !failed) {
+                Object[] rows = new Object[SEGMENT_ROWS];
+                int count = 0;
+                while (count < SEGMENT_ROWS) {
+                    R row = source.next();
+                    if (row == null) {
+                        more = false;
+                        break;
+                    }
+                    rows[count++] = row;
+                }
+                if (count == 0) {
+                    break;
+                }
+                Segment segment = new Segment(ordinal, rows, count);
+                inFlight.put(ordinal, segment);
+                ordinal += count;
+                producedUpTo = ordinal;
+                while (!failed && !queue.offer(segment, 100, TimeUnit.MILLISECONDS)) {
+                    // Backpressure: the writers are behind
+                }
+            }
+            for (int i = 0; i < writers; i++) {
+                while (!failed && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    // Wait for room for the end markers
+                }
+            }
+        }
+
+        void write() throws SQLException, InterruptedException {
+            List<Segment> batch = new ArrayList<>();
+            try (Connection connection = pool.getConnection()) {
+                connection.setAutoCommit(false);
+                try (PreparedStatement ps = connection.prepareStatement(insertSql)) {
+                    boolean done = false;
+                    while (!done && !failed) {
+                        Segment first = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        if (first == END) {
+                            break;
+                        }
+                        batch.clear();
+                        batch.add(first);
+                        int rows = first.count;
+                        int target = batchSize.current();
+                        while (rows < target) {
+                            // Take only what is already queued: a short batch now beats waiting
+                            Segment next = queue.poll();
+                            if (next == null) {
+                                break;
+                            }
+                            if (next == END) {
+                                done = true;
+                                break;
+                            }
+                            batch.add(next);
+                            rows += next.count;
+                        }
+                        commitSplitting(connection, ps, batch, 0, batch.size());
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /** Commits segments [from, to) as one transaction, halving on size errors. */
+        private void commitSplitting(Connection connection, PreparedStatement ps, List<Segment> batch, int from, int to)
+                throws SQLException, InterruptedException {
+            int rows = 0;
+            for (int i = from; i < to; i++) {
+                rows += batch.get(i).count;
+            }
+            for (int attempt = 0; ; attempt++) {
+                long start = System.nanoTime();
+                try {
+                    for (int i = from; i < to; i++) {
+                        Segment segment = batch.get(i);
+                        for (int j = 0; j < segment.count; j++) {
+                            @SuppressWarnings("unchecked")
+                            R row = (R) segment.rows[j];
+                            binder.bind(ps, row);
+                            ps.addBatch();
+                        }
+                    }
+                    ps.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    ps.clearBatch();
+                    rollbackQuietly(connection);
+                    if (isTooLarge(e) && to - from > 1) {
+                        sizeErrors.incrementAndGet();
+                        batchSize.onTooLarge(rows);
+                        int mid = (from + to) >>> 1;
+                        commitSplitting(connection, ps, batch, from, mid);
+                        commitSplitting(connection, ps, batch, mid, to);
+                        return;
+                    }
+                    if (isTooLarge(e) || !isRetryable(e) || attempt >= MAX_RETRIES) {
+                        throw e;
+                    }
+                    retries.incrementAndGet();
+                    Thread.sleep(Math.min(1000, 20L << attempt));
+                    continue;
+                }
+                batchSize.onCommit(rows, commitLatency.recordSince(start));
+                break;
+            }
+            rowsCommitted.addAndGet(rows);
+            commits.incrementAndGet();
+            for (int i = from; i < to; i++) {
+                inFlight.remove(batch.get(i).start);
+            }
+            long last = lastCheckpointNanos.get();
+            long now = System.nanoTime();
+            if (now - last >= CHECKPOINT_INTERVAL_NANOS && lastCheckpointNanos.compareAndSet(last, now)) {
+                saveCheckpoint();
+            }
+        }
+
+        /** Every row before the returned ordinal is committed. */
+        long watermark() {
+            // Read producedUpTo first: a segment added after this read starts at or after it
+            long produced = producedUpTo;
+            Map.Entry<Long, Segment> oldest = inFlight.firstEntry();
+            return oldest == null ? produced : Math.min(oldest.getKey(), produced);
+        }
+
+        synchronized void saveCheckpoint() {
+            if (checkpointFile == null) {
+                return;
+            }
+            try {
+                writeCheckpoint(checkpointFile, watermark());
+            } catch (IOException e) {
+                System.out.println("Error: could not write checkpoint " + checkpointFile + ": " + e);
+            }
+        }
+    }
+
+    private static void rollbackQuietly(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    /** TiDB's transaction size limit (8004) or a statement over max_allowed_packet, on either side. */
+    static boolean isTooLarge(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                int code = ((SQLException) t).getErrorCode();
+                if (code == 8004 || code == 1153 || code == 1301) {
+                    return true;
+                }
+            }
+            if (t.getClass().getSimpleName().equals("PacketTooBigException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Write conflicts, lock timeouts and deadlocks, which are worth retrying as they are. */
+    static boolean isRetryable(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                int code = ((SQLException) t).getErrorCode();
+                if (code == 9007 || code == 8002 || code == 8022 || code == 8028 || code == 1213 || code == 1205) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * AIMD batch size shared by all writers. Starts by doubling, like TCP slow start,
+     * until the first slow commit or size error.
+     */
+    static final class AdaptiveBatchSize {
+        private final AtomicInteger size;
+        private final AtomicInteger ceiling;
+        private final long targetNanos;
+        private volatile boolean slowStart = true;
+
+        AdaptiveBatchSize(int initial, int max, long targetNanos) {
+            this.size = new AtomicInteger(Math.max(SEGMENT_ROWS, Math.min(initial, max)));
+            this.ceiling = new AtomicInteger(max);
+            this.targetNanos = targetNanos;
+        }
+
+        int current() {
+            return size.get();
+        }
+
+        void onCommit(int rows, long nanos) {
+            if (nanos > targetNanos) {
+                slowStart = false;
+                size.updateAndGet(s -> Math.max(SEGMENT_ROWS, s * 3 / 4));
+            } else if (rows >= size.get()) {
+                // Only grow on full batches: a short batch says nothing about a bigger one
+                int cap = ceiling.get();
+                size.updateAndGet(s -> Math.min(cap, slowStart ? s * 2 : s + SEGMENT_ROWS));
+            }
+        }
+
+        void onTooLarge(int rows) {
+            slowStart = false;
+            int limit = Math.max(SEGMENT_ROWS, rows / 2);
+            ceiling.accumulateAndGet(Math.max(SEGMENT_ROWS, rows - SEGMENT_ROWS), Math::min);
+            size.accumulateAndGet(limit, Math::min);
+        }
+    }
+
+    public static final class LoadResult {
+        public final long resumedFrom;
+        public final long rows;
+        public final long commits;
+        public final LatencyHistogram commitLatency;
+        public final long sizeErrors;
+        public final long retries;
+        public final int finalBatchSize;
+        public final long elapsedNanos;
+
+        LoadResult(long resumedFrom, long rows, long commits, LatencyHistogram commitLatency, long sizeErrors,
+                long retries, int finalBatchSize, long elapsedNanos) {
+            this.resumedFrom = resumedFrom;
+            this.rows = rows;
+            this.commits = commits;
+            this.commitLatency = commitLatency;
+            this.sizeErrors = sizeErrors;
+            this.retries = retries;
+            this.finalBatchSize = finalBatchSize;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double rowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d rows in %d commits, %.1f rows/s, commit p50 %.3f ms, p99 %.3f ms, final batch %d rows, "
+                            + "%d size errors, %d retries%s",
+                    rows, commits, rowsPerSecond(), commitLatency.percentileMillis(50),
+                    commitLatency.percentileMillis(99), finalBatchSize, sizeErrors, retries,
+                    resumedFrom > 0 ? ", resumed from row " + resumedFrom : "");
+        }
+    }
+}
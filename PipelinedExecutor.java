@@ -0,0 +1,269 @@
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs many independent statements in as few round trips as possible by sending them
+ * as one multi-statement packet, then walks every result so that each statement gets
+ * its own update count, row count or error.
+ *
+ * The connection needs allowMultiQueries=true, which sets the MySQL protocol's
+ * CLIENT_MULTI_STATEMENTS capability; TiDB then accepts multi-statements without
+ * tidb_multi_statement_mode. Each statement must produce exactly one result, so no
+ * CALL and no empty statements.
+ *
+ * Statements are packed in submission order until the next one would push the packet
+ * over maxPacketBytes (by default max_allowed_packet less some headroom) or past
+ * maxStatements. The server stops a multi-statement at the first error: that statement
+ * gets the error, and the ones after it in the same packet are sent again in the next
+ * round trip, so one failure does not take its neighbours down with it. In autocommit
+ * mode every statement is its own transaction, exactly as if sent one by one.
+ */
+public class PipelinedExecutor {
+
+    /** Headroom for the packet header and the driver's own framing. */
+    private static final int PACKET_HEADROOM = 1024;
+
+    /** Called with each statement's result set while it is current. */
+    public interface ResultSetHandler {
+        void handle(int statementIndex, ResultSet rs) throws SQLException;
+    }
+
+    /** What happened to one statement. */
+    public static final class Outcome {
+        /** Update count, or -1 if the statement returned a result set. */
+        public long updateCount = -1;
+        /** Rows of the result set, if any, unless a ResultSetHandler read them. */
+        public long rows;
+        /** The statement's own error, or null. */
+        public SQLException error;
+        /** Round trip (1-based) that ran the statement. */
+        public int roundTrip;
+
+        public boolean ok() {
+            return error == null && roundTrip > 0;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return "error: " + error.getMessage();
+            }
+            return updateCount >= 0 ? updateCount + " rows affected" : rows + " rows";
+        }
+    }
+
+    private final int maxPacketBytes;
+    private final int maxStatements;
+    private long roundTrips;
+
+    public PipelinedExecutor(int maxPacketBytes, int maxStatements) {
+        this.maxPacketBytes = maxPacketBytes;
+        this.maxStatements = maxStatements;
+    }
+
+    /** An executor whose packets stay under the server's max_allowed_packet. */
+    public static PipelinedExecutor forConnection(Connection connection, int maxStatements) throws SQLException {
+        return new PipelinedExecutor(maxAllowedPacket(connection) - PACKET_HEADROOM, maxStatements);
+    }
+
+    public static int maxAllowedPacket(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT @@max_allowed_packet")) {
+            rs.next();
+            return (int) Math.min(Integer.MAX_VALUE, rs.getLong(1));
+        }
+    }
+
+    /** Round trips made by this executor so far. */
+    public long roundTrips() {
+        return roundTrips;
+    }
+
+    public List<Outcome> execute(Connection connection, List<String> statements) throws SQLException {
+        return execute(connection, statements, null);
+    }
+
+    /**
+     * Runs all statements and returns one Outcome per statement, in order. Errors of
+     * individual statements are in their Outcome; an error that cannot be tied to one
+     * statement (e.g. a broken connection) is thrown.
+     */
+    public List<Outcome> execute(Connection connection, List<String> statements, ResultSetHandler handler)
+            throws SQLException {
+        List<Outcome> outcomes = new ArrayList<>(statements.size());
+        int[] sizes = new int[statements.size()];
+        for (int i = 0; i < statements.size(); i++) {
+            outcomes.add(new Outcome());
+            sizes[i] = statements.get(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        try (Statement stmt = connection.createStatement()) {
+            int next = 0;
+            StringBuilder packet = new StringBuilder();
+            while (next < statements.size()) {
+                int end = next;
+                long bytes = 0;
+                packet.setLength(0);
+                // Always at least one statement; a single oversized one gets the server's error
+                while (end < statements.size() && end - next < maxStatements
+                        && (end == next || bytes + 1 + sizes[end] <= maxPacketBytes)) {
+                    if (end > next) {
+                        packet.append(';');
+                        bytes++;
+                    }
+                    packet.append(statements.get(end));
+                    bytes += sizes[end];
+                    end++;
+                }
+                next = runPacket(stmt, packet.toString(), next, end, outcomes, handler);
+            }
+        }
+        return outcomes;
+    }
+
+    /** Runs statements [from, end) as one packet; returns the index to continue from. */
+    private int runPacket(Statement stmt, String sql, int from, int end, List<Outcome> outcomes,
+            ResultSetHandler handler) throws SQLException {
+        roundTrips++;
+        int current = from;
+        boolean isResultSet;
+        try {
+            isResultSet = stmt.execute(sql);
+        } catch (SQLException e) {
+            failed(outcomes.get(current), e);
+            return current + 1;
+        }
+        while (true) {
+            Outcome outcome = outcomes.get(current);
+            outcome.roundTrip = (int) roundTrips;
+            if (isResultSet) {
+                // An error while reading is this statement's; the results after it are still coming
+                try (ResultSet rs = stmt.getResultSet()) {
+                    if (handler != null) {
+                        handler.handle(current, rs);
+                    } else {
+                        while (rs.next()) {
+                            outcome.rows++;
+                        }
+                    }
+                } catch (SQLException e) {
+                    if (isConnectionError(e)) {
+                        throw e;
+                    }
+                    outcome.error = e;
+                }
+            } else {
+                outcome.updateCount = stmt.getLargeUpdateCount();
+            }
+            if (++current == end) {
+                return end;
+            }
+            try {
+                isResultSet = stmt.getMoreResults();
+            } catch (SQLException e) {
+                failed(outcomes.get(current), e);
+                return current + 1;
+            }
+        }
+    }
+
+    /** Records the error the server stopped the packet at; the statements after it never ran. */
+    private void failed(Outcome outcome, SQLException e) throws SQLException {
+        if (isConnectionError(e)) {
+            throw e;
+        }
+        outcome.roundTrip = (int) roundTrips;
+        outcome.error = e;
+    }
+
+    private static boolean isConnectionError(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    /**
+     * Replaces each ? outside quotes in sql with the literal of the next parameter, for
+     * statements that go into a pipeline (multi-statements cannot be server-prepared).
+     * Strings are escaped for a MySQL string literal without NO_BACKSLASH_ESCAPES.
+     */
+    public static String bind(String sql, Object... params) {
+        StringBuilder out = new StringBuilder(sql.length() + 16 * params.length);
+        int param = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                out.append(c);
+                if (c == '\\' && i + 1 < sql.length()) {
+                    out.append(sql.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                out.append(c);
+            } else if (c == '?') {
+                if (param == params.length) {
+                    throw new IllegalArgumentException("More placeholders than parameters in: " + sql);
+                }
+                appendLiteral(out, params[param++]);
+            } else {
+                out.append(c);
+            }
+        }
+        if (param != params.length) {
+            throw new IllegalArgumentException(params.length + " parameters for " + param + " placeholders in: " + sql);
+        }
+        return out.toString();
+    }
+
+    private static void appendLiteral(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("NULL");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte || value instanceof BigDecimal) {
+            out.append(value);
+        } else if (value instanceof Boolean) {
+            out.append((Boolean) value ? '1' : '0');
+        } else if (value instanceof byte[]) {
+            out.append("X'");
+            for (byte b : (byte[]) value) {
+                out.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            out.append('\'');
+        } else {
+            String s = value.toString();
+            out.append('\'');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case 0:
+                        out.append("\\0");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case 0x1a:
+                        out.append("\\Z");
+                        break;
+                    case '\\':
+                    case '\'':
+                    case '"':
+                        out.append('\\').append(c);
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+            out.append('\'');
+        }
+    }
+}
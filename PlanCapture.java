@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Captures TiDB execution plans of named queries and compares them with a baseline, to
+ * catch plan flips (e.g. after a statistics refresh) before they reach production.
+ *
+ * capture() runs EXPLAIN ANALYZE (or plain EXPLAIN) and turns TiDB's indented id column
+ * into a tree of operators. The plan's shape (operators, tasks and access objects, but
+ * not operator info, which carries literals and estimates) is hashed into a digest, so
+ * the same plan always gets the same digest and any change of join order, index or
+ * access path gets another. Each capture records the root's estimated and actual rows,
+ * the median execution time over several runs and the worst row-estimate error of any
+ * operator, as a q-error: max(est / act, act / est).
+ *
+ * Baselines are tab-separated text files, one query per line, so they can be committed
+ * and diffed. EXPLAIN ANALYZE really runs the statement: register reads, not writes.
+ */
+public class PlanCapture {
+
+    private static final Pattern EXEC_TIME =
+            Pattern.compile("(?:^|[ ,])time:([0-9.]+[a-z\u00b5]+(?:[0-9.]+[a-z\u00b5]+)*)");
+    private static final Pattern DURATION_PART = Pattern.compile("([0-9.]+)(ns|us|\u00b5s|ms|s|m|h)");
+
+    /** One operator of a plan. */
+    public static final class PlanNode {
+        public final int depth;
+        public final String id;
+        public final String operator;
+        public final String task;
+        public final String accessObject;
+        public final String operatorInfo;
+        public final double estRows;
+        /** Actual rows, or -1 without ANALYZE. */
+        public final long actRows;
+        /** Time spent in this operator and below, or -1 without ANALYZE. */
+        public final long timeNanos;
+        public final List<PlanNode> children = new ArrayList<>();
+
+        PlanNode(int depth, String id, String task, String accessObject, String operatorInfo, double estRows,
+                long actRows, long timeNanos) {
+            this.depth = depth;
+            this.id = id;
+            // TableFullScan_5 -> TableFullScan, IndexRangeScan_11(Build) -> IndexRangeScan(Build):
+            // the number changes with unrelated plan details
+            this.operator = id.replaceFirst("_\\d+(\\(\\w+\\))?$", "$1");
+            this.task = task;
+            this.accessObject = accessObject;
+            this.operatorInfo = operatorInfo;
+            this.estRows = estRows;
+            this.actRows = actRows;
+            this.timeNanos = timeNanos;
+        }
+
+        /** q-error of this operator's estimate, at least 1; rows are smoothed by 1 so that zero rows count. */
+        public double estimateError() {
+            if (actRows < 0) {
+                return 1;
+            }
+            double est = estRows + 1;
+            double act = actRows + 1;
+            return Math.max(est / act, act / est);
+        }
+
+        String shape() {
+            return depth + " " + operator + " " + task + (accessObject.isEmpty() ? "" : " " + accessObject);
+        }
+    }
+
+    /** The plan of one query, as captured. */
+    public static final class Plan {
+        public final String name;
+        public final String sql;
+        public final PlanNode root;
+        /** All operators, parents before children. */
+        public final List<PlanNode> nodes;
+        public final String shape;
+        public final String digest;
+        /** Median of the root's execution time over all runs, or -1 without ANALYZE. */
+        public final long timeNanos;
+        /** Distinct digests seen over the runs; more than one means the plan is not even stable within a capture. */
+        public final int digestsSeen;
+
+        Plan(String name, String sql, List<PlanNode> nodes, long timeNanos, int digestsSeen) {
+            this.name = name;
+            this.sql = sql;
+            this.root = nodes.get(0);
+            this.nodes = nodes;
+            this.shape = shapeOf(nodes);
+            this.digest = digestOf(shape);
+            this.timeNanos = timeNanos;
+            this.digestsSeen = digestsSeen;
+        }
+
+        public PlanNode worstEstimate() {
+            PlanNode worst = root;
+            for (PlanNode node : nodes) {
+                if (node.estimateError() > worst.estimateError()) {
+                    worst = node;
+                }
+            }
+            return worst;
+        }
+    }
+
+    /** What a plan is held to; exceeding any of these is a regression. */
+    public static final class Thresholds {
+        /** Largest acceptable q-error of any operator. */
+        public double maxEstimateError = 10;
+        /** Current time over baseline time. */
+        public double maxSlowdown = 1.5;
+        /** Slowdowns smaller than this in absolute terms are noise. */
+        public long minSlowdownNanos = 1_000_000;
+    }
+
+    /** A query's line in the baseline file. */
+    public static final class Baseline {
+        public final String name;
+        public final String digest;
+        public final double estRows;
+        public final long actRows;
+        public final long timeNanos;
+        public final double estimateError;
+        public final String shape;
+
+        Baseline(String name, String digest, double estRows, long actRows, long timeNanos, double estimateError,
+                String shape) {
+            this.name = name;
+            this.digest = digest;
+            this.estRows = estRows;
+            this.actRows = actRows;
+            this.timeNanos = timeNanos;
+            this.estimateError = estimateError;
+            this.shape = shape;
+        }
+
+        public static Baseline of(Plan plan) {
+            return new Baseline(plan.name, plan.digest, plan.root.estRows, plan.root.actRows, plan.timeNanos,
+                    plan.worstEstimate().estimateError(), plan.shape);
+        }
+    }
+
+    /**
+     * Captures the plan of sql. With analyze, runs it that many times (at least once)
+     * and keeps the median execution time; the tree is the one of the last run.
+     */
+    public static Plan capture(Connection connection, String name, String sql, boolean analyze, int runs)
+            throws SQLException {
+        List<PlanNode> nodes = null;
+        List<Long> times = new ArrayList<>();
+        List<String> digests = new ArrayList<>();
+        try (Statement stmt = connection.createStatement()) {
+            for (int run = 0; run < (analyze ? Math.max(runs, 1) : 1); run++) {
+                try (ResultSet rs = stmt.executeQuery((analyze ? "EXPLAIN ANALYZE " : "EXPLAIN ") + sql)) {
+                    nodes = parse(rs);
+                }
+                if (nodes.isEmpty()) {
+                    throw new SQLException("EXPLAIN returned no plan for " + name);
+                }
+                times.add(nodes.get(0).timeNanos);
+                String digest = digestOf(shapeOf(nodes));
+                if (!digests.contains(digest)) {
+                    digests.add(digest);
+                }
+            }
+        }
+        long[] sorted = times.stream().mapToLong(Long::longValue).sorted().toArray();
+        return new Plan(name, sql, nodes, sorted[sorted.length / 2], digests.size());
+    }
+
+    /** Reads TiDB's EXPLAIN [ANALYZE] rows into a tree; returns all operators, root first. */
+    static List<PlanNode> parse(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        Map<String, Integer> columns = new LinkedHashMap<>();
+        for (int i = 1; i <= md.getColumnCount(); i++) {
+            columns.put(md.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+        }
+        List<PlanNode> nodes = new ArrayList<>();
+        Deque<PlanNode> path = new ArrayDeque<>();
+        while (rs.next()) {
+            String rawId = rs.getString(columns.get("id"));
+            // Tree drawing: two box-drawing characters or spaces per level
+            int indent = 0;
+            while (indent < rawId.length() && "\u2502\u251c\u2514\u2500 ".indexOf(rawId.charAt(indent)) >= 0) {
+                indent++;
+            }
+            int depth = indent / 2;
+            String actRows = column(rs, columns, "actrows");
+            PlanNode node = new PlanNode(depth, rawId.substring(indent), column(rs, columns, "task"),
+                    column(rs, columns, "access object"), column(rs, columns, "operator info"),
+                    parseDouble(column(rs, columns, "estrows")), actRows.isEmpty() ? -1 : (long) parseDouble(actRows),
+                    executionTime(column(rs, columns, "execution info")));
+            while (!path.isEmpty() && path.peek().depth >= depth) {
+                path.pop();
+            }
+            if (!path.isEmpty()) {
+                path.peek().children.add(node);
+            }
+            path.push(node);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private static String column(ResultSet rs, Map<String, Integer> columns, String label) throws SQLException {
+        Integer index = columns.get(label);
+        String value = index == null ? null : rs.getString(index);
+        return value == null ? "" : value.trim();
+    }
+
+    private static double parseDouble(String s) {
+        try {
+            return s.isEmpty() ? 0 : Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** The time:... entry of an execution info column, or -1 if there is none. */
+    static long executionTime(String executionInfo) {
+        Matcher m = EXEC_TIME.matcher(executionInfo);
+        return m.find() ? parseDuration(m.group(1)) : -1;
+    }
+
+    /** Parses a Go duration as TiDB prints it, e.g. 523.8us (with a micro sign), 1.02ms or 1m2.5s. */
+    static long parseDuration(String s) {
+        Matcher m = DURATION_PART.matcher(s);
+        double nanos = 0;
+        while (m.find()) {
+            double v = Double.parseDouble(m.group(1));
+            switch (m.group(2)) {
+                case "ns":
+                    nanos += v;
+                    break;
+                case "us":
+                case "\u00b5s":
+                    nanos += v * 1e3;
+                    break;
+                case "ms":
+                    nanos += v * 1e6;
+                    break;
+                case "s":
+                    nanos += v * 1e9;
+                    break;
+                case "m":
+                    nanos += v * 60e9;
+                    break;
+                default:
+                    nanos += v * 3600e9;
+            }
+        }
+        return (long) nanos;
+    }
+
+    static String shapeOf(List<PlanNode> nodes) {
+        StringBuilder shape = new StringBuilder();
+        for (PlanNode node : nodes) {
+            shape.append(shape.length() == 0 ? "" : " | ").append(node.shape());
+        }
+        return shape.toString();
+    }
+
+    static String digestOf(String shape) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(shape.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The regressions of plan against its baseline: a different digest, an estimate
+     * error beyond the threshold that the baseline did not already have, or a slowdown.
+     * Empty if there are none.
+     */
+    public static List<String> compare(Plan plan, Baseline baseline, Thresholds thresholds) {
+        List<String> regressions = new ArrayList<>();
+        if (plan.digestsSeen > 1) {
+            regressions.add("plan is unstable: " + plan.digestsSeen + " different plans in one capture");
+        }
+        if (!plan.digest.equals(baseline.digest)) {
+            regressions.add("plan changed from " + baseline.digest + " to " + plan.digest);
+        }
+        PlanNode worst = plan.worstEstimate();
+        if (worst.estimateError() > thresholds.maxEstimateError
+                && baseline.estimateError <= thresholds.maxEstimateError) {
+            regressions.add(String.format(Locale.ROOT, "row estimate off by %.1fx at %s (est %.0f, act %d)",
+                    worst.estimateError(), worst.id, worst.estRows, worst.actRows));
+        }
+        if (plan.timeNanos >= 0 && baseline.timeNanos > 0
+                && plan.timeNanos > baseline.timeNanos * thresholds.maxSlowdown
+                && plan.timeNanos - baseline.timeNanos >= thresholds.minSlowdownNanos) {
+            regressions.add(String.format(Locale.ROOT, "%.2fx slower: %.3f ms, was %.3f ms",
+                    (double) plan.timeNanos / baseline.timeNanos, plan.timeNanos / 1e6, baseline.timeNanos / 1e6));
+        }
+        return regressions;
+    }
+
+    /** Prints a shape (as stored in a baseline or Plan.shape) as an indented tree. */
+    public static void printShape(String shape, String indent) {
+        for (String node : shape.split(" \\| ")) {
+            int space = node.indexOf(' ');
+            int depth = Integer.parseInt(node.substring(0, space));
+            StringBuilder line = new StringBuilder(indent);
+            for (int i = 0; i < depth; i++) {
+                line.append("  ");
+            }
+            System.out.println(line.append(node.substring(space + 1)));
+        }
+    }
+
+    /** Reads name<TAB>sql lines; blank lines and lines starting with # are skipped. */
+    public static Map<String, String> readQueries(Path file) throws IOException {
+        Map<String, String> queries = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                throw new IOException("Expected name<TAB>sql: " + line);
+            }
+            queries.put(line.substring(0, tab).trim(), line.substring(tab + 1).trim());
+        }
+        return queries;
+    }
+
+    public static Map<String, Baseline> readBaseline(Path file) throws IOException {
+        Map<String, Baseline> baselines = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return baselines;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] f = line.split("\t", 7);
+            if (f.length < 7) {
+                throw new IOException("Malformed baseline line: " + line);
+            }
+            baselines.put(f[0], new Baseline(f[0], f[1], Double.parseDouble(f[2]), Long.parseLong(f[3]),
+                    (long) (Double.parseDouble(f[4]) * 1e6), Double.parseDouble(f[5]), f[6]));
+        }
+        return baselines;
+    }
+
+    public static void writeBaseline(Path file, Collection<Baseline> baselines) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "# Plan baseline, written by DemoJdbcExecute --plan-check --update-baseline",
+                "# name\tdigest\test_rows\tact_rows\ttime_ms\tmax_estimate_error\tshape"));
+        for (Baseline b : baselines) {
+            lines.add(String.format(Locale.ROOT, "%s\t%s\t%.2f\t%d\t%.3f\t%.2f\t%s", b.name, b.digest, b.estRows,
+                    b.actRows, b.timeNanos / 1e6, b.estimateError, b.shape));
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,424 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Merges concurrent point reads and point writes by primary key into batched statements.
+ *
+ * Callers get a CompletableFuture right away. Requests are spread over lanes by key;
+ * each lane collects what arrives within maxDelayMicros of its first request (or until
+ * maxBatch requests) and runs them as at most two statements on one pooled connection:
+ *
+ *   SELECT id, c1, c2 FROM t WHERE id IN (?, ?, ...)                     batch point get
+ *   UPDATE t SET c1 = CASE id WHEN ? THEN ? ... END, ... WHERE id IN (...)   one transaction
+ *
+ * A key always maps to the same lane and a lane runs one batch at a time, so writes to
+ * one key are applied in submission order; within a batch the last write to a key wins,
+ * as it would have run serially. The writes run before the reads, so a read sees the writes
+ * submitted ahead of it; a write to a key the batch already reads is held for the next
+ * batch, so no read sees a write submitted after it. With maxDelayMicros = 0 a lane only takes what queued
+ * up while its previous batch ran, which adds no latency at low load.
+ *
+ * IN lists are padded to the next power of two by repeating the last key, so a lane
+ * only ever prepares log2(maxBatch) statement texts and TiDB can reuse their plans.
+ * If a write batch fails, its requests are replayed one by one, in order, so that only
+ * the requests that fail on their own see the error.
+ */
+public class PointRequestCoalescer implements AutoCloseable {
+
+    private static final Request STOP = new Request(0, null, null);
+
+    private final JdbcConnectionPool pool;
+    private final String table;
+    private final String keyColumn;
+    private final String[] columns;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final Lane[] lanes;
+    // Submitters share it; close() takes it exclusively, so nothing is queued behind the stop marker
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    // Metrics
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAccumulator largestBatch = new LongAccumulator(Math::max, 0);
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    /**
+     * @param columns the columns returned by get() and set by update(), in order
+     * @param lanes   batches that may run at once, each on its own pooled connection
+     */
+    public PointRequestCoalescer(JdbcConnectionPool pool, String table, String keyColumn, String[] columns,
+            int lanes, int maxBatch, long maxDelayMicros) {
+        this.pool = pool;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.columns = columns.clone();
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(i);
+            this.lanes[i].thread.start();
+        }
+    }
+
+    /** The row's column values, or null if there is no row with this key. */
+    public CompletableFuture<Object[]> get(long key) {
+        Request request = new Request(key, null, new CompletableFuture<>());
+        submit(request);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Object[]> future = (CompletableFuture<Object[]>) (CompletableFuture<?>) request.future;
+        return future;
+    }
+
+    /** Sets the columns of the row with this key; completes with whether such a row exists. */
+    public CompletableFuture<Boolean> update(long key, Object... values) {
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException(values.length + " values for " + columns.length + " columns");
+        }
+        Request request = new Request(key, values.clone(), new CompletableFuture<>());
+        submit(request);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Boolean> future = (CompletableFuture<Boolean>) (CompletableFuture<?>) request.future;
+        return future;
+    }
+
+    private void submit(Request request) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                request.future.completeExceptionally(new SQLException("Coalescer is closed"));
+                return;
+            }
+            lanes[Math.floorMod(Long.hashCode(request.key * 0x9E3779B97F4A7C15L), lanes.length)].queue.add(request);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /** Point request waiting in a lane; values is null for a read. */
+    private static final class Request {
+        final long key;
+        final Object[] values;
+        final CompletableFuture<Object> future;
+
+        Request(long key, Object[] values, CompletableFuture<Object> future) {
+            this.key = key;
+            this.values = values;
+            this.future = future;
+        }
+    }
+
+    private final class Lane implements Runnable {
+        final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+        final Thread thread;
+
+        Lane(int index) {
+            thread = new Thread(this, "coalescer-" + table + "-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Request> batch = new ArrayList<>(maxBatch);
+            boolean stopping = false;
+            while (!stopping) {
+                try {
+                    Request first = queue.take();
+                    if (first == STOP) {
+                        stopping = true;
+                    } else {
+                        batch.add(first);
+                    }
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (!stopping && batch.size() < maxBatch) {
+                        Request next = queue.poll();
+                        if (next == null) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                                break;
+                            }
+                        }
+                        if (next == STOP) {
+                            // Run what was queued before it; close() lets nothing in after it
+                            stopping = true;
+                        } else {
+                            batch.add(next);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    stopping = true;
+                }
+                for (int from = 0; from < batch.size(); from += maxBatch) {
+                    executeInOrder(batch.subList(from, Math.min(batch.size(), from + maxBatch)));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /** Splits the batch before each write to a key it already reads, as writes run before reads. */
+    private void executeInOrder(List<Request> batch) {
+        Set<Long> readKeys = new HashSet<>();
+        int from = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Request r = batch.get(i);
+            if (r.values == null) {
+                readKeys.add(r.key);
+            } else if (readKeys.contains(r.key)) {
+                execute(batch.subList(from, i));
+                from = i;
+                readKeys.clear();
+            }
+        }
+        if (from < batch.size()) {
+            execute(batch.subList(from, batch.size()));
+        }
+    }
+
+    private void execute(List<Request> batch) {
+        long start = System.nanoTime();
+        Map<Long, List<Request>> readers = new LinkedHashMap<>();
+        // Last write per key wins; every writer of the key gets the same outcome
+        Map<Long, Object[]> lastWrite = new LinkedHashMap<>();
+        Map<Long, List<Request>> writers = new LinkedHashMap<>();
+        List<Request> writeOrder = new ArrayList<>();
+        for (Request r : batch) {
+            if (r.values == null) {
+                readers.computeIfAbsent(r.key, k -> new ArrayList<>()).add(r);
+            } else {
+                lastWrite.put(r.key, r.values);
+                writeOrder.add(r);
+                writers.computeIfAbsent(r.key, k -> new ArrayList<>()).add(r);
+            }
+        }
+        try (Connection connection = pool.getConnection()) {
+            if (!lastWrite.isEmpty()) {
+                writeBatch(connection, lastWrite, writers, writeOrder);
+            }
+            if (!readers.isEmpty()) {
+                readBatch(connection, readers);
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (Request r : batch) {
+                r.future.completeExceptionally(e);
+            }
+        }
+        reads.add(readers.size());
+        writes.add(lastWrite.size());
+        batches.increment();
+        requests.add(batch.size());
+        largestBatch.accumulate(batch.size());
+        batchLatency.recordSince(start);
+    }
+
+    private void readBatch(Connection connection, Map<Long, List<Request>> readers) throws SQLException {
+        Long[] keys = readers.keySet().toArray(new Long[0]);
+        int padded = paddedSize(keys.length);
+        StringBuilder sql = new StringBuilder("SELECT ").append(keyColumn);
+        for (String column : columns) {
+            sql.append(", ").append(column);
+        }
+        sql.append(" FROM ").append(table).append(" WHERE ").append(keyColumn).append(" IN (");
+        placeholders(sql, padded).append(')');
+        Map<Long, Object[]> rows = new HashMap<>();
+        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < padded; i++) {
+                ps.setLong(i + 1, keys[Math.min(i, keys.length - 1)]);
+            }
+            statements.increment();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Object[] row = new Object[columns.length];
+                    for (int c = 0; c < columns.length; c++) {
+                        row[c] = rs.getObject(c + 2);
+                    }
+                    rows.put(rs.getLong(1), row);
+                }
+            }
+        }
+        for (Map.Entry<Long, List<Request>> e : readers.entrySet()) {
+            Object[] row = rows.get(e.getKey());
+            for (Request r : e.getValue()) {
+                r.future.complete(row == null ? null : row.clone());
+            }
+        }
+    }
+
+    private void writeBatch(Connection connection, Map<Long, Object[]> lastWrite, Map<Long, List<Request>> writers,
+            List<Request> writeOrder) {
+        Set<Long> found;
+        try {
+            found = updateInTransaction(connection, lastWrite);
+        } catch (SQLException e) {
+            // Find the requests at fault: replay them one transaction each, in submission order
+            fallbacks.increment();
+            for (Request r : writeOrder) {
+                Map<Long, Object[]> single = new HashMap<>();
+                single.put(r.key, r.values);
+                try {
+                    r.future.complete(!updateInTransaction(connection, single).isEmpty());
+                } catch (SQLException e2) {
+                    r.future.completeExceptionally(e2);
+                }
+            }
+            return;
+        }
+        for (Map.Entry<Long, List<Request>> e : writers.entrySet()) {
+            Boolean exists = found.contains(e.getKey());
+            for (Request r : e.getValue()) {
+                r.future.complete(exists);
+            }
+        }
+    }
+
+    /** Runs the CASE update and returns the keys it matched. */
+    private Set<Long> updateInTransaction(Connection connection, Map<Long, Object[]> lastWrite) throws SQLException {
+        Long[] keys = lastWrite.keySet().toArray(new Long[0]);
+        int padded = paddedSize(keys.length);
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int c = 0; c < columns.length; c++) {
+            sql.append(c == 0 ? "" : ", ").append(columns[c]).append(" = CASE ").append(keyColumn);
+            for (int i = 0; i < padded; i++) {
+                sql.append(" WHEN ? THEN ?");
+            }
+            sql.append(" END");
+        }
+        sql.append(" WHERE ").append(keyColumn).append(" IN (");
+        placeholders(sql, padded).append(')');
+
+        connection.setAutoCommit(false);
+        try {
+            int matched;
+            try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+                int p = 1;
+                for (int c = 0; c < columns.length; c++) {
+                    for (int i = 0; i < padded; i++) {
+                        Long key = keys[Math.min(i, keys.length - 1)];
+                        ps.setLong(p++, key);
+                        ps.setObject(p++, lastWrite.get(key)[c]);
+                    }
+                }
+                for (int i = 0; i < padded; i++) {
+                    ps.setLong(p++, keys[Math.min(i, keys.length - 1)]);
+                }
+                statements.increment();
+                // Connector/J reports matched rows (useAffectedRows=false), not changed ones
+                matched = ps.executeUpdate();
+            }
+            Set<Long> found = new HashSet<>();
+            if (matched == keys.length) {
+                for (Long key : keys) {
+                    found.add(key);
+                }
+            } else if (matched > 0) {
+                // Some keys have no row: ask which ones, in the same transaction
+                found.addAll(existingKeys(connection, keys));
+            }
+            connection.commit();
+            return found;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private Set<Long> existingKeys(Connection connection, Long[] keys) throws SQLException {
+        int padded = paddedSize(keys.length);
+        StringBuilder sql = new StringBuilder("SELECT ").append(keyColumn).append(" FROM ").append(table)
+                .append(" WHERE ").append(keyColumn).append(" IN (");
+        placeholders(sql, padded).append(')');
+        Set<Long> found = new HashSet<>();
+        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < padded; i++) {
+                ps.setLong(i + 1, keys[Math.min(i, keys.length - 1)]);
+            }
+            statements.increment();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    found.add(rs.getLong(1));
+                }
+            }
+        }
+        return found;
+    }
+
+    private static StringBuilder placeholders(StringBuilder sql, int n) {
+        for (int i = 0; i < n; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql;
+    }
+
+    /** The next power of two, so that IN lists come in few distinct lengths. */
+    static int paddedSize(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /** Latency of each batch, from collecting it to completing its futures. */
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    public void printStats() {
+        long batches = this.batches.sum();
+        System.out.println(String.format(Locale.ROOT,
+                "Coalescer stats: %d batches, %.1f requests per batch on average (max %d), %d keys read, "
+                        + "%d written (distinct per batch), %d statements, %d write batches replayed after an error",
+                batches, batches == 0 ? 0 : (double) requests.sum() / batches, largestBatch.get(),
+                reads.sum(), writes.sum(), statements.sum(), fallbacks.sum()));
+        System.out.println(String.format(Locale.ROOT, "                 batch latency p50 %.3f ms, p99 %.3f ms",
+                batchLatency.percentileMillis(50), batchLatency.percentileMillis(99)));
+    }
+
+    /** Runs everything submitted so far, then stops the lanes. Later requests fail. */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Lane lane : lanes) {
+                lane.queue.add(STOP);
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            for (Lane lane : lanes) {
+                lane.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
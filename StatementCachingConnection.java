@@ -0,0 +1,369 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection that keeps closed prepared statements for reuse.
+ *
+ * prepareStatement() hands out an idle statement prepared earlier with the same SQL text
+ * and options (result set type, concurrency, holdability, generated keys) if there is
+ * one; close() on it clears its parameters and batch and parks it again instead of
+ * closing it. With useServerPrepStmts=true that saves the COM_STMT_PREPARE and
+ * COM_STMT_CLOSE round trips of every prepare/execute/close cycle, which the driver's own
+ * cachePrepStmts cannot do as it only keeps the parse result on the client.
+ *
+ * At most maxStatements idle statements are kept; the least recently used one beyond
+ * that is really closed, which frees its server-side statement (these count against
+ * max_prepared_stmt_count, for every connection of a pool). A statement whose fetch
+ * size, max rows, timeout or similar options were changed is closed rather than parked,
+ * so a borrower always gets one with default settings. Changing the schema or catalog
+ * empties the cache.
+ *
+ * Like a Connection, it is meant to be used by one thread at a time.
+ */
+public class StatementCachingConnection extends DelegatingConnection {
+
+    /** Counters that can be shared by several connections, e.g. all of a pool. */
+    public static final class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        /** Statements closed for good: pushed out of a full cache, changed options or duplicates. */
+        public long evictions() {
+            return evictions.sum();
+        }
+
+        public double hitRatio() {
+            long h = hits(), total = h + misses();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Statement cache: %d hits, %d misses (%.1f%% hit), %d evictions", hits(),
+                    misses(), 100 * hitRatio(), evictions());
+        }
+    }
+
+    private final int maxStatements;
+    private final Stats stats;
+    private final LinkedHashMap<Key, PreparedStatement> idle;
+    private boolean closed;
+
+    public StatementCachingConnection(Connection delegate, int maxStatements) {
+        this(delegate, maxStatements, new Stats());
+    }
+
+    public StatementCachingConnection(Connection delegate, int maxStatements, Stats stats) {
+        super(delegate);
+        this.maxStatements = maxStatements;
+        this.stats = stats;
+        // Access order, so the eldest entry is the least recently used
+        this.idle = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+                if (size() <= StatementCachingConnection.this.maxStatements) {
+                    return false;
+                }
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    /** Idle statements currently held. */
+    public synchronized int cachedStatements() {
+        return idle.size();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        Key key = new Key(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, -1, -1, null, null);
+        PreparedStatement cached = take(key);
+        return new CachedStatement(cached != null ? cached : delegate.prepareStatement(sql), key);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        Key key = new Key(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, -1, -1, null, columnNames);
+        PreparedStatement cached = take(key);
+        return new CachedStatement(cached != null ? cached : delegate.prepareStatement(sql, columnNames), key);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        Key key = new Key(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, -1, autoGeneratedKeys, null,
+                null);
+        PreparedStatement cached = take(key);
+        return new CachedStatement(cached != null ? cached : delegate.prepareStatement(sql, autoGeneratedKeys), key);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        Key key = new Key(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, -1, -1, columnIndexes, null);
+        PreparedStatement cached = take(key);
+        return new CachedStatement(cached != null ? cached : delegate.prepareStatement(sql, columnIndexes), key);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        Key key = new Key(sql, resultSetType, resultSetConcurrency, -1, -1, null, null);
+        PreparedStatement cached = take(key);
+        return new CachedStatement(cached != null ? cached
+                : delegate.prepareStatement(sql, resultSetType, resultSetConcurrency), key);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
+            int resultSetHoldability) throws SQLException {
+        Key key = new Key(sql, resultSetType, resultSetConcurrency, resultSetHoldability, -1, null, null);
+        PreparedStatement cached = take(key);
+        return new CachedStatement(cached != null ? cached
+                : delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), key);
+    }
+
+    private synchronized PreparedStatement take(Key key) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        PreparedStatement cached = idle.remove(key);
+        if (cached != null) {
+            stats.hits.increment();
+        } else {
+            stats.misses.increment();
+        }
+        return cached;
+    }
+
+    /** Called by CachedStatement.close(): park the statement, or close it if it cannot be reused. */
+    private synchronized void checkIn(PreparedStatement statement, Key key, boolean optionsChanged) {
+        if (closed || optionsChanged || idle.containsKey(key)) {
+            evict(statement);
+            return;
+        }
+        try {
+            if (statement.isClosed()) {
+                return;
+            }
+            ResultSet rs = statement.getResultSet();
+            if (rs != null) {
+                rs.close();
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.clearWarnings();
+        } catch (SQLException e) {
+            evict(statement);
+            return;
+        }
+        idle.put(key, statement);
+    }
+
+    private void evict(PreparedStatement statement) {
+        stats.evictions.increment();
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            System.out.println("Error closing cached statement: " + e);
+        }
+    }
+
+    /** Really closes every idle statement. */
+    public synchronized void clear() {
+        Iterator<PreparedStatement> it = idle.values().iterator();
+        while (it.hasNext()) {
+            PreparedStatement statement = it.next();
+            it.remove();
+            evict(statement);
+        }
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        clear();
+        delegate.setCatalog(catalog);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        clear();
+        delegate.setSchema(schema);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        synchronized (this) {
+            clear();
+            closed = true;
+        }
+        delegate.close();
+    }
+
+    /** SQL text plus every option a statement was prepared with; -1 or null where none was given. */
+    private static final class Key {
+        final String sql;
+        final int resultSetType;
+        final int resultSetConcurrency;
+        final int resultSetHoldability;
+        final int autoGeneratedKeys;
+        final int[] columnIndexes;
+        final String[] columnNames;
+        final int hash;
+
+        Key(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability, int autoGeneratedKeys,
+                int[] columnIndexes, String[] columnNames) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.columnIndexes = columnIndexes == null ? null : columnIndexes.clone();
+            this.columnNames = columnNames == null ? null : columnNames.clone();
+            this.hash = 31 * Objects.hash(sql, resultSetType, resultSetConcurrency, resultSetHoldability,
+                    autoGeneratedKeys) + 17 * Arrays.hashCode(this.columnIndexes) + Arrays.hashCode(this.columnNames);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && sql.equals(k.sql) && resultSetType == k.resultSetType
+                    && resultSetConcurrency == k.resultSetConcurrency
+                    && resultSetHoldability == k.resultSetHoldability && autoGeneratedKeys == k.autoGeneratedKeys
+                    && Arrays.equals(columnIndexes, k.columnIndexes) && Arrays.equals(columnNames, k.columnNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The statement as handed out: close() gives the physical statement back to the cache.
+     * Each prepareStatement() returns a new one, so a handle closed by its owner reports
+     * isClosed() even when the statement behind it has been handed out again, and every
+     * other call on it throws instead of reaching that statement.
+     */
+    private final class CachedStatement extends DelegatingPreparedStatement {
+        private final Key key;
+        private boolean returned;
+        private boolean optionsChanged;
+
+        CachedStatement(PreparedStatement delegate, Key key) {
+            super(delegate);
+            this.key = key;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return StatementCachingConnection.this;
+        }
+
+        @Override
+        protected PreparedStatement delegate() throws SQLException {
+            if (returned) {
+                throw new SQLException("Statement is closed");
+            }
+            return delegate;
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return returned || delegate.isClosed();
+        }
+
+        @Override
+        public void close() {
+            if (returned) {
+                return;
+            }
+            returned = true;
+            checkIn(delegate, key, optionsChanged);
+        }
+
+        @Override
+        public void setMaxFieldSize(int max) throws SQLException {
+            optionsChanged = true;
+            delegate().setMaxFieldSize(max);
+        }
+
+        @Override
+        public void setMaxRows(int max) throws SQLException {
+            optionsChanged = true;
+            delegate().setMaxRows(max);
+        }
+
+        @Override
+        public void setLargeMaxRows(long max) throws SQLException {
+            optionsChanged = true;
+            delegate().setLargeMaxRows(max);
+        }
+
+        @Override
+        public void setEscapeProcessing(boolean enable) throws SQLException {
+            optionsChanged = true;
+            delegate().setEscapeProcessing(enable);
+        }
+
+        @Override
+        public void setQueryTimeout(int seconds) throws SQLException {
+            optionsChanged = true;
+            delegate().setQueryTimeout(seconds);
+        }
+
+        @Override
+        public void setCursorName(String name) throws SQLException {
+            optionsChanged = true;
+            delegate().setCursorName(name);
+        }
+
+        @Override
+        public void setFetchDirection(int direction) throws SQLException {
+            optionsChanged = true;
+            delegate().setFetchDirection(direction);
+        }
+
+        @Override
+        public void setFetchSize(int rows) throws SQLException {
+            optionsChanged = true;
+            delegate().setFetchSize(rows);
+        }
+
+        @Override
+        public void setPoolable(boolean poolable) throws SQLException {
+            optionsChanged = true;
+            delegate().setPoolable(poolable);
+        }
+
+        @Override
+        public void closeOnCompletion() throws SQLException {
+            optionsChanged = true;
+            delegate().closeOnCompletion();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a transaction body and commits it, re-running the whole body when TiDB reports an
+ * error that a fresh attempt may not hit: write conflict (9007), transaction not
+ * retryable (8002, 8022), schema changed (8028) and deadlock (1213). Re-running only the
+ * failed statement is not enough, as the rollback already undid everything before it and
+ * the values the body read may be stale.
+ *
+ * Under contention naive retries add load exactly where the conflicts are, so retries are
+ * held back:
+ *
+ *   backoff   before attempt n+1 sleep a random time in [0, min(maxBackoff, baseBackoff * 2^(n-1))]
+ *             ("full jitter"), so that the transactions that collided do not collide again
+ *   attempts  at most maxAttempts runs of the body per call
+ *   deadline  no retry whose backoff would end more than deadlineMillis after the first attempt
+ *   budget    a token bucket shared by all calls: each call adds retryRatio tokens (up to
+ *             retryBurst), each retry takes one; with the bucket empty the error is thrown
+ *             at once, which caps retries at about retryRatio of the calls under sustained
+ *             contention instead of multiplying the load by maxAttempts
+ *
+ * The body gets a connection with autocommit off and must not commit itself; it may start
+ * the transaction explicitly (e.g. BEGIN OPTIMISTIC / BEGIN PESSIMISTIC). It may run more
+ * than once, so it must not have side effects outside the transaction.
+ */
+public class TransactionRetryExecutor {
+
+    /** Error codes retried by default; see isRetryable(). */
+    private static final int[] RETRYABLE_CODES = { 9007, 8002, 8022, 8028, 1213 };
+
+    /** The transaction, run on the given connection; its result is returned after the commit. */
+    public interface TransactionBody<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private final int maxAttempts;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long deadlineNanos;
+    // Retry budget in thousandths of a token
+    private final long retryRatioMilli;
+    private final long retryBurstMilli;
+    private final AtomicLong budgetMilli;
+
+    // Metrics
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder[] conflicts = new LongAdder[RETRYABLE_CODES.length];
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder retriedCommits = new LongAdder();
+    private final LongAdder failedAttemptsExhausted = new LongAdder();
+    private final LongAdder failedDeadline = new LongAdder();
+    private final LongAdder failedBudget = new LongAdder();
+    private final LongAdder backoffTotalNanos = new LongAdder();
+    private final LatencyHistogram addedLatency = new LatencyHistogram();
+
+    /** 5 attempts, 10 ms to 1 s backoff, 10 s deadline, retries up to 20% of calls after a burst of 20. */
+    public TransactionRetryExecutor() {
+        this(5, 10, 1000, 10_000, 0.2, 20);
+    }
+
+    public TransactionRetryExecutor(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+            long deadlineMillis, double retryRatio, int retryBurst) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(baseBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.retryRatioMilli = Math.round(retryRatio * 1000);
+        this.retryBurstMilli = retryBurst * 1000L;
+        this.budgetMilli = new AtomicLong(retryBurstMilli);
+        for (int i = 0; i < conflicts.length; i++) {
+            conflicts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Runs body and commits, retrying as described above. Throws the last error if the
+     * transaction could not be committed; the connection is then rolled back. The
+     * connection's autocommit setting is restored afterwards.
+     */
+    public <T> T execute(Connection connection, TransactionBody<T> body) throws SQLException {
+        calls.increment();
+        depositBudget();
+        long start = System.nanoTime();
+        boolean autoCommit = connection.getAutoCommit();
+        if (autoCommit) {
+            connection.setAutoCommit(false);
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                attempts.increment();
+                long attemptStart = System.nanoTime();
+                try {
+                    T result = body.run(connection);
+                    connection.commit();
+                    commits.increment();
+                    if (attempt > 1) {
+                        retriedCommits.increment();
+                        // Everything before the successful attempt: failed attempts and backoff
+                        addedLatency.record(attemptStart - start);
+                    }
+                    return result;
+                } catch (SQLException e) {
+                    rollbackQuietly(connection);
+                    int code = retryableCode(e);
+                    if (code == 0) {
+                        throw e;
+                    }
+                    conflicts[indexOf(code)].increment();
+                    if (attempt >= maxAttempts) {
+                        failedAttemptsExhausted.increment();
+                        throw e;
+                    }
+                    long backoff = backoffNanos(attempt);
+                    if (System.nanoTime() + backoff - start > deadlineNanos) {
+                        failedDeadline.increment();
+                        throw e;
+                    }
+                    if (!takeBudget()) {
+                        failedBudget.increment();
+                        throw e;
+                    }
+                    retries.increment();
+                    backoffTotalNanos.add(backoff);
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            if (autoCommit) {
+                // Not thrown, so that it cannot hide the transaction's own error
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    System.out.println("Error: " + e);
+                }
+            }
+        }
+    }
+
+    /** Backoff before attempt + 1: full jitter over an exponentially growing, capped range. */
+    long backoffNanos(int attempt) {
+        long range = baseBackoffNanos << Math.min(attempt - 1, 30);
+        if (range <= 0 || range > maxBackoffNanos) {
+            range = maxBackoffNanos;
+        }
+        return range <= 0 ? 0 : ThreadLocalRandom.current().nextLong(range + 1);
+    }
+
+    private void depositBudget() {
+        long current = budgetMilli.get();
+        while (current < retryBurstMilli
+                && !budgetMilli.compareAndSet(current, Math.min(retryBurstMilli, current + retryRatioMilli))) {
+            current = budgetMilli.get();
+        }
+    }
+
+    private boolean takeBudget() {
+        long current = budgetMilli.get();
+        while (current >= 1000) {
+            if (budgetMilli.compareAndSet(current, current - 1000)) {
+                return true;
+            }
+            current = budgetMilli.get();
+        }
+        return false;
+    }
+
+    private static void rollbackQuietly(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    private static int indexOf(int code) {
+        for (int i = 0; i < RETRYABLE_CODES.length; i++) {
+            if (RETRYABLE_CODES[i] == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** The retryable error code in e or its causes, or 0 if there is none. */
+    static int retryableCode(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                int code = ((SQLException) t).getErrorCode();
+                if (indexOf(code) >= 0) {
+                    return code;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Write conflicts, non-retryable transaction states, schema changes and deadlocks. */
+    public static boolean isRetryable(SQLException e) {
+        return retryableCode(e) != 0;
+    }
+
+    public long attempts() {
+        return attempts.sum();
+    }
+
+    public long commits() {
+        return commits.sum();
+    }
+
+    /** Retryable errors seen, whether or not they were retried. */
+    public long conflicts() {
+        long n = 0;
+        for (LongAdder c : conflicts) {
+            n += c.sum();
+        }
+        return n;
+    }
+
+    public long retries() {
+        return retries.sum();
+    }
+
+    /** Calls that gave up on a retryable error: attempts used up, past the deadline or out of budget. */
+    public long givenUp() {
+        return failedAttemptsExhausted.sum() + failedDeadline.sum() + failedBudget.sum();
+    }
+
+    /** Time from the first attempt to the start of the successful one, for commits that needed retries. */
+    public LatencyHistogram getAddedLatency() {
+        return addedLatency;
+    }
+
+    public void printStats() {
+        StringBuilder byCode = new StringBuilder();
+        for (int i = 0; i < RETRYABLE_CODES.length; i++) {
+            long n = conflicts[i].sum();
+            if (n > 0) {
+                byCode.append(byCode.length() == 0 ? " (" : ", ").append(RETRYABLE_CODES[i]).append(": ").append(n);
+            }
+        }
+        if (byCode.length() > 0) {
+            byCode.append(')');
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "Transaction stats: %d calls, %d attempts, %d commits, %d conflicts%s, %d retries "
+                        + "(%.2f per call), %d commits needed a retry",
+                calls.sum(), attempts(), commits(), conflicts(), byCode, retries(),
+                calls.sum() == 0 ? 0 : (double) retries() / calls.sum(), retriedCommits.sum()));
+        System.out.println(String.format(Locale.ROOT,
+                "                   gave up: %d out of attempts, %d past deadline, %d out of retry budget; "
+                        + "%.1f ms spent in backoff",
+                failedAttemptsExhausted.sum(), failedDeadline.sum(), failedBudget.sum(), backoffTotalNanos.sum() / 1e6));
+        if (addedLatency.count() > 0) {
+            System.out.println(String.format(Locale.ROOT,
+                    "                   latency added by retries p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    addedLatency.percentileMillis(50), addedLatency.percentileMillis(99),
+                    addedLatency.maxNanos() / 1e6));
+        }
+    }
+}
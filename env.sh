@@ -7,6 +7,12 @@ export TIDB_USER='${LAB:SERVERLESS_CLUSTER_USERNAME}'
 export TIDB_PASSWORD='${LAB:SERVERLESS_CLUSTER_PASSWORD}'
 export TIDB_DB_NAME=${LAB:SERVERLESS_CLUSTER_DATABASE_NAME}
 export USE_SSL='true'
+# Set to 'true' to print per-statement latency, rows and bytes when a demo exits
+export JDBC_METRICS='false'
+# Rows fetched per round trip when printing results; -2147483648 streams row by row
+export JDBC_FETCH_SIZE='-2147483648'
+# Closed prepared statements kept per pooled connection for reuse; 0 turns the cache off
+export JDBC_STMT_CACHE_SIZE='0'
 
 ## Do not change the following part
 jdbc_url="jdbc:mysql://${TIDB_HOST}:${TIDB_PORT}/${TIDB_DB_NAME}"